@@ -0,0 +1,56 @@
+package score.distribution;
+
+import score.distribution.StructuredNetworkEvent.NetworkEventType;
+import score.dynamics.ConstantReassortment.RateSnapshot;
+import score.math.DenseOutput;
+import score.utils.NetworkArena;
+
+/**
+ * Backward pass of SCORE for an accepted state, as needed by the forward
+ * simulation of a stochastic mapping. The network is kept as an arena, such
+ * that the record is not changed by later proposals, events refer to arena
+ * nodes and lineages to arena edges. Records are not modified once created
+ * and can be shared between threads.
+ */
+public class BackwardPassRecord {
+
+	public final NetworkArena network;
+	public final RateSnapshot rates;
+	public final int size;
+	public final double[] time;
+	public final byte[] type;
+	// arena node of every event
+	public final int[] node;
+	// ids of the lineages in the interval above every event, in the order of
+	// their probabilities in the dense output, null if the interval is empty
+	public final int[][] lineages;
+	// arena edge of every lineage id
+	public final int[] lineageEdge;
+	public final DenseOutput[] denseOutput;
+	public final double[] rootProbabilities;
+
+	BackwardPassRecord(NetworkArena network, RateSnapshot rates, int size, double[] time, byte[] type, int[] node,
+			int[][] lineages, int[] lineageEdge, DenseOutput[] denseOutput, double[] rootProbabilities) {
+		this.network = network;
+		this.rates = rates;
+		this.size = size;
+		this.time = time;
+		this.type = type;
+		this.node = node;
+		this.lineages = lineages;
+		this.lineageEdge = lineageEdge;
+		this.denseOutput = denseOutput;
+		this.rootProbabilities = rootProbabilities;
+	}
+
+	public NetworkEventType getEventType(int event) {
+		switch (type[event]) {
+		case NetworkEventArrays.SAMPLE:
+			return NetworkEventType.SAMPLE;
+		case NetworkEventArrays.COALESCENCE:
+			return NetworkEventType.COALESCENCE;
+		default:
+			return NetworkEventType.REASSORTMENT;
+		}
+	}
+}
@@ -1,10 +1,12 @@
 package score.distribution;
 
+import java.io.File;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
-import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
 import org.apache.commons.math3.ode.FirstOrderIntegrator;
 import org.apache.commons.math3.ode.nonstiff.ClassicalRungeKuttaIntegrator;
 import org.jblas.DoubleMatrix;
@@ -17,7 +19,14 @@ import beast.core.parameter.RealParameter;
 import beast.evolution.tree.TraitSet;
 import coalre.network.NetworkEdge;
 import coalre.network.NetworkNode;
+import score.math.ConfigurationLumping;
+import score.math.ConfigurationTransitions;
+import score.math.MappedConfigurationSystem;
+import score.math.MappedDoubleArray;
+import score.math.ScratchFile;
+import score.math.Uniformization;
 import score.math.ode_integrator_reassort;
+import score.utils.SharedPools;
 
 
 @Description("Calculate the probability of a tree under the exact numerical structured coalescent with constant rates"
@@ -40,6 +49,24 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
     public Input<RealParameter> reassortmentRateInput = new Input<>("reassortmentRate",
 	    "reassortment rate (per lineage per unit time)", Input.Validate.REQUIRED);
 
+    public Input<Boolean> uniformizationInput = new Input<>("uniformization",
+	    "if true, compute the configuration probabilities by uniformization instead of RK4 integration", false);
+
+    public Input<Double> uniformizationToleranceInput = new Input<>("uniformizationTolerance",
+	    "truncation error of the uniformization series", 1e-12);
+
+    public Input<Boolean> lumpingInput = new Input<>("lumping",
+	    "if true, configurations that only differ by permuting the types of lineages sampled at the same time "
+		    + "in the same type with the same segments are merged",
+	    false);
+
+    public Input<Integer> threadsInput = new Input<>("threads",
+	    "number of threads used to compute the derivatives of large numbers of configurations (default 1)", 1);
+
+    public Input<String> scratchDirectoryInput = new Input<>("scratchDirectory",
+	    "if set, the configuration probabilities are kept in a memory-mapped scratch file in this directory "
+		    + "instead of the heap (implies uniformization, cannot be combined with lumping)");
+
     public Input<IntegerParameter> dim = new Input<>("dim", "the number of different types", Input.Validate.REQUIRED);
 
     private StructuredNetworkIntervals intervals;
@@ -49,12 +76,20 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
     public int nrSamples;
     public DoubleMatrix[] nodeStateProbabilities;
     public List<NetworkNode> nodes = new ArrayList<>();
-    public List<Double> jointStateProbabilities;
+    public double[] jointStateProbabilities;
     public List<Integer> numberOfLineages;
-    public Integer[][] connectivity;
-    public Integer[][] sums;
-    public Integer[] sumsTot;
-    public List<List<Integer>> combination;
+    public ConfigurationTransitions transitions;
+    // each configuration is packed into a long, where the type of the l-th
+    // active lineage is the l-th digit in base types, the number of lineages
+    // per type is read from these digits where needed
+    public long[] configurations;
+    // typePowers[l] = types^l
+    private long[] typePowers;
+    // if lumping, the exchangeable class of every active lineage (lineages of
+    // the same class have the same label) and configurations are the orbit
+    // representatives of ConfigurationLumping
+    private int[] lineageClass;
+    private int nextClass;
 
     private double[] migration_rates;
     private int[][] migration_map;
@@ -76,6 +111,17 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
     // Set up for lineage state probabilities
     List<NetworkEdge> activeLineages;
 
+    private Uniformization uniformization;
+    private ForkJoinPool pool;
+
+    // derivative evaluations (or uniformization products) in the last calculation
+    public long derivativeEvaluations;
+    // off the heap, the probability of the configuration with code i is kept
+    // at index i of mappedProbabilities, and configurations and
+    // jointStateProbabilities are not used
+    private ScratchFile scratch;
+    private MappedDoubleArray mappedProbabilities;
+
     @Override
     public void initAndValidate() {
 	// Calculate the tree intervals (time between events, which nodes participate at
@@ -101,12 +147,55 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 	coalescent_rates = new double[types];
 	reassortment_rates = new double[types];
 
+	// the number of lineages is limited by the digits that fit into a long
+	List<Long> powers = new ArrayList<>();
+	for (long power = 1; power <= Long.MAX_VALUE / types; power *= types)
+	    powers.add(power);
+	powers.add(powers.get(powers.size() - 1) * types);
+	typePowers = new long[powers.size()];
+	for (int i = 0; i < typePowers.length; i++)
+	    typePowers[i] = powers.get(i);
+
+	if (scratchDirectoryInput.get() != null) {
+	    File scratchDirectory = new File(scratchDirectoryInput.get());
+	    if (!scratchDirectory.isDirectory()) {
+		throw new IllegalArgumentException("scratchDirectory " + scratchDirectory + " is not a directory");
+	    }
+	    if (lumpingInput.get()) {
+		throw new IllegalArgumentException("lumping cannot be combined with a scratchDirectory");
+	    }
+	    // one scratch file for the whole run
+	    scratch = new ScratchFile(scratchDirectory);
+	}
+	if (uniformizationInput.get() || scratch != null)
+	    uniformization = new Uniformization();
+	if (threadsInput.get() > 1)
+	    pool = SharedPools.get(threadsInput.get());
+
 	// Calculate the marginal likelihood
 	calculateLogP();
     }
 
     @Override
 	public double calculateLogP() {
+	if (scratch == null)
+	    return integrateNetwork();
+	try {
+	    // the empty configuration of no lineages
+	    mappedProbabilities = scratch.allocate(1);
+	    mappedProbabilities.set(0, 1.0);
+	    return integrateNetwork();
+	} finally {
+	    // unmap the probabilities and truncate the scratch file until the next
+	    // calculation
+	    if (mappedProbabilities != null)
+		scratch.release(mappedProbabilities);
+	    mappedProbabilities = null;
+	    scratch.reset();
+	}
+    }
+
+    private double integrateNetwork() {
 	intervals = networkIntervalsInput.get();
 	networkEventList = intervals.getNetworkEventList();
 	nodeStateProbabilities = new DoubleMatrix[intervals.networkInput.get().getInternalNodes().size()];
@@ -122,6 +211,9 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 
 	// Initialize the line state probabilities
 	nr_lineages = 0;
+	derivativeEvaluations = 0;
+	lineageClass = lumpingInput.get() ? new int[0] : null;
+	nextClass = 0;
 	// Captures the probabilities of lineages being in a state
 	double[] p;
 
@@ -157,40 +249,55 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 	    // if the current interval has a length greater than 0, integrate
 	    if (duration > 0) {
 
-		p = new double[jointStateProbabilities.size()]; // Captures the probabilities of lineages being in a
-								// state
+		p = jointStateProbabilities; // Captures the probabilities of lineages being in a state
 		List<Integer> n_segs = new ArrayList<>();
 		for (NetworkEdge l : activeLineages) {
 		    n_segs.add(l.hasSegments.cardinality());
 		}
 
-		// convert the array list to double[]
-		for (int i = 0; i < jointStateProbabilities.size(); i++)
-		    p[i] = jointStateProbabilities.get(i);
-
-		double[] p_for_ode = new double[p.length];
-
-		double ts = timeStep;
-		if (duration < timeStep)
-		    ts = duration / 2;
-		// initialize integrator
-		FirstOrderIntegrator integrator = new ClassicalRungeKuttaIntegrator(ts);
-		// set the odes
-		FirstOrderDifferentialEquations ode = new ode_integrator_reassort(migration_rates, coalescent_rates,
-			reassortment_rates, nr_lineages, types, connectivity, sums, combination, n_segs);
-		// integrate
-		integrator.integrate(ode, start, p, duration, p_for_ode);
-
-		// if the dimension is equal to the max integer, this means that a calculation
-		// of a probability of a configuration resulted in a value below 0 and the
-		// run will be stopped
-		if (ode.getDimension() == Integer.MAX_VALUE) {
-		    return Double.NEGATIVE_INFINITY;
-		}
+		if (scratch != null) {
+		    // keep the integration off the heap
+		    MappedConfigurationSystem system = new MappedConfigurationSystem(n_segs, types, migration_rates,
+			    coalescent_rates, reassortment_rates, migration_map, pool);
+		    MappedDoubleArray result = uniformization.expmv(system, duration, mappedProbabilities,
+			    uniformizationToleranceInput.get(), scratch);
+		    if (result != mappedProbabilities) {
+			scratch.release(mappedProbabilities);
+			mappedProbabilities = result;
+		    }
+		    derivativeEvaluations += uniformization.products;
+		} else {
+		    // set the odes
+		    ode_integrator_reassort ode = new ode_integrator_reassort(migration_rates, coalescent_rates,
+			    reassortment_rates, nr_lineages, types, transitions, configurations, n_segs);
+
+		    ode.setParallel(pool);
+
+		    double[] p_for_ode = new double[p.length];
+		    if (uniformization != null) {
+			p_for_ode = uniformization.expmv(ode, ode.getMaxExitRate(), duration, p,
+				uniformizationToleranceInput.get());
+		    } else {
+			double ts = timeStep;
+			if (duration < timeStep)
+			    ts = duration / 2;
+			// initialize integrator
+			FirstOrderIntegrator integrator = new ClassicalRungeKuttaIntegrator(ts);
+			// integrate
+			integrator.integrate(ode, start, p, duration, p_for_ode);
+		    }
+
+		    derivativeEvaluations += ode.evaluations;
+
+		    // if the dimension is equal to the max integer, this means that a calculation
+		    // of a probability of a configuration resulted in a value below 0 and the
+		    // run will be stopped
+		    if (ode.getDimension() == Integer.MAX_VALUE) {
+			return Double.NEGATIVE_INFINITY;
+		    }
 
-		// set the probabilities of the system being in a configuration again
-		for (int i = 0; i < p_for_ode.length; i++) {
-		    jointStateProbabilities.set(i, p_for_ode[i]);
+		    // set the probabilities of the system being in a configuration again
+		    jointStateProbabilities = p_for_ode;
 		}
 	    }
 
@@ -238,115 +345,93 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
     private double addLineages(StructuredNetworkEvent event, boolean first) {
 	List<NetworkEdge> incomingLines = event.lineagesAdded;
 	int sampleState = 0;
-	if (traitInput) {
-	    /*
-	     * If there is a typeTrait given as Input the model will take this trait as
-	     * types for the taxons
-	     */
-	    for (NetworkEdge l : incomingLines) {
-		activeLineages.add(l);
-		sampleState = (int) typeTraitInput.get().getValue(l.childNode.getTaxonLabel());
-	    }
-	} else {
-	    /*
-	     * If there is no trait given as Input, the model will simply assume that the
-	     * last value of the taxon name, the last value after a _, is an integer that
-	     * gives the type of that taxon
-	     */
-	    for (NetworkEdge l : incomingLines) {
-		activeLineages.add(l);
-		String sampleID = l.childNode.getTaxonLabel();
-		String[] splits = sampleID.split("_");
-		sampleState = Integer.parseInt(splits[splits.length - 1]); // samples types (or priors) should
-									   // eventually be specified in the XML
-	    }
+	for (NetworkEdge l : incomingLines) {
+	    activeLineages.add(l);
+	    sampleState = getSampleType(l);
+	}
+
+	// the new lineage is the last digit of the configurations
+	int newLineage = activeLineages.size() - 1;
+	if (newLineage + 1 >= typePowers.length) {
+	    System.err.println("Too many lineages to encode the configurations of the exact model");
+	    return Double.NEGATIVE_INFINITY;
+	}
+
+	if (scratch != null) {
+	    MappedDoubleArray added = MappedConfigurationSystem.addLineage(scratch, mappedProbabilities, types,
+		    sampleState);
+	    scratch.release(mappedProbabilities);
+	    mappedProbabilities = added;
+	    double prob = MappedConfigurationSystem.sum(mappedProbabilities);
+	    MappedConfigurationSystem.scale(mappedProbabilities, 1.0 / prob);
+	    return Math.log(prob);
 	}
 
 	int nrs = 0;
 	if (first)
 	    nrs = types;
 	else
-	    nrs = combination.size() * types;
+	    nrs = configurations.length * types;
 
-	Integer[][] newSums = new Integer[nrs][types];
-	Integer[] newSumsTot = new Integer[nrs];
+	long[] newConfigurations = new long[nrs];
+	double[] newJointStateProbabilities = new double[nrs];
 
 	// Add all new combinations of lineages
-	List<Double> newJointStateProbabilities = new ArrayList<>();
-	List<List<Integer>> newCombination = new ArrayList<>();
 	if (first) {
 	    for (int i = 0; i < types; i++) {
-		List<Integer> add = new ArrayList<>();
-		add.add(i);
-		if (i == sampleState)
-		    newJointStateProbabilities.add(1.0);
-		else
-		    newJointStateProbabilities.add(0.0);
-		newCombination.add(add);
-	    }
-
-	    // get the state in which lineages (n=1 in this case) are
-	    for (int i = 0; i < types; i++) {
-		newSumsTot[i] = 0;
-		for (int j = 0; j < types; j++) {
-		    if (j == i)
-			newSums[i][j] = 1;
-		    else
-			newSums[i][j] = 0;
-		}
+		newConfigurations[i] = i;
+		newJointStateProbabilities[i] = i == sampleState ? 1.0 : 0.0;
 	    }
 	} else {
 	    // Dublicate all entries by a factor of #types
-	    for (int i = 0; i < combination.size(); i++) {
-		List<Integer> addBase = combination.get(i);
-		for (int j = 0; j < types; j++) {
-		    ArrayList<Integer> newComb = new ArrayList<>(addBase);
-		    newComb.add(j);
-		    newCombination.add(newComb);
-		    if (j == sampleState) {
-			newJointStateProbabilities.add(jointStateProbabilities.get(i));
-		    } else
-			newJointStateProbabilities.add(0.0);
-		}
-		// calculate the new number of lineages in a state for each configuration
+	    for (int i = 0; i < configurations.length; i++) {
 		for (int j = 0; j < types; j++) {
-		    newSums[types * i + j][j] = sums[i][j] + 1;
-		    for (int l = 0; l < types; l++) {
-			if (l != j)
-			    newSums[types * i + j][l] = sums[i][l];
-		    }
+		    int c = types * i + j;
+		    newConfigurations[c] = configurations[i] + j * typePowers[newLineage];
+		    if (j == sampleState)
+			newJointStateProbabilities[c] = jointStateProbabilities[i];
 		}
 	    }
+	}
+	// set the old values (pre event) to the new ones
+	configurations = newConfigurations;
+	jointStateProbabilities = newJointStateProbabilities;
 
-	    // Get the number of pairs of lineages in each configuration
-	    for (int i = 0; i < nrs; i++) {
-		int news = 0;
-		for (int j = 0; j < types; j++) {
-		    double add = newSums[i][j] - 1;
-		    if (add > 0)
-			news += add;
+	if (lineageClass != null) {
+	    // the new lineage is exchangeable with lineages sampled at the same time in
+	    // the same type with the same segments, which are all in one class
+	    NetworkEdge added = activeLineages.get(newLineage);
+	    int newClass = -1;
+	    for (int l = 0; l < newLineage; l++) {
+		NetworkEdge other = activeLineages.get(l);
+		if (other.childNode.isLeaf() && other.childNode.getHeight() == added.childNode.getHeight()
+			&& getSampleType(other) == sampleState && other.hasSegments.equals(added.hasSegments)) {
+		    newClass = lineageClass[l];
+		    break;
 		}
-		newSumsTot[i] = news;
 	    }
-
+	    lineageClass = Arrays.copyOf(lineageClass, newLineage + 1);
+	    if (newClass == -1) {
+		lineageClass[newLineage] = nextClass++;
+	    } else {
+		lineageClass[newLineage] = newClass;
+		ConfigurationLumping lumped = ConfigurationLumping.merge(configurations, jointStateProbabilities,
+			types, lineageClass);
+		configurations = lumped.representatives;
+		jointStateProbabilities = lumped.p;
+	    }
 	}
-	// set the old values (pre event) to the new ones
-	combination = newCombination;
-	jointStateProbabilities = newJointStateProbabilities;
 
 	// do normalization
 	double prob = 0.0;
-	for (int i = 0; i < jointStateProbabilities.size(); i++)
-	    prob += jointStateProbabilities.get(i);
+	for (int i = 0; i < jointStateProbabilities.length; i++)
+	    prob += jointStateProbabilities[i];
 
-	for (int i = 0; i < jointStateProbabilities.size(); i++)
-	    jointStateProbabilities.set(i, jointStateProbabilities.get(i) / prob);
+	for (int i = 0; i < jointStateProbabilities.length; i++)
+	    jointStateProbabilities[i] /= prob;
 
 	updateConnectivityMatrix();
 
-	sums = newSums;
-	sumsTot = newSumsTot;
-
 	return Math.log(prob);
     }
 
@@ -371,6 +456,13 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 	    return Double.NaN;
 	}
 
+	int oldLineages = activeLineages.size();
+
+	// the daughter lineages are distinguished from the lineages they were
+	// exchangeable with
+	separateLineage(daughterIndex1);
+	separateLineage(daughterIndex2);
+
 	// check which index is large such that the removing starts
 	// with the one with the larger value
 	if (daughterIndex1 > daughterIndex2) {
@@ -388,59 +480,39 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 	}
 	activeLineages.add(event.lineagesAdded.get(0));
 
-	// calculate the number of combinations after the coalescent event
-	int nrs = combination.size() / types;
-
-	// newly initialize the number of lineages per configuration
-	Integer[][] newSums = new Integer[nrs][types];
-	Integer[] newSumsTot = new Integer[nrs];
-
-	// find all joint probabilities where the two lineages are in the same deme
-	List<Double> newProbability = new ArrayList<>();
-	List<List<Integer>> newCombination = new ArrayList<>();
 	double[] pairwiseCoalRate = new double[types];
-	int futureState = 0;
-	for (int i = 0; i < jointStateProbabilities.size(); i++) {
-	    // Checks if it is a configuration where both daughter lineages are in the same
-	    // state
-	    if (combination.get(i).get(daughterIndex1) == combination.get(i).get(daughterIndex2)) {
-		ArrayList<Integer> coalLoc = new ArrayList<>(combination.get(i));
-
-		newSums[futureState] = sums[i].clone();
-		newSums[futureState][combination.get(i).get(daughterIndex1)]--;
-		futureState++;
-
-		if (daughterIndex1 > daughterIndex2) {
-		    coalLoc.remove(daughterIndex1);
-		    coalLoc.remove(daughterIndex2);
-		} else {
-		    coalLoc.remove(daughterIndex2);
-		    coalLoc.remove(daughterIndex1);
+	if (scratch != null) {
+	    MappedDoubleArray coalesced = MappedConfigurationSystem.coalesce(scratch, mappedProbabilities, oldLineages,
+		    types, daughterIndex1, daughterIndex2, coalescent_rates, pairwiseCoalRate);
+	    scratch.release(mappedProbabilities);
+	    mappedProbabilities = coalesced;
+	} else {
+	    // calculate the number of combinations after the coalescent event
+	    int nrs = configurations.length / types;
+
+	    // find all joint probabilities where the two lineages are in the same deme
+	    double[] newProbability = new double[nrs];
+	    long[] newConfigurations = new long[nrs];
+	    int futureState = 0;
+	    for (int i = 0; i < configurations.length; i++) {
+		// Checks if it is a configuration where both daughter lineages are in the same
+		// state
+		int s = getType(configurations[i], daughterIndex1);
+		if (s == getType(configurations[i], daughterIndex2)) {
+		    newConfigurations[futureState] = removeLineages(configurations[i], oldLineages, daughterIndex1,
+			    daughterIndex2) + s * typePowers[oldLineages - 2];
+
+		    newProbability[futureState] = coalescent_rates[s] * jointStateProbabilities[i];
+		    pairwiseCoalRate[s] += coalescent_rates[s] * jointStateProbabilities[i];
+		    futureState++;
 		}
-		coalLoc.add(combination.get(i).get(daughterIndex1));
-		newCombination.add(coalLoc);
-
-		newProbability
-			.add(coalescent_rates[combination.get(i).get(daughterIndex1)] * jointStateProbabilities.get(i));
-		pairwiseCoalRate[combination.get(i)
-			.get(daughterIndex1)] += coalescent_rates[combination.get(i).get(daughterIndex1)]
-				* jointStateProbabilities.get(i);
 	    }
-	}
 
-	combination = newCombination;
-	jointStateProbabilities = newProbability;
+	    configurations = newConfigurations;
+	    jointStateProbabilities = newProbability;
+	    removeLineageClasses(daughterIndex1, daughterIndex2, 1);
 
-	updateConnectivityMatrix();
-
-	for (int i = 0; i < nrs; i++) {
-	    int news = 0;
-	    for (int j = 0; j < types; j++) {
-		int add = newSums[i][j] - 1;
-		if (add > 0)
-		    news += add;
-	    }
-	    newSumsTot[i] = news;
+	    updateConnectivityMatrix();
 	}
 
 	// do normalization
@@ -450,8 +522,7 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 
 	// TODO multiply here by 0.5 if want to match StructuredCoal, do nothing to
 	// match with CoalRe
-	for (int i = 0; i < jointStateProbabilities.size(); i++)
-	    jointStateProbabilities.set(i, jointStateProbabilities.get(i) / prob);
+	normalize(prob);
 
 	DoubleMatrix pVec = new DoubleMatrix(types);
 
@@ -460,8 +531,6 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 
 	nodeStateProbabilities[nodes.indexOf(coalLines.get(0).parentNode)] = pVec;
 
-	sums = newSums;
-	sumsTot = newSumsTot;
 	return Math.log(prob);
     }
 
@@ -492,6 +561,14 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 	    return Double.NaN;
 	}
 
+	int oldLineages = activeLineages.size();
+	if (oldLineages + 1 >= typePowers.length) {
+	    System.err.println("Too many lineages to encode the configurations of the exact model");
+	    return Double.NEGATIVE_INFINITY;
+	}
+
+	separateLineage(daughterIndex);
+
 	// remove daughter lineage from active lineages
 	activeLineages.remove(daughterIndex);
 
@@ -499,66 +576,48 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 	activeLineages.add(event.lineagesAdded.get(0));
 	activeLineages.add(event.lineagesAdded.get(1));
 
-	// calculate the number of combinations after the reassortment event
-	int nrs = combination.size() * types;
-
-	// newly initialize the number of lineages per configuration
-	Integer[][] newSums = new Integer[nrs][types];
-	Integer[] newSumsTot = new Integer[nrs];
-
 	double[] typeProb = new double[types];
-	// probability update for reassortment event
-	List<Double> newProbability = new ArrayList<>();
-	List<List<Integer>> newCombination = new ArrayList<>();
-	int futureState = 0;
-	for (int i = 0; i < jointStateProbabilities.size(); i++) {
-	    for (int s = 0; s < types; s++) {
-		ArrayList<Integer> reassortLoc = new ArrayList<Integer>(combination.get(i));
-		if (s == combination.get(i).get(daughterIndex)) {
-		    newSums[futureState] = sums[i].clone();
-		    newSums[futureState][s]++;
-		    futureState++;
-
-		    reassortLoc.remove(daughterIndex);
-		    reassortLoc.add(s);
-		    reassortLoc.add(s);
-		    newCombination.add(reassortLoc);
-
-		    double tmp = reassortment_rates[s] * Math.pow(0.5, event.segsSortedLeft)
-			    * Math.pow(0.5, (event.segsToSort - event.segsSortedLeft)) * jointStateProbabilities.get(i)
-			    * 2.0;
-
-		    newProbability.add(tmp);
-		    typeProb[s] += tmp;
-		} else {
-		    newSums[futureState] = sums[i].clone();
-		    newSums[futureState][s]++;
+	if (scratch != null) {
+	    double factor = Math.pow(0.5, event.segsSortedLeft)
+		    * Math.pow(0.5, (event.segsToSort - event.segsSortedLeft)) * 2.0;
+	    MappedDoubleArray reassorted = MappedConfigurationSystem.reassort(scratch, mappedProbabilities,
+		    oldLineages, types, daughterIndex, reassortment_rates, factor, typeProb);
+	    scratch.release(mappedProbabilities);
+	    mappedProbabilities = reassorted;
+	} else {
+	    // calculate the number of combinations after the reassortment event
+	    int nrs = configurations.length * types;
+
+	    // probability update for reassortment event
+	    double[] newProbability = new double[nrs];
+	    long[] newConfigurations = new long[nrs];
+	    int futureState = 0;
+	    for (int i = 0; i < configurations.length; i++) {
+		int daughterType = getType(configurations[i], daughterIndex);
+		// the first parent lineage keeps the type of the daughter lineage
+		long base = removeLineages(configurations[i], oldLineages, daughterIndex, -1)
+			+ daughterType * typePowers[oldLineages - 1];
+		for (int s = 0; s < types; s++) {
+		    newConfigurations[futureState] = base + s * typePowers[oldLineages];
+
+		    if (s == daughterType) {
+			double tmp = reassortment_rates[s] * Math.pow(0.5, event.segsSortedLeft)
+				* Math.pow(0.5, (event.segsToSort - event.segsSortedLeft)) * jointStateProbabilities[i]
+				* 2.0;
+
+			newProbability[futureState] = tmp;
+			typeProb[s] += tmp;
+		    }
 		    futureState++;
-
-		    reassortLoc.remove(daughterIndex);
-		    reassortLoc.add(combination.get(i).get(daughterIndex));
-		    reassortLoc.add(s);
-		    newCombination.add(reassortLoc);
-
-		    newProbability.add(0.0);
 		}
 	    }
-	}
-
-	combination = newCombination;
 
-	jointStateProbabilities = newProbability;
+	    configurations = newConfigurations;
 
-	updateConnectivityMatrix();
+	    jointStateProbabilities = newProbability;
+	    removeLineageClasses(daughterIndex, -1, 2);
 
-	for (int i = 0; i < nrs; i++) {
-	    int news = 0;
-	    for (int j = 0; j < types; j++) {
-		int add = newSums[i][j] - 1;
-		if (add > 0)
-		    news += add;
-	    }
-	    newSumsTot[i] = news;
+	    updateConnectivityMatrix();
 	}
 
 	// do normalization
@@ -566,8 +625,7 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 	for (int i = 0; i < typeProb.length; i++)
 	    prob += typeProb[i];
 
-	for (int i = 0; i < jointStateProbabilities.size(); i++)
-	    jointStateProbabilities.set(i, jointStateProbabilities.get(i) / prob);
+	normalize(prob);
 
 	DoubleMatrix pVec = new DoubleMatrix(types);
 
@@ -576,37 +634,108 @@ public class ExactStructuredCoalescentNetwork extends StructuredNetworkDistribut
 
 	nodeStateProbabilities[nodes.indexOf(event.lineagesRemoved.get(0).parentNode)] = pVec;
 
-	sums = newSums;
-	sumsTot = newSumsTot;
-
 	return Math.log(prob);
 
     }
 
     private void updateConnectivityMatrix() {
-	// newly build the connectivity matrix (how to transition between configurations
-	connectivity = new Integer[combination.size()][combination.size()];
-	// build the connectivity matrix
-	for (int a = 0; a < combination.size(); a++) {
-	    for (int b = 0; b < combination.size(); b++) {
-		int diff = 0;
-		int[] directs = new int[2];
-		List<Integer> comb1 = combination.get(a);
-		List<Integer> comb2 = combination.get(b);
-
-		for (int i = 0; i < comb1.size(); i++) {
-		    int d = comb1.get(i) - comb2.get(i);
-		    if (d != 0) {
-			diff++;
-			directs[0] = comb1.get(i);
-			directs[1] = comb2.get(i);
-		    }
-		}
-		if (diff == 1) {
-		    connectivity[a][b] = migration_map[directs[0]][directs[1]];
-		}
+	// configurations that differ in the type of one lineage are connected by
+	// migration, store these transitions as a sparse matrix
+	boolean lumped = lineageClass != null && !ConfigurationLumping.isTrivial(lineageClass);
+	transitions = new ConfigurationTransitions(configurations, activeLineages.size(), types, migration_map,
+		lumped ? lineageClass : null);
+    }
+
+    /**
+     * divides the configuration probabilities by prob
+     */
+    private void normalize(double prob) {
+	if (scratch != null) {
+	    MappedConfigurationSystem.scale(mappedProbabilities, 1.0 / prob);
+	    return;
+	}
+	for (int i = 0; i < jointStateProbabilities.length; i++)
+	    jointStateProbabilities[i] /= prob;
+    }
+
+    /**
+     * Separates lineage l from its class before it takes part in an event,
+     * splitting the orbits of the class
+     */
+    private void separateLineage(int l) {
+	if (lineageClass == null)
+	    return;
+	ConfigurationLumping lumped = ConfigurationLumping.separate(configurations, jointStateProbabilities, types,
+		lineageClass, l);
+	configurations = lumped.representatives;
+	jointStateProbabilities = lumped.p;
+	lineageClass[l] = nextClass++;
+    }
+
+    /**
+     * Removes the classes of lineages l1 and l2 (-1 if only one lineage is
+     * removed) and appends new classes for the lineages added at an event.
+     * The lineages involved are in classes of their own, so the order of the
+     * types within the remaining classes does not change.
+     */
+    private void removeLineageClasses(int l1, int l2, int added) {
+	if (lineageClass == null)
+	    return;
+	int[] newClass = new int[activeLineages.size()];
+	int position = 0;
+	for (int l = 0; l < lineageClass.length; l++) {
+	    if (l != l1 && l != l2)
+		newClass[position++] = lineageClass[l];
+	}
+	for (int i = 0; i < added; i++)
+	    newClass[position++] = nextClass++;
+	lineageClass = newClass;
+    }
+
+    /**
+     * type in which the lineage was sampled
+     */
+    private int getSampleType(NetworkEdge l) {
+	if (traitInput) {
+	    /*
+	     * If there is a typeTrait given as Input the model will take this trait as
+	     * types for the taxons
+	     */
+	    return (int) typeTraitInput.get().getValue(l.childNode.getTaxonLabel());
+	}
+	/*
+	 * If there is no trait given as Input, the model will simply assume that the
+	 * last value of the taxon name, the last value after a _, is an integer that
+	 * gives the type of that taxon
+	 */
+	String sampleID = l.childNode.getTaxonLabel();
+	String[] splits = sampleID.split("_");
+	return Integer.parseInt(splits[splits.length - 1]); // samples types (or priors) should
+							    // eventually be specified in the XML
+    }
+
+    /**
+     * type of lineage l in a configuration
+     */
+    private int getType(long configuration, int l) {
+	return (int) ((configuration / typePowers[l]) % types);
+    }
+
+    /**
+     * removes the digits of lineages l1 and l2 (-1 if only one lineage is
+     * removed) from a configuration of the given number of lineages and shifts
+     * the remaining ones down
+     */
+    private long removeLineages(long configuration, int lineages, int l1, int l2) {
+	long newConfiguration = 0;
+	int position = 0;
+	for (int l = 0; l < lineages; l++) {
+	    if (l != l1 && l != l2) {
+		newConfiguration += getType(configuration, l) * typePowers[position];
+		position++;
 	    }
 	}
+	return newConfiguration;
     }
 
 
@@ -0,0 +1,328 @@
+package score.distribution;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.tree.TraitSet;
+import beast.mascot.dynamics.Constant;
+import coalre.network.Network;
+import coalre.network.NetworkNode;
+import score.dynamics.ConstantReassortment;
+import score.simulator.SimulateStructureCoalescentNetwork;
+
+/**
+ * Compares the SCORE approximation against the exact structured coalescent
+ * with reassortment over a grid of rates and SCORE integration settings. The
+ * networks are either simulated or read from a file with one extended Newick
+ * string per line. Types of the samples are taken from the taxon names, which
+ * have to end with _type (the convention used when no type trait is given).
+ * Every network is evaluated on its own thread and one row per network, rates
+ * and integration setting is written to a tab separated file.
+ */
+public class LikelihoodComparison {
+
+	private static class ComparisonOptions {
+		File networkFile;
+		File outFile;
+		int networks = 10;
+		int taxa = 3;
+		int types = 2;
+		int segments = 3;
+		double[] Ne = { 1.0 };
+		double[] migration = { 0.1, 1.0 };
+		double[] reassortment = { 0.1, 1.0 };
+		double[] epsilon = { 1e-6, 1e-4 };
+		double[] maxStep = { 0.1, 1.0 };
+		double timeStep = 0.001;
+		boolean uniformization = false;
+		int threads = 1;
+
+		@Override
+		public String toString() {
+			return "Active options:\n" + "Network file: " + (networkFile == null ? "simulate " + networks : networkFile)
+					+ "\n" + "Output file: " + (outFile == null ? "stdout" : outFile);
+		}
+	}
+
+	private final ComparisonOptions options;
+
+	public LikelihoodComparison(ComparisonOptions options) throws Exception {
+		this.options = options;
+		System.err.println(options + "\n");
+
+		// simulation is not thread safe, get all networks first
+		List<String> networks = options.networkFile != null ? readNetworks(options.networkFile) : simulateNetworks();
+
+		ExecutorService executor = Executors.newFixedThreadPool(options.threads);
+		List<Future<List<String>>> results = new ArrayList<>();
+		for (int n = 0; n < networks.size(); n++) {
+			final int index = n;
+			final String newick = networks.get(n);
+			Callable<List<String>> task = () -> compare(index, newick);
+			results.add(executor.submit(task));
+		}
+
+		try (PrintStream out = options.outFile == null ? System.out : new PrintStream(options.outFile)) {
+			out.println("network\ttaxa\treassortments\tNe\tmigration\treassortment\tepsilon\tmaxStep\texactLogP"
+					+ "\tscoreLogP\terror\texactMs\tscoreMs\texactEvaluations\tscoreSteps");
+			for (Future<List<String>> result : results) {
+				for (String row : result.get())
+					out.println(row);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * one row for each rate and integration setting
+	 */
+	private List<String> compare(int index, String newick) {
+		Network network = new Network(newick);
+		int taxa = network.getLeafNodes().size();
+		long reassortments = network.getNodes().stream().filter(NetworkNode::isReassortment).count();
+		TraitSet typeTrait = getTypeTrait(network);
+
+		List<String> rows = new ArrayList<>();
+		for (double Ne : options.Ne) {
+			for (double migration : options.migration) {
+				for (double reassortment : options.reassortment) {
+					StructuredNetworkIntervals intervals = new StructuredNetworkIntervals();
+					intervals.initByName("network", network);
+
+					ExactStructuredCoalescentNetwork exact = new ExactStructuredCoalescentNetwork();
+					exact.initByName("networkIntervals", intervals, "typeTrait", typeTrait, "dim",
+							new IntegerParameter(options.types + ""), "Ne", parameter(Ne, options.types),
+							"migrationRate", parameter(migration, options.types * (options.types - 1)),
+							"reassortmentRate", parameter(reassortment, options.types), "timeStep",
+							new RealParameter(options.timeStep + ""), "uniformization", options.uniformization);
+					long start = System.nanoTime();
+					double exactLogP = exact.calculateLogP();
+					double exactMs = (System.nanoTime() - start) / 1e6;
+
+					for (double epsilon : options.epsilon) {
+						for (double maxStep : options.maxStep) {
+							Constant constant = new Constant();
+							constant.initByName("dimension", options.types, "Ne", parameter(Ne, options.types),
+									"backwardsMigration", parameter(migration, options.types * (options.types - 1)),
+									"typeTrait", typeTrait, "fromBeauti", false);
+							ConstantReassortment dynamics = new ConstantReassortment();
+							dynamics.initByName("structuredCoalescentDynamics", constant, "reassortmentRates",
+									parameter(reassortment, options.types));
+
+							SCORE score = new SCORE();
+							score.initByName("networkIntervals", intervals, "dynamics", dynamics, "epsilon", epsilon,
+									"maxStep", maxStep);
+							long steps = score.getIntegrationSteps();
+							start = System.nanoTime();
+							double scoreLogP = score.calculateLogP();
+							double scoreMs = (System.nanoTime() - start) / 1e6;
+							steps = score.getIntegrationSteps() - steps;
+
+							rows.add(index + "\t" + taxa + "\t" + reassortments + "\t" + Ne + "\t" + migration
+									+ "\t" + reassortment + "\t" + epsilon + "\t" + maxStep + "\t" + exactLogP + "\t"
+									+ scoreLogP + "\t" + (scoreLogP - exactLogP) + "\t" + exactMs + "\t" + scoreMs
+									+ "\t" + exact.derivativeEvaluations + "\t" + steps);
+						}
+					}
+				}
+			}
+		}
+		return rows;
+	}
+
+	private List<String> simulateNetworks() {
+		List<Taxon> taxa = new ArrayList<>();
+		StringBuilder types = new StringBuilder();
+		for (int i = 0; i < options.taxa; i++) {
+			String name = "t" + i + "_" + (i % options.types);
+			taxa.add(new Taxon(name));
+			types.append(i > 0 ? "," : "").append(name).append("=").append(i % options.types);
+		}
+		TaxonSet taxonSet = new TaxonSet(taxa);
+		TraitSet typeTrait = new TraitSet();
+		typeTrait.initByName("traitname", "type", "taxa", taxonSet, "value", types.toString());
+
+		// simulate at the first point of the rate grid
+		List<String> networks = new ArrayList<>();
+		for (int n = 0; n < options.networks; n++) {
+			SimulateStructureCoalescentNetwork simulator = new SimulateStructureCoalescentNetwork();
+			simulator.initByName("typeTrait", typeTrait, "nSegments", options.segments, "enableSegmentTreeUpdate",
+					false, "coalescentRate", parameter(1.0 / options.Ne[0], options.types), "migrationRate",
+					parameter(options.migration[0], options.types * (options.types - 1)), "reassortmentRate",
+					parameter(options.reassortment[0], options.types), "ignoreMigrationNodes", true);
+			networks.add(simulator.getExtendedNewick());
+		}
+		return networks;
+	}
+
+	private static List<String> readNetworks(File file) throws IOException {
+		List<String> networks = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				// also accept the tree lines of network log files
+				if (line.startsWith("tree") && line.contains("="))
+					line = line.substring(line.indexOf('=') + 1).trim();
+				if (line.startsWith("("))
+					networks.add(line);
+			}
+		}
+		return networks;
+	}
+
+	private TraitSet getTypeTrait(Network network) {
+		List<Taxon> taxa = new ArrayList<>();
+		StringBuilder types = new StringBuilder();
+		for (NetworkNode leaf : network.getLeafNodes()) {
+			String name = leaf.getTaxonLabel();
+			String[] splits = name.split("_");
+			taxa.add(new Taxon(name));
+			types.append(types.length() > 0 ? "," : "").append(name).append("=").append(splits[splits.length - 1]);
+		}
+		TraitSet typeTrait = new TraitSet();
+		typeTrait.initByName("traitname", "type", "taxa", new TaxonSet(taxa), "value", types.toString());
+		return typeTrait;
+	}
+
+	private static RealParameter parameter(double value, int dimension) {
+		StringBuilder values = new StringBuilder();
+		for (int i = 0; i < dimension; i++)
+			values.append(i > 0 ? " " : "").append(value);
+		return new RealParameter(values.toString());
+	}
+
+	private static double[] parseGrid(String arg) {
+		String[] splits = arg.split(",");
+		double[] grid = new double[splits.length];
+		for (int i = 0; i < splits.length; i++)
+			grid[i] = Double.parseDouble(splits[i]);
+		return grid;
+	}
+
+	private static final String helpMessage = "LikelihoodComparison - compares the SCORE approximation to the exact "
+			+ "structured coalescent with reassortment.\n" + "\n"
+			+ "Usage: LikelihoodComparison [options] [networkFile]\n" + "\n" + "Option                   Description\n"
+			+ "--------------------------------------------------------------\n"
+			+ "-help                    Display usage info.\n"
+			+ "-networks N              Number of networks to simulate if no network file is given (default 10).\n"
+			+ "-taxa N                  Number of taxa of the simulated networks (default 3).\n"
+			+ "-types N                 Number of types (default 2).\n"
+			+ "-segments N              Number of segments of the simulated networks (default 3).\n"
+			+ "-Ne x,y,...              Grid of effective population sizes (default 1).\n"
+			+ "-migration x,y,...       Grid of backwards migration rates (default 0.1,1).\n"
+			+ "-reassortment x,y,...    Grid of reassortment rates (default 0.1,1).\n"
+			+ "-epsilon x,y,...         Grid of SCORE epsilon values (default 1e-6,1e-4).\n"
+			+ "-maxStep x,y,...         Grid of SCORE maxStep values (default 0.1,1).\n"
+			+ "-timeStep x              RK4 step size of the exact model (default 0.001).\n"
+			+ "-uniformization          Use uniformization instead of RK4 for the exact model.\n"
+			+ "-threads N               Number of networks evaluated in parallel (default 1).\n"
+			+ "-out file                Output file.\n" + "\n"
+			+ "Networks are simulated at the first value of each rate grid.\n"
+			+ "If no output file is specified, output is written to stdout.";
+
+	public static void printUsageAndExit() {
+		System.out.println(helpMessage);
+		System.exit(0);
+	}
+
+	public static void printUsageAndError(String errMsg) {
+		System.err.println(errMsg);
+		System.err.println(helpMessage);
+		System.exit(1);
+	}
+
+	public static void getCLIOptions(String[] args, ComparisonOptions options) {
+		int i = 0;
+		while (i < args.length && args[i].startsWith("-")) {
+			if (!args[i].equals("-help") && !args[i].equals("-uniformization") && args.length <= i + 1)
+				printUsageAndError(args[i] + " must be followed by a value.");
+			try {
+				switch (args[i]) {
+				case "-help":
+					printUsageAndExit();
+					break;
+				case "-networks":
+					options.networks = Integer.parseInt(args[++i]);
+					break;
+				case "-taxa":
+					options.taxa = Integer.parseInt(args[++i]);
+					break;
+				case "-types":
+					options.types = Integer.parseInt(args[++i]);
+					break;
+				case "-segments":
+					options.segments = Integer.parseInt(args[++i]);
+					break;
+				case "-Ne":
+					options.Ne = parseGrid(args[++i]);
+					break;
+				case "-migration":
+					options.migration = parseGrid(args[++i]);
+					break;
+				case "-reassortment":
+					options.reassortment = parseGrid(args[++i]);
+					break;
+				case "-epsilon":
+					options.epsilon = parseGrid(args[++i]);
+					break;
+				case "-maxStep":
+					options.maxStep = parseGrid(args[++i]);
+					break;
+				case "-timeStep":
+					options.timeStep = Double.parseDouble(args[++i]);
+					break;
+				case "-uniformization":
+					options.uniformization = true;
+					break;
+				case "-threads":
+					options.threads = Integer.parseInt(args[++i]);
+					break;
+				case "-out":
+					options.outFile = new File(args[++i]);
+					break;
+				default:
+					printUsageAndError("Unrecognised command line option '" + args[i] + "'.");
+				}
+			} catch (NumberFormatException e) {
+				printUsageAndError("Error parsing the value of " + args[i - 1] + ".");
+			}
+			i += 1;
+		}
+
+		if (i < args.length)
+			options.networkFile = new File(args[i]);
+	}
+
+	public static void main(String[] args) {
+		ComparisonOptions options = new ComparisonOptions();
+		getCLIOptions(args, options);
+
+		try {
+			new LikelihoodComparison(options);
+		} catch (FileNotFoundException e) {
+			printUsageAndError("Error: " + e.getMessage());
+		} catch (Exception e) {
+			System.err.println("Error: " + e.getMessage());
+			e.printStackTrace();
+			System.err.println();
+			System.err.println(helpMessage);
+			System.exit(1);
+		}
+	}
+}
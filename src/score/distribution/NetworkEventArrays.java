@@ -0,0 +1,55 @@
+package score.distribution;
+
+import java.util.Arrays;
+
+import coalre.network.NetworkEdge;
+import coalre.network.NetworkNode;
+
+/**
+ * Struct of arrays view of the network event list, with the events in order
+ * of increasing time. Lineages (edges) are referred to by ids
+ * 0 ... lineageCount-1, -1 marks a missing lineage.
+ */
+public class NetworkEventArrays {
+
+	public static final byte SAMPLE = 0, COALESCENCE = 1, REASSORTMENT = 2;
+
+	public int size;
+	public double[] time = new double[0];
+	public byte[] type = new byte[0];
+	// lineages started and ended by each event, a reassortment adds two and a
+	// coalescence removes two lineages
+	public int[] added1 = new int[0], added2 = new int[0];
+	public int[] removed1 = new int[0], removed2 = new int[0];
+	public int[] segsToSort = new int[0], segsSortedLeft = new int[0];
+	// number of lineages after each event
+	public int[] lineages = new int[0];
+	public double[] totalReassortmentObsProb = new double[0];
+	// node of each event
+	public NetworkNode[] node = new NetworkNode[0];
+
+	public int lineageCount;
+	// number of segments and edge of each lineage
+	public int[] segments = new int[0];
+	public NetworkEdge[] edges = new NetworkEdge[0];
+
+	void ensureCapacity(int events, int lineageIds) {
+		if (time.length < events) {
+			time = Arrays.copyOf(time, events);
+			type = Arrays.copyOf(type, events);
+			added1 = Arrays.copyOf(added1, events);
+			added2 = Arrays.copyOf(added2, events);
+			removed1 = Arrays.copyOf(removed1, events);
+			removed2 = Arrays.copyOf(removed2, events);
+			segsToSort = Arrays.copyOf(segsToSort, events);
+			segsSortedLeft = Arrays.copyOf(segsSortedLeft, events);
+			lineages = Arrays.copyOf(lineages, events);
+			totalReassortmentObsProb = Arrays.copyOf(totalReassortmentObsProb, events);
+			node = Arrays.copyOf(node, events);
+		}
+		if (segments.length < lineageIds) {
+			segments = Arrays.copyOf(segments, lineageIds);
+			edges = Arrays.copyOf(edges, lineageIds);
+		}
+	}
+}
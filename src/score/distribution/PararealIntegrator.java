@@ -0,0 +1,379 @@
+package score.distribution;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import coalre.network.NetworkEdge;
+import score.math.Euler2ndOrder;
+
+/**
+ * Experimental parareal (parallel-in-time) evaluation of the SCORE likelihood.
+ * A coarse propagator taking a single Euler2ndOrder step per interval predicts
+ * the lineage state probabilities at every interval boundary, after which the
+ * fine propagator is run concurrently on all intervals and the predictions are
+ * corrected until they change by less than the tolerance. The likelihood is
+ * then the sum of the fine interval and event contributions, which agrees with
+ * the sequential likelihood up to the tolerance. After iteration k the first k
+ * intervals start from exact states, such that with a tolerance of 0 the
+ * iterations continue until the result equals the sequential one.
+ */
+public class PararealIntegrator {
+
+	/**
+	 * One integration interval and the network event (or rate shift) at its end.
+	 */
+	static class Segment {
+		double duration;
+		int ratesInterval;
+		int lineages;
+		List<Integer> n_segs;
+		// null if the interval ends at a rate shift
+		StructuredNetworkEvent event;
+		int daughterIndex1 = -1;
+		int daughterIndex2 = -1;
+		int sampleState;
+	}
+
+	/**
+	 * Lineage state probabilities after a segment and the log likelihood
+	 * contribution of the segment. The state is null if the event at the end
+	 * of the segment is impossible from the state it started from.
+	 */
+	static class Result {
+		double[] state;
+		double logP;
+	}
+
+	/**
+	 * Euler integrator owned by a single worker thread.
+	 */
+	static class Propagator {
+		Euler2ndOrder euler = new Euler2ndOrder();
+		int capacity = -1;
+	}
+
+	private final SCORE score;
+	private final ForkJoinPool pool;
+	private final double tolerance;
+
+	private final ThreadLocal<Propagator> fine = ThreadLocal.withInitial(Propagator::new);
+	private final ThreadLocal<Propagator> coarse = ThreadLocal.withInitial(Propagator::new);
+
+	private List<Segment> segments;
+
+	int iterations;
+
+	public PararealIntegrator(SCORE score, ForkJoinPool pool, double tolerance) {
+		this.score = score;
+		this.pool = pool;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Returns the log likelihood, or NaN if the parareal iterations failed
+	 * and the likelihood has to be calculated sequentially.
+	 */
+	public double calculateLogP(List<StructuredNetworkEvent> networkEventList) {
+		if (!buildSegments(networkEventList))
+			return Double.NaN;
+
+		int N = segments.size();
+
+		// coarse prediction of the states at all interval boundaries
+		double[][] U = new double[N + 1][];
+		U[0] = new double[0];
+		Result[] gOld = new Result[N];
+		for (int n = 0; n < N; n++) {
+			gOld[n] = propagate(n, U[n], false);
+			U[n + 1] = gOld[n].state;
+			if (U[n + 1] == null)
+				return n == 0 ? Double.NEGATIVE_INFINITY : Double.NaN;
+		}
+
+		Result[] f = new Result[N];
+		for (iterations = 0; iterations < N; iterations++) {
+			final double[][] start = U;
+			final int first = iterations;
+
+			// fine propagation of all intervals that are not yet exact
+			List<Callable<Result>> tasks = new ArrayList<>(N - first);
+			for (int n = first; n < N; n++) {
+				final int segment = n;
+				tasks.add(() -> propagate(segment, start[segment], true));
+			}
+			try {
+				List<Future<Result>> results = pool.invokeAll(tasks);
+				for (int n = first; n < N; n++)
+					f[n] = results.get(n - first).get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
+			}
+			// the first interval started from an exact state
+			if (f[first].state == null)
+				return Double.NEGATIVE_INFINITY;
+
+			// sequential coarse correction
+			double[][] Unew = new double[N + 1][];
+			for (int n = 0; n <= first; n++)
+				Unew[n] = U[n];
+			double change = 0.0;
+			for (int n = first; n < N; n++) {
+				Result g = propagate(n, Unew[n], false);
+				if (g.state == null || f[n].state == null)
+					return Double.NaN;
+				double[] next;
+				if (n == first) {
+					// started from an exact state, the correction would only
+					// add rounding errors
+					next = f[n].state;
+				} else {
+					next = new double[g.state.length];
+					for (int i = 0; i < next.length; i++)
+						next[i] = g.state[i] + f[n].state[i] - gOld[n].state[i];
+					project(next);
+				}
+
+				for (int i = 0; i < next.length; i++)
+					change = Math.max(change, Math.abs(next[i] - U[n + 1][i]));
+
+				Unew[n + 1] = next;
+				gOld[n] = g;
+			}
+			U = Unew;
+
+			if (!(change < Double.POSITIVE_INFINITY))
+				return Double.NaN;
+			if (change < tolerance)
+				break;
+		}
+
+		double logP = 0.0;
+		for (int n = 0; n < N; n++)
+			logP += f[n].logP;
+
+		return logP;
+	}
+
+	/**
+	 * Follows the event loop of SCORE without computing any probabilities to get
+	 * the lineages that are active in each interval.
+	 */
+	private boolean buildSegments(List<StructuredNetworkEvent> networkEventList) {
+		segments = new ArrayList<>();
+		List<NetworkEdge> activeLineages = new ArrayList<>();
+
+		int networkInterval = 0, ratesInterval = 0;
+		double nextEventTime = 0.0;
+		double prevEventTime = 0.0;
+
+		StructuredNetworkEvent nextNetworkEvent = networkEventList.get(networkInterval);
+		double nextNetworkEventTime = nextNetworkEvent.time;
+		double nextRateShift = score.getEpochEnd(ratesInterval);
+
+		while (true) {
+			nextEventTime = Math.min(nextNetworkEventTime, nextRateShift);
+
+			Segment segment = new Segment();
+			segment.duration = nextEventTime > 0 ? nextEventTime - prevEventTime : 0.0;
+			segment.ratesInterval = ratesInterval;
+			segment.lineages = activeLineages.size();
+			segment.n_segs = new ArrayList<>();
+			for (NetworkEdge l : activeLineages)
+				segment.n_segs.add(l.hasSegments.cardinality());
+			segments.add(segment);
+
+			if (nextNetworkEventTime <= nextRateShift) {
+				segment.event = nextNetworkEvent;
+				switch (nextNetworkEvent.type) {
+				case SAMPLE:
+					for (NetworkEdge l : nextNetworkEvent.lineagesAdded) {
+						activeLineages.add(l);
+						segment.sampleState = score.getSampleState(l);
+					}
+					break;
+
+				case COALESCENCE:
+					if (nextNetworkEvent.lineagesRemoved.size() != 2)
+						return false;
+					segment.daughterIndex1 = activeLineages.indexOf(nextNetworkEvent.lineagesRemoved.get(0));
+					segment.daughterIndex2 = activeLineages.indexOf(nextNetworkEvent.lineagesRemoved.get(1));
+					if (segment.daughterIndex1 == -1 || segment.daughterIndex2 == -1)
+						return false;
+					activeLineages.remove(nextNetworkEvent.lineagesRemoved.get(0));
+					activeLineages.remove(nextNetworkEvent.lineagesRemoved.get(1));
+					activeLineages.add(nextNetworkEvent.lineagesAdded.get(0));
+					break;
+
+				case REASSORTMENT:
+					if (nextNetworkEvent.lineagesRemoved.size() != 1 || nextNetworkEvent.lineagesAdded.size() != 2)
+						return false;
+					segment.daughterIndex1 = activeLineages.indexOf(nextNetworkEvent.lineagesRemoved.get(0));
+					if (segment.daughterIndex1 == -1)
+						return false;
+					activeLineages.remove(segment.daughterIndex1);
+					activeLineages.add(nextNetworkEvent.lineagesAdded.get(0));
+					activeLineages.add(nextNetworkEvent.lineagesAdded.get(1));
+					break;
+				}
+
+				networkInterval++;
+				if (networkInterval >= networkEventList.size())
+					break;
+				nextNetworkEvent = networkEventList.get(networkInterval);
+				nextNetworkEventTime = nextNetworkEvent.time;
+			} else {
+				ratesInterval++;
+				nextRateShift += score.getEpochDuration(ratesInterval);
+			}
+			prevEventTime = nextEventTime;
+		}
+		return true;
+	}
+
+	/**
+	 * Integrates the lineage state probabilities over segment n starting from
+	 * state and applies the event at the end of the segment.
+	 */
+	private Result propagate(int n, double[] state, boolean useFine) {
+		Segment segment = segments.get(n);
+		int types = score.types;
+		int length = segment.lineages * types;
+
+		double[] p = new double[length + 1];
+		System.arraycopy(state, 0, p, 0, length);
+
+		if (segment.duration > 0 && segment.lineages > 0) {
+			Propagator propagator = useFine ? fine.get() : coarse.get();
+			if (propagator.capacity < length + 1) {
+				propagator.capacity = 2 * (length + 1);
+				propagator.euler.setup(propagator.capacity, types, score.epsilonInput.get(),
+						score.maxStepInput.get());
+			}
+			propagator.euler.setObservability(score.observability);
+			propagator.euler.setUpDynamics(score.coalescentRateTable, score.migrationRateTable,
+					score.reassortmentRateTable, score.indicatorTable, score.rateShiftTable);
+			if (useFine)
+				propagator.euler.initAndcalculateValues(segment.ratesInterval, segment.lineages, segment.duration,
+						p, length + 1, segment.n_segs, null);
+			else
+				propagator.euler.singleStep(segment.ratesInterval, segment.lineages, segment.duration, p,
+						length + 1, segment.n_segs);
+		}
+
+		Result result = new Result();
+		result.logP = p[length];
+		if (segment.event == null) {
+			result.state = new double[length];
+			System.arraycopy(p, 0, result.state, 0, length);
+			return result;
+		}
+
+		int ratesInterval = Math.min(segment.ratesInterval, score.coalescentRateTable.length - 1);
+		switch (segment.event.type) {
+		case SAMPLE:
+			result.state = new double[length + types];
+			System.arraycopy(p, 0, result.state, 0, length);
+			result.state[length + segment.sampleState] = 1.0;
+			break;
+
+		case COALESCENCE: {
+			double[] coalescentRates = score.coalescentRateTable[ratesInterval];
+			double[] lambda = new double[types];
+			double sum = 0.0;
+			for (int k = 0; k < types; k++) {
+				lambda[k] = coalescentRates[k] * p[segment.daughterIndex1 * types + k]
+						* p[segment.daughterIndex2 * types + k];
+				sum += lambda[k];
+			}
+			if (!isValid(lambda, sum)) {
+				result.logP = Double.NEGATIVE_INFINITY;
+				return result;
+			}
+
+			result.state = new double[length - types];
+			int linCount = 0;
+			for (int i = 0; i < segment.lineages; i++) {
+				if (i != segment.daughterIndex1 && i != segment.daughterIndex2) {
+					System.arraycopy(p, i * types, result.state, linCount * types, types);
+					linCount++;
+				}
+			}
+			for (int k = 0; k < types; k++)
+				result.state[linCount * types + k] = lambda[k] / sum;
+
+			result.logP += Math.log(sum);
+			break;
+		}
+
+		case REASSORTMENT: {
+			double[] reassortmentRates = score.reassortmentRateTable[ratesInterval];
+			StructuredNetworkEvent event = segment.event;
+			double[] lambda = new double[types];
+			double sum = 0.0;
+			for (int k = 0; k < types; k++) {
+				lambda[k] = reassortmentRates[k] * p[segment.daughterIndex1 * types + k]
+						* score.observability.getSplitProb(event.segsSortedLeft, event.segsToSort);
+				sum += lambda[k];
+			}
+			if (!isValid(lambda, sum)) {
+				result.logP = Double.NEGATIVE_INFINITY;
+				return result;
+			}
+
+			result.state = new double[length + types];
+			int linCount = 0;
+			for (int i = 0; i < segment.lineages; i++) {
+				if (i != segment.daughterIndex1) {
+					System.arraycopy(p, i * types, result.state, linCount * types, types);
+					linCount++;
+				}
+			}
+			for (int l = 0; l < 2; l++) {
+				for (int k = 0; k < types; k++)
+					result.state[linCount * types + k] = lambda[k] / sum;
+				linCount++;
+			}
+
+			result.logP += Math.log(sum);
+			break;
+		}
+		}
+		return result;
+	}
+
+	/**
+	 * As in SCORE, an event is impossible if no type has a positive rate or
+	 * a rate is negative or not a number.
+	 */
+	private static boolean isValid(double[] lambda, double sum) {
+		for (double l : lambda) {
+			if (!(l >= 0.0))
+				return false;
+		}
+		return sum > 0.0;
+	}
+
+	/**
+	 * The parareal correction is not guaranteed to stay within the probability
+	 * simplex of each lineage, so clip and renormalise.
+	 */
+	private void project(double[] state) {
+		int types = score.types;
+		for (int i = 0; i < state.length; i += types) {
+			double sum = 0.0;
+			for (int k = i; k < i + types; k++) {
+				if (!(state[k] > 0.0))
+					state[k] = 0.0;
+				sum += state[k];
+			}
+			if (sum > 0.0) {
+				for (int k = i; k < i + types; k++)
+					state[k] /= sum;
+			}
+		}
+	}
+}
@@ -1,7 +1,11 @@
 package score.distribution;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import org.jblas.DoubleMatrix;
 
@@ -10,8 +14,13 @@ import coalre.network.Network;
 import coalre.network.NetworkEdge;
 import coalre.network.NetworkNode;
 import score.dynamics.ConstantReassortment;
+import score.dynamics.ConstantReassortment.RateSnapshot;
+import score.math.DenseOutput;
 import score.math.Euler2ndOrder;
 import score.math.Euler2ndOrderBase;
+import score.math.ReassortmentObservability;
+import score.utils.NetworkArena;
+import score.utils.SharedPools;
 
 public class SCORE extends StructuredNetworkDistribution {
 
@@ -20,6 +29,16 @@ public class SCORE extends StructuredNetworkDistribution {
 			0.1);
 	public Input<ConstantReassortment> dynamicsInput = new Input<>("dynamics", "Input of rates",
 			Input.Validate.REQUIRED);
+	public Input<Integer> threadsInput = new Input<>("threads",
+			"number of threads used to evaluate blocks of lineages in parallel (default 1, i.e. sequential)", 1);
+	public Input<Integer> parallelThresholdInput = new Input<>("parallelThreshold",
+			"minimum number of lineages in an interval before the derivatives are evaluated in parallel", 1000);
+	public Input<Boolean> pararealInput = new Input<>("parareal",
+			"experimental: if true, integrate the intervals in parallel using the parareal algorithm", false);
+	public Input<Double> pararealToleranceInput = new Input<>("pararealTolerance",
+			"maximal change in any lineage state probability at which the parareal iterations are stopped, "
+					+ "the likelihood agrees with the sequential one up to this tolerance, 0 iterates until it is equal",
+			1e-8);
 
     public int samples;
     public int nrSamples;
@@ -31,8 +50,11 @@ public class SCORE extends StructuredNetworkDistribution {
     private double[] coalescentRates;
     private double[] reassortmentRates;
 
-    // Set up for lineage state probabilities
-    List<NetworkEdge> activeLineages;
+    // Set up for lineage state probabilities, the ids of the active lineages
+    // in the event arrays and the position of each lineage id among them
+    int[] activeLineages = new int[0];
+    int activeCount;
+    private int[] lineagePosition = new int[0];
     private double[] linProbs;
     private double[] linProbsNew;
     private int linProbsLength;
@@ -42,10 +64,85 @@ public class SCORE extends StructuredNetworkDistribution {
     private int first = 0;
 
     Euler2ndOrderBase euler;
+    ForkJoinPool pool;
+    PararealIntegrator parareal;
+
+    double[][] coalescentRateTable;
+    double[][] migrationRateTable;
+    double[][] reassortmentRateTable;
+    int[][] indicatorTable;
+    double[] rateShiftTable;
+    RateSnapshot rateSnapshot, storedRateSnapshot;
+    DoubleMatrix[] storedNodeStateProbabilities;
+
+    // only record the node state probabilities when a logger asks for them
+    private boolean recordNodeStates = false;
+    private boolean nodeStatesKnown = false, storedNodeStatesKnown = false;
+    private double[] lambda;
+
+    /**
+     * State of the backwards integration when entering an epoch, from which
+     * the calculation is resumed if only the rates of later epochs changed.
+     * The times are measured from the most recent sample like the event times.
+     */
+    private static class Checkpoint {
+	final int networkInterval;
+	final double nextNetworkEventTime;
+	final double prevEventTime;
+	final double logP;
+	final double[] linProbs;
+	final int[] activeLineages;
+
+	Checkpoint(int networkInterval, double nextNetworkEventTime, double prevEventTime, double logP,
+		double[] linProbs, int linProbsLength, int[] activeLineages, int activeCount) {
+	    this.networkInterval = networkInterval;
+	    this.nextNetworkEventTime = nextNetworkEventTime;
+	    this.prevEventTime = prevEventTime;
+	    this.logP = logP;
+	    this.linProbs = Arrays.copyOf(linProbs, linProbsLength);
+	    this.activeLineages = Arrays.copyOf(activeLineages, activeCount);
+	}
+    }
+
+    // checkpoints[i] is the state when entering epoch i
+    Checkpoint[] checkpoints, storedCheckpoints;
+
+    /**
+     * Backward pass of a calculation for stochastic mapping. The entries of
+     * event i describe the interval above it, lineages by their ids in the
+     * event arrays.
+     */
+    private static class RecordedPass {
+	final DenseOutput[] denseOutput;
+	final int[][] lineages;
+	double[] rootProbabilities;
+
+	RecordedPass(int size) {
+	    denseOutput = new DenseOutput[size];
+	    lineages = new int[size][];
+	}
+    }
+
+    // only record the backward pass if a mapping asks for it
+    private boolean recordBackwardPass = false;
+    private int passRecords;
+    private double passTolerance;
+    // pass of the last calculation, swapped with the checkpoints
+    private RecordedPass pass, storedPass;
+    // record of the pass handed out last and the pass it was made from
+    private BackwardPassRecord passRecord;
+    private RecordedPass passRecordSource;
+    private final StructuredNetworkEvent passEvent = new StructuredNetworkEvent();
+
+    boolean networkChanged = true;
+    // the network changed in the current proposal
+    private boolean networkDirty = false;
 	public Network network;
 	public ConstantReassortment dynamics;
     StructuredNetworkIntervals networkIntervals;
+    ReassortmentObservability observability;
 	public List<StructuredNetworkEvent> networkEventList;
+    NetworkEventArrays events;
     double[] linProbs_tmp;
     int[] parents;
 
@@ -66,38 +163,104 @@ public class SCORE extends StructuredNetworkDistribution {
 
 	parents = new int[intCount];
 
-	activeLineages = new ArrayList<>();
-
 	int MAX_SIZE = intCount * types;
 	linProbs_tmp = new double[MAX_SIZE];
 	linProbs = new double[MAX_SIZE];
 	linProbsNew = new double[MAX_SIZE];
+	lambda = new double[types];
 
 	euler = new Euler2ndOrder();
 	euler.setup(MAX_SIZE, types, epsilonInput.get(), maxStepInput.get());
+	if (threadsInput.get() > 1) {
+	    pool = SharedPools.get(threadsInput.get());
+	    euler.setParallel(pool, parallelThresholdInput.get());
+	}
+
+	if (pararealInput.get()) {
+	    parareal = new PararealIntegrator(this, pool != null ? pool : ForkJoinPool.commonPool(),
+		    pararealToleranceInput.get());
+	}
     }
 
     @Override
 	public double calculateLogP() {
 	networkIntervals = networkIntervalsInput.get();
 	networkEventList = networkIntervals.getNetworkEventList();
-	nodeStateProbabilities = new DoubleMatrix[networkIntervals.networkInput.get().getInternalNodes().size()];
-	nrSamples = networkIntervals.networkInput.get().getLeafNodes().size();
-	nodes = new ArrayList<>(networkIntervals.networkInput.get().getInternalNodes());
-
-	int intCount = networkEventList.size();
+	events = networkIntervals.getEventArrays();
+
+	int dirtyEpoch = setUpDynamics();
+	observability = networkIntervals.getObservability();
+	euler.setObservability(observability);
+	euler.setUpDynamics(coalescentRateTable, migrationRateTable, reassortmentRateTable, indicatorTable,
+		rateShiftTable);
+
+	nodeStatesKnown = recordNodeStates;
+
+	if (parareal != null && !recordNodeStates && !recordBackwardPass) {
+	    double pararealLogP = parareal.calculateLogP(networkEventList);
+	    // NaN if the iterations failed, the sequential calculation is done instead
+	    if (!Double.isNaN(pararealLogP)) {
+		logP = pararealLogP;
+		first++;
+		return logP;
+	    }
+	}
 
-	parents = new int[intCount];
+	// if only the rates changed, the integration can be resumed from the
+	// first epoch that changed
+	Checkpoint resume = null;
+	if (!networkChanged && checkpoints != null && checkpoints.length == coalescentRateTable.length
+		&& dirtyEpoch > 0) {
+	    if (dirtyEpoch >= checkpoints.length || checkpoints[dirtyEpoch] == null) {
+		// the changed epochs are all older than the root
+		networkChanged = true;
+		return logP;
+	    }
+	    resume = checkpoints[dirtyEpoch];
+	    // the recorded intervals before the checkpoint are reused
+	    if (recordBackwardPass && pass == null)
+		resume = null;
+	}
+	networkChanged = true;
 
+	int intCount = events.size;
 	int MAX_SIZE = intCount * types;
-	linProbs_tmp = new double[MAX_SIZE];
-	linProbs = new double[MAX_SIZE];
-	linProbsNew = new double[MAX_SIZE];
+
+	Checkpoint[] newCheckpoints = new Checkpoint[coalescentRateTable.length];
+	if (resume == null) {
+	    nrSamples = networkIntervals.networkInput.get().getLeafNodes().size();
+	    if (recordNodeStates) {
+		nodeStateProbabilities = new DoubleMatrix[networkIntervals.networkInput.get().getInternalNodes().size()];
+		nodes = new ArrayList<>(networkIntervals.networkInput.get().getInternalNodes());
+	    }
+
+	    parents = new int[intCount];
+
+	    linProbs_tmp = new double[MAX_SIZE];
+	    linProbs = new double[MAX_SIZE];
+	    linProbsNew = new double[MAX_SIZE];
+	} else {
+	    System.arraycopy(checkpoints, 0, newCheckpoints, 0, dirtyEpoch + 1);
+	}
+	checkpoints = newCheckpoints;
+
+	if (recordBackwardPass) {
+	    RecordedPass newPass = new RecordedPass(intCount);
+	    if (resume != null) {
+		System.arraycopy(pass.denseOutput, 0, newPass.denseOutput, 0, resume.networkInterval);
+		System.arraycopy(pass.lineages, 0, newPass.lineages, 0, resume.networkInterval);
+	    }
+	    pass = newPass;
+	}
 
 	euler.setup(MAX_SIZE, types, epsilonInput.get(), maxStepInput.get());
 
 	// Set up for lineage state probabilities
-	activeLineages.clear();
+	if (activeLineages.length < events.lineageCount) {
+	    activeLineages = new int[events.lineageCount];
+	    lineagePosition = new int[events.lineageCount];
+	}
+	activeCount = 0;
 
 	// Compute likelihood at each integration time and tree event starting at final
 	// sampling time and moving backwards
@@ -109,67 +272,84 @@ public class SCORE extends StructuredNetworkDistribution {
 	double nextEventTime = 0.0;
 	double prevEventTime = 0.0;
 
-	// Time to the next rate shift or event on the tree
-	StructuredNetworkEvent nextNetworkEvent = networkEventList.get(networkInterval);
-	double nextNetworkEventTime = nextNetworkEvent.time;
-	double nextRateShift = dynamics.getInterval(ratesInterval);
-
-	if (first == 0 || !dynamics.areDynamicsKnown()) {
-	    setUpDynamics();
+	if (resume != null) {
+	    networkInterval = resume.networkInterval;
+	    ratesInterval = dirtyEpoch;
+	    prevEventTime = resume.prevEventTime;
+	    logP = resume.logP;
+	    for (int id : resume.activeLineages)
+		addLineage(id);
+	    linProbsLength = resume.linProbs.length;
+	    System.arraycopy(resume.linProbs, 0, linProbs, 0, linProbsLength);
 	}
 
-	coalescentRates = dynamics.getCoalescentRate(ratesInterval);
-	reassortmentRates = dynamics.getReassortmentRate(ratesInterval);
-	nrLineages = activeLineages.size();
+	// Time of the next event on the tree and of the end of the epoch, both
+	// measured from the most recent sample
+	double nextNetworkEventTime = resume != null ? resume.nextNetworkEventTime : events.time[networkInterval];
+	double nextRateShift = getEpochEnd(ratesInterval);
+
+	coalescentRates = coalescentRateTable[ratesInterval];
+	reassortmentRates = reassortmentRateTable[ratesInterval];
+	nrLineages = activeCount;
 	linProbsLength = nrLineages * types;
 
 
 	
 	// Calculate the likelihood
 	do {
+	    boolean newEpoch = false;
 	    nextEventTime = Math.min(nextNetworkEventTime, nextRateShift);
 	    if (nextEventTime > 0) { // if true, calculate the interval contribution
-				logP += doEuler(prevEventTime, nextEventTime, ratesInterval);
+		if (recordBackwardPass) {
+		    // like the mapping, keep the last part of an interval that
+		    // is split by rate shifts
+		    passEvent.denseOutput = new DenseOutput(nextEventTime, linProbsLength, passRecords, passTolerance);
+		    pass.denseOutput[networkInterval - 1] = passEvent.denseOutput;
+		    pass.lineages[networkInterval - 1] = Arrays.copyOf(activeLineages, activeCount);
+		}
+				logP += doEuler(prevEventTime, nextEventTime, ratesInterval, recordBackwardPass ? passEvent : null);
 	    }
 
 	    if (nextNetworkEventTime <= nextRateShift) {
-		switch (nextNetworkEvent.type) {
-		case COALESCENCE:
+		switch (events.type[networkInterval]) {
+		case NetworkEventArrays.COALESCENCE:
 		    nrLineages--;
-		    logP += coalesce(nextNetworkEvent);
+		    logP += coalesce(networkInterval);
 		    break;
 
-		case SAMPLE:
+		case NetworkEventArrays.SAMPLE:
 		    nrLineages++;
-		    sample(nextNetworkEvent);
+		    sample(networkInterval);
 		    break;
 
-		case REASSORTMENT:
-		    logP += reassortment(nextNetworkEvent);
+		case NetworkEventArrays.REASSORTMENT:
+		    logP += reassortment(networkInterval);
 		    nrLineages++;
 		    break;
 		}
 
 		networkInterval++;
-		nextRateShift -= nextNetworkEventTime;
-		try {
-		    nextNetworkEvent = networkEventList.get(networkInterval);
-		    nextNetworkEventTime = nextNetworkEvent.time;
-
-		} catch (Exception e) {
+		if (networkInterval >= events.size)
 		    break;
-		}
+		nextNetworkEventTime = events.time[networkInterval];
 	    } else {
 		ratesInterval++;
-		coalescentRates = dynamics.getCoalescentRate(ratesInterval);
+		coalescentRates = coalescentRateTable[ratesInterval];
+		reassortmentRates = reassortmentRateTable[ratesInterval];
 
-		nextNetworkEventTime -= nextRateShift;
-		nextRateShift = dynamics.getInterval(ratesInterval);
+		nextRateShift += getEpochDuration(ratesInterval);
+		newEpoch = true;
 	    }
 	    prevEventTime = nextEventTime;
 	    if (logP == Double.NEGATIVE_INFINITY) {
+		if (recordBackwardPass)
+		    pass = null;
 		return logP;
 	    }
+	    if (newEpoch && ratesInterval < checkpoints.length) {
+		checkpoints[ratesInterval] = new Checkpoint(networkInterval, nextNetworkEventTime, prevEventTime,
+			logP, linProbs, linProbsLength, activeLineages, activeCount);
+	    }
 	} while (nextNetworkEventTime <= Double.POSITIVE_INFINITY);
 
 	first++;
@@ -177,72 +357,91 @@ public class SCORE extends StructuredNetworkDistribution {
 	return logP;
     }
 
-    private void sample(StructuredNetworkEvent event) {
+    /**
+     * Duration of epoch i of the rate tables, infinite after the last shift.
+     */
+    double getEpochDuration(int i) {
+	return i < rateShiftTable.length ? rateShiftTable[i] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Time from the most recent sample to the end of epoch i.
+     */
+    double getEpochEnd(int i) {
+	double end = 0.0;
+	for (int j = 0; j <= i; j++)
+	    end += getEpochDuration(j);
+	return end;
+    }
+
+    private void addLineage(int id) {
+	lineagePosition[id] = activeCount;
+	activeLineages[activeCount++] = id;
+    }
+
+    /**
+     * Removes the lineage at position and moves the later lineages down by
+     * one, like the lineage state probabilities.
+     */
+    private void removeLineage(int position) {
+	for (int i = position + 1; i < activeCount; i++) {
+	    activeLineages[i - 1] = activeLineages[i];
+	    lineagePosition[activeLineages[i - 1]] = i - 1;
+	}
+	activeCount--;
+    }
+
+    private void sample(int event) {
 
-	List<NetworkEdge> incomingLines = event.lineagesAdded;
-	int sampleState = 0;
 	int newLength = linProbsLength + 1 * types;
 	int currPosition = linProbsLength;
 
+	addLineage(events.added1[event]);
+	int sampleState = getSampleState(events.edges[events.added1[event]]);
+
+	for (int i = 0; i < types; i++) {
+	    if (i == sampleState) {
+		linProbs[currPosition] = 1.0;
+		currPosition++;
+	    } else {
+		linProbs[currPosition] = 0.0;
+		currPosition++;
+	    }
+	}
+	linProbsLength = newLength;
+    }
+
+    private int positionOf(int id) {
+	if (id == -1 || lineagePosition[id] >= activeCount || activeLineages[lineagePosition[id]] != id)
+	    return -1;
+	return lineagePosition[id];
+    }
+
+    int getSampleState(NetworkEdge l) {
+	return getSampleState(l.childNode.getTaxonLabel());
+    }
+
+    int getSampleState(String sampleID) {
 	/*
 	 * If there is no trait given as Input, the model will simply assume that the
 	 * last value of the taxon name, the last value after a _, is an integer that
 	 * gives the type of that taxon
 	 */
 	if (dynamics.typeTraitInput.get() != null) {
-	    for (NetworkEdge l : incomingLines) {
-		activeLineages.add(l);
-		sampleState = dynamics.getValue(l.childNode.getTaxonLabel());
-		
-	    }
-
-			if (sampleState >= dynamics.getNrTypes()) {
+	    int sampleState = dynamics.getValue(sampleID);
+	    if (sampleState >= dynamics.getNrTypes()) {
 		System.err.println("sample discovered with higher state than dimension");
 	    }
-
-	    for (int i = 0; i < types; i++) {
-		if (i == sampleState) {
-		    linProbs[currPosition] = 1.0;
-		    currPosition++;
-		} else {
-		    linProbs[currPosition] = 0.0;
-		    currPosition++;
-		}
-	    }
-
+	    return sampleState;
 	} else {
-	    /*
-	     * If there is no trait given as Input, the model will simply assume that the
-	     * last value of the taxon name, the last value after a _, is an integer that
-	     * gives the type of that taxon
-	     */
-	    for (NetworkEdge l : incomingLines) {
-		activeLineages.add(l);
-		String sampleID = l.childNode.getTaxonLabel();
-		String[] splits = sampleID.split("_");
-		sampleState = Integer.parseInt(splits[splits.length - 1]); // samples types (or priors) should
-									   // eventually be specified in the XML
-	    }
-	    for (int i = 0; i < types; i++) {
-		if (i == sampleState) {
-		    linProbs[currPosition] = 1.0;
-		    currPosition++;
-		} else {
-		    linProbs[currPosition] = 0.0;
-		    currPosition++;
-		}
-	    }
+	    String[] splits = sampleID.split("_");
+	    return Integer.parseInt(splits[splits.length - 1]); // samples types (or priors) should
+								// eventually be specified in the XML
 	}
-	linProbsLength = newLength;
     }
 
-    private double coalesce(StructuredNetworkEvent event) {
-	List<NetworkEdge> coalLines = event.lineagesRemoved;
-	if (coalLines.size() > 2) {
-	    System.err.println("Unsupported coalescent at non-binary node");
-	    System.exit(0);
-	}
-	if (coalLines.size() < 2) {
+    private double coalesce(int event) {
+	if (events.removed2[event] == -1) {
 	    System.out.println();
 	    System.out.println("WARNING: Less than two lineages found at coalescent event!");
 	    System.out.println();
@@ -250,38 +449,40 @@ public class SCORE extends StructuredNetworkDistribution {
 	}
 
 	// get the indices of the two daughter lineages
-	final int daughterIndex1 = activeLineages.indexOf(coalLines.get(0));
-	final int daughterIndex2 = activeLineages.indexOf(coalLines.get(1));
+	final int daughterIndex1 = positionOf(events.removed1[event]);
+	final int daughterIndex2 = positionOf(events.removed2[event]);
 	if (daughterIndex1 == -1 || daughterIndex2 == -1) {
 	    System.out.println("daughter lineages at coalescent event not found");
 	    return Double.NaN;
 	}
 
-	DoubleMatrix lambda = DoubleMatrix.zeros(types);
-
 	/*
 	 * Calculate the overall probability for two strains to coalesce independent of
 	 * the state at which this coalescent event is supposed to happen
 	 */
+	double lambdaSum = 0.0, lambdaMin = Double.POSITIVE_INFINITY;
 	for (int k = 0; k < types; k++) {
-	    Double pairCoalRate = coalescentRates[k] * linProbs[daughterIndex1 * types + k]
+	    double pairCoalRate = coalescentRates[k] * linProbs[daughterIndex1 * types + k]
 		    * linProbs[daughterIndex2 * types + k];
 	    if (!Double.isNaN(pairCoalRate)) {
-		lambda.put(k, pairCoalRate);
+		lambda[k] = pairCoalRate;
+		lambdaSum += pairCoalRate;
+		lambdaMin = Math.min(lambdaMin, pairCoalRate);
 	    } else {
 		return Double.NEGATIVE_INFINITY;
 	    }
 	}
 
-	// add the new parent lineage as an active lineage
-	activeLineages.add(event.lineagesAdded.get(0));
-
 	// get the node state probabilities
-	DoubleMatrix pVec = new DoubleMatrix();
-	pVec.copy(lambda);
-	pVec = pVec.div(pVec.sum());
-
-	nodeStateProbabilities[nodes.indexOf(coalLines.get(0).parentNode)] = pVec;
+	if (recordNodeStates) {
+	    DoubleMatrix pVec = new DoubleMatrix(lambda).div(lambdaSum);
+	    nodeStateProbabilities[nodes.indexOf(events.node[event])] = pVec;
+	}
+	if (pass != null && event == events.size - 1) {
+	    pass.rootProbabilities = new double[types];
+	    for (int k = 0; k < types; k++)
+		pass.rootProbabilities[k] = lambda[k] / lambdaSum;
+	}
 
 	int linCount = 0;
 	// add all lineages execpt the daughter lineage to the new p array
@@ -295,7 +496,7 @@ public class SCORE extends StructuredNetworkDistribution {
 	}
 	// add the parent lineage
 	for (int j = 0; j < types; j++) {
-	    linProbsNew[linCount * types + j] = pVec.get(j);
+	    linProbsNew[linCount * types + j] = lambda[j] / lambdaSum;
 	}
 	// set p to pnew
 	linProbs = linProbsNew;
@@ -305,79 +506,67 @@ public class SCORE extends StructuredNetworkDistribution {
 	// check which index is large such that the removing starts
 	// with the one with the larger value
 	if (daughterIndex1 > daughterIndex2) {
-	    activeLineages.remove(daughterIndex1);
-	    activeLineages.remove(daughterIndex2);
+	    removeLineage(daughterIndex1);
+	    removeLineage(daughterIndex2);
 	} else {
-	    activeLineages.remove(daughterIndex2);
-	    activeLineages.remove(daughterIndex1);
+	    removeLineage(daughterIndex2);
+	    removeLineage(daughterIndex1);
 	}
+	// add the new parent lineage as an active lineage
+	addLineage(events.added1[event]);
 
-	if (lambda.min() < 0.0) {
-	    System.err.println("Coalescent probability is: " + lambda.min());
+	if (lambdaMin < 0.0) {
+	    System.err.println("Coalescent probability is: " + lambdaMin);
 	    return Double.NEGATIVE_INFINITY;
 	}
 
-	if (lambda.sum() == 0)
+	if (lambdaSum == 0)
 	    return Double.NEGATIVE_INFINITY;
 	else
-	    return Math.log(lambda.sum());
+	    return Math.log(lambdaSum);
     }
 
-    private double reassortment(StructuredNetworkEvent event) {
-	List<NetworkEdge> reassortLines = event.lineagesAdded;
-	if (reassortLines.size() > 2) {
-	    System.out.println();
-	    System.err.println("WARNING: More than two parent lineages at reassortment event!");
-	    System.out.println();
-	    return Double.NaN;
-	}
-	if (reassortLines.size() < 2) {
+    private double reassortment(int event) {
+	if (events.added2[event] == -1) {
 	    System.out.println();
 	    System.err.println("WARNING: Less than two parent lineages at reassortment event!");
 	    System.out.println();
 	    return Double.NaN;
 	}
 
-	if (event.lineagesRemoved.size() > 1) {
-	    System.out.println("More than one daughter lineage at reassortment event");
-	    return Double.NaN;
-	}
-
 	// get the indices of the daughter lineage
-	final int daughterIndex = activeLineages.indexOf(event.lineagesRemoved.get(0));
+	final int daughterIndex = positionOf(events.removed1[event]);
 	if (daughterIndex == -1) {
 	    System.out.println("Daughter lineage at reassortment event not found");
 	    return Double.NaN;
 	}
 
-	DoubleMatrix lambda = DoubleMatrix.zeros(types);
-
+	double lambdaSum = 0.0, lambdaMin = Double.POSITIVE_INFINITY;
 	for (int k = 0; k < types; k++) {
-	    Double typeProb = reassortmentRates[k] * linProbs[daughterIndex * types + k]
-					* Math.pow(networkIntervals.getBinomialProb(), event.segsSortedLeft)
-					* Math.pow(1 - networkIntervals.getBinomialProb(), (event.segsToSort - event.segsSortedLeft))
-		    * 2.0;
+	    double typeProb = reassortmentRates[k] * linProbs[daughterIndex * types + k]
+		    * observability.getSplitProb(events.segsSortedLeft[event], events.segsToSort[event]);
 
 	    if (!Double.isNaN(typeProb)) {
-		lambda.put(k, typeProb);
+		lambda[k] = typeProb;
+		lambdaSum += typeProb;
+		lambdaMin = Math.min(lambdaMin, typeProb);
 	    } else {
 		return Double.NEGATIVE_INFINITY;
 	    }
 	}
 
 	// remove daughter lineage from active lineages
-	activeLineages.remove(daughterIndex);
+	removeLineage(daughterIndex);
 
 	// add two new parent lineages as an active lineages
-	activeLineages.add(event.lineagesAdded.get(0));
-	activeLineages.add(event.lineagesAdded.get(1));
+	addLineage(events.added1[event]);
+	addLineage(events.added2[event]);
 
 	// get the node state probabilities
-	DoubleMatrix pVec = new DoubleMatrix();
-	pVec.copy(lambda);
-	pVec = pVec.div(pVec.sum());
-
-	nodeStateProbabilities[nodes.indexOf(reassortLines.get(0).childNode)] = pVec;
+	if (recordNodeStates) {
+	    DoubleMatrix pVec = new DoubleMatrix(lambda).div(lambdaSum);
+	    nodeStateProbabilities[nodes.indexOf(events.node[event])] = pVec;
+	}
 
 	int linCount = 0;
 	// add all lineages execpt the daughter lineage to the new p array
@@ -394,9 +583,9 @@ public class SCORE extends StructuredNetworkDistribution {
 	    }
 	}
 	// add the parent lineage
-	for (int l = 0; l < event.lineagesAdded.size(); l++) {
+	for (int l = 0; l < 2; l++) {
 	    for (int j = 0; j < types; j++) {
-		linProbsNew[linCount * types + j] = pVec.get(j);
+		linProbsNew[linCount * types + j] = lambda[j] / lambdaSum;
 	    }
 	    linCount++;
 	}
@@ -406,35 +595,142 @@ public class SCORE extends StructuredNetworkDistribution {
 	linProbsNew = linProbs;
 	linProbsLength = linProbsLength + types;
 
-	if (lambda.min() < 0.0) {
-	    System.err.println("Reassortment probability is: " + lambda.min());
+	if (lambdaMin < 0.0) {
+	    System.err.println("Reassortment probability is: " + lambdaMin);
 	    return Double.NEGATIVE_INFINITY;
 	}
 
-	if (lambda.sum() == 0)
+	if (lambdaSum == 0)
 	    return Double.NEGATIVE_INFINITY;
 	else
-	    return Math.log(lambda.sum());
+	    return Math.log(lambdaSum);
+    }
+
+    /**
+     * Takes the rate tables from the current rate snapshot of the dynamics and
+     * returns the index of the first epoch that changed since the last
+     * calculation.
+     */
+    private int setUpDynamics() {
+	RateSnapshot snapshot = dynamics.getRateSnapshot();
+	int firstDirty = first == 0 ? 0 : snapshot.firstChangedEpoch(rateSnapshot);
+	if (snapshot != rateSnapshot || coalescentRateTable == null)
+	    setRateTables(snapshot);
+	rateSnapshot = snapshot;
+	return firstDirty;
+    }
+
+    /**
+     * Copies the rate tables of a snapshot. The copies are read by the
+     * integrator threads and are not changed once set.
+     */
+    private void setRateTables(RateSnapshot snapshot) {
+	coalescentRateTable = snapshot.getCoalescentRates();
+	migrationRateTable = snapshot.getMigrationRates();
+	reassortmentRateTable = snapshot.getReassortmentRates();
+	indicatorTable = snapshot.getIndicators();
+	rateShiftTable = snapshot.getIntervals();
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+	networkChanged = networkIntervalsInput.get().isDirtyCalculation();
+	networkDirty = networkChanged;
+	return super.requiresRecalculation();
     }
 
-    private void setUpDynamics() {
-	int n = dynamics.getEpochCount();
-	double[][] coalescentRates = new double[n][];
-	double[][] migrationRates = new double[n][];
-	double[][] reassortmentRates = new double[n][];
-	int[][] indicators = new int[n][];
-	double[] nextRateShift = dynamics.getIntervals();
-	for (int i = 0; i < n; i++) {
-	    coalescentRates[i] = dynamics.getCoalescentRate(i);
-	    migrationRates[i] = dynamics.getBackwardsMigration(i);
-	    reassortmentRates[i] = dynamics.getReassortmentRate(i);
-	    indicators[i] = dynamics.getIndicators(i);
-	}
-	dynamics.setDynamicsKnown();
-	euler.setUpDynamics(coalescentRates, migrationRates, reassortmentRates, indicators, nextRateShift);
+    @Override
+    protected void store() {
+	storedCheckpoints = checkpoints;
+	storedNodeStateProbabilities = nodeStateProbabilities;
+	storedNodeStatesKnown = nodeStatesKnown;
+	storedRateSnapshot = rateSnapshot;
+	storedPass = pass;
+	super.store();
     }
 
-	private double doEuler(double start, double end, int ratesInterval) {
+    @Override
+    protected void restore() {
+	checkpoints = storedCheckpoints;
+	nodeStateProbabilities = storedNodeStateProbabilities;
+	nodeStatesKnown = storedNodeStatesKnown;
+	rateSnapshot = storedRateSnapshot;
+	pass = storedPass;
+	if (networkDirty) {
+	    // the network is restored to a copy. The intervals are restored
+	    // before, and unless they could bind the stored events to the copy
+	    // the lineages can be numbered differently than in the stored state
+	    if (!networkIntervals.keptLineageIds()) {
+		checkpoints = null;
+		pass = null;
+		networkChanged = true;
+	    }
+	    // the node states refer to the nodes before the copy
+	    nodeStatesKnown = false;
+	    networkDirty = false;
+	}
+	if (rateSnapshot != null)
+	    setRateTables(rateSnapshot);
+	super.restore();
+    }
+
+    /**
+     * Records the backward pass of every calculation, such that stochastic
+     * mappings of the accepted state do not have to repeat it. The lineage
+     * state probabilities are kept as dense output with at most records
+     * records per interval and the given interpolation tolerance.
+     */
+    public void setRecordBackwardPass(int records, double tolerance) {
+	if (!NetworkArena.supports(network)) {
+	    System.err.println("WARNING: the backward pass of networks with more than " + NetworkArena.MAX_SEGMENTS
+		    + " segments is not recorded");
+	    return;
+	}
+	recordBackwardPass = true;
+	passRecords = records;
+	passTolerance = tolerance;
+	networkChanged = true;
+    }
+
+    /**
+     * Backward pass of the current state, null if it was not recorded. The
+     * record is only made when asked for, which has to be outside of a
+     * proposal, such as at logging time.
+     */
+    public BackwardPassRecord getBackwardPass() {
+	if (pass != passRecordSource) {
+	    passRecord = createPassRecord();
+	    passRecordSource = pass;
+	}
+	return passRecord;
+    }
+
+    /**
+     * Takes the recorded pass of the last calculation together with a copy
+     * of the network, which has to be in the state of that calculation.
+     */
+    private BackwardPassRecord createPassRecord() {
+	if (pass == null || pass.rootProbabilities == null)
+	    return null;
+	// brought up to date with the restored network
+	events = networkIntervals.getEventArrays();
+
+	Map<NetworkNode, Integer> nodeIndex = new IdentityHashMap<>();
+	Map<NetworkEdge, Integer> edgeIndex = new IdentityHashMap<>();
+	NetworkArena arena = NetworkArena.fromNetwork(network, nodeIndex, edgeIndex);
+	int[] node = new int[events.size];
+	for (int i = 0; i < events.size; i++)
+	    node[i] = nodeIndex.get(events.node[i]);
+	int[] lineageEdge = new int[events.lineageCount];
+	for (int id = 0; id < events.lineageCount; id++)
+	    lineageEdge[id] = edgeIndex.get(events.edges[id]);
+
+	return new BackwardPassRecord(arena, rateSnapshot, events.size, Arrays.copyOf(events.time, events.size),
+		Arrays.copyOf(events.type, events.size), node, pass.lineages, lineageEdge, pass.denseOutput,
+		pass.rootProbabilities);
+    }
+
+	private double doEuler(double start, double end, int ratesInterval, StructuredNetworkEvent startEvent) {
 		double duration = end - start;
 
 	if (linProbs_tmp.length != linProbsLength + 1) {
@@ -445,24 +741,65 @@ public class SCORE extends StructuredNetworkDistribution {
 
 	linProbs[linProbsLength - 1] = 0;
 
-	List<Integer> n_segs = new ArrayList<>();
-	for (NetworkEdge l : activeLineages) {
-	    n_segs.add(l.hasSegments.cardinality());
+	List<Integer> n_segs = new ArrayList<>(activeCount);
+	for (int i = 0; i < activeCount; i++) {
+	    n_segs.add(events.segments[activeLineages[i]]);
 	}
 
 		euler.initAndcalculateValues(ratesInterval, nrLineages, duration, linProbs_tmp, linProbsLength + 1,
-				n_segs, null);
+				n_segs, startEvent);
 
 	System.arraycopy(linProbs_tmp, 0, linProbs, 0, linProbsLength);
 
 	return linProbs_tmp[linProbsLength];
     }
     
+    /**
+     * The node state probabilities are only needed for logging, so they are
+     * not kept during ordinary evaluations. Replays the last calculation and
+     * records them if they are not known. The replay is sequential, so the
+     * likelihood, checkpoints and recorded pass of the chain are kept.
+     */
+    private void calculateNodeStates() {
+	if (nodeStatesKnown)
+	    return;
+	double currentLogP = logP;
+	Checkpoint[] currentCheckpoints = checkpoints;
+	RecordedPass currentPass = pass;
+	int currentFirst = first;
+	boolean currentNetworkChanged = networkChanged;
+	boolean currentRecordBackwardPass = recordBackwardPass;
+
+	recordNodeStates = true;
+	recordBackwardPass = false;
+	// the replay must not write into the pass of the chain
+	pass = null;
+	networkChanged = true;
+	calculateLogP();
+	recordNodeStates = false;
+
+	logP = currentLogP;
+	checkpoints = currentCheckpoints;
+	pass = currentPass;
+	first = currentFirst;
+	networkChanged = currentNetworkChanged;
+	recordBackwardPass = currentRecordBackwardPass;
+    }
+
+    /**
+     * Total number of Euler steps taken in all calculations so far.
+     */
+    public long getIntegrationSteps() {
+	return euler.getSteps();
+    }
+
     public DoubleMatrix getRootTypes(){
+    	calculateNodeStates();
     	return nodeStateProbabilities[nodeStateProbabilities.length-1];
     }
     
     public void setNodeTypes() {    	
+    	calculateNodeStates();
     	for (NetworkNode n : nodes) {
     		DoubleMatrix m = nodeStateProbabilities[nodes.indexOf(n)];
     		int i = m.argmax();
@@ -31,7 +31,7 @@ public class StructuredNetworkDistribution extends Distribution {
     protected boolean requiresRecalculation() {
         final StructuredNetworkIntervals ti = networkIntervalsInput.get();
         if (ti != null) {
-            assert ti.isDirtyCalculation();
+            // the rates may have changed while the intervals did not
             return true;
         }
 		return ti.networkInput.get().somethingIsDirty();
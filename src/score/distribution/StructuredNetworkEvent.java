@@ -5,6 +5,7 @@ import java.util.List;
 
 import coalre.network.NetworkEdge;
 import coalre.network.NetworkNode;
+import score.math.DenseOutput;
 
 public class StructuredNetworkEvent {
     public enum NetworkEventType {
@@ -15,11 +16,7 @@ public class StructuredNetworkEvent {
     public double time;
 
 	// Needed for stochastic mapping
-	public double[][] p_stored;
-	public double[][] pDot_stored;
-	public double[][] pDotDot_stored;
-	public double[] intermediateTimeStored;
-	public int numRecords;
+	public DenseOutput denseOutput;
 	public ArrayList<NetworkEdge> activeLineages;
 
     /**
@@ -38,9 +35,37 @@ public class StructuredNetworkEvent {
 
     public double totalReassortmentObsProb;
 
+    /**
+     * Change of totalReassortmentObsProb caused by this event.
+     */
+    double obsProbChange;
+
+    // state at the last store, while the event is changed in a proposal
+    StructuredNetworkEvent backup;
+    boolean journaled;
+
     /**
      * Only used when setting up event list. May not point to a compatible node at
      * other times.
      */
     public NetworkNode node;
+
+    /**
+     * Copies the fields describing the network (not the stochastic mapping
+     * records) to other.
+     */
+    void copyStructureTo(StructuredNetworkEvent other) {
+	other.type = type;
+	other.time = time;
+	other.segsToSort = segsToSort;
+	other.segsSortedLeft = segsSortedLeft;
+	other.lineages = lineages;
+	other.lineagesAdded.clear();
+	other.lineagesAdded.addAll(lineagesAdded);
+	other.lineagesRemoved.clear();
+	other.lineagesRemoved.addAll(lineagesRemoved);
+	other.totalReassortmentObsProb = totalReassortmentObsProb;
+	other.obsProbChange = obsProbChange;
+	other.node = node;
+    }
 }
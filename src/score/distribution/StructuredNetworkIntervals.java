@@ -1,9 +1,14 @@
 package score.distribution;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.math3.util.Precision;
 
@@ -12,6 +17,9 @@ import beast.core.Function;
 import beast.core.Input;
 import beast.core.Input.Validate;
 import coalre.network.Network;
+import coalre.network.NetworkEdge;
+import coalre.network.NetworkNode;
+import score.math.ReassortmentObservability;
 
 /**
  * Extended for structured case by Ugne Jankauskaite
@@ -27,8 +35,33 @@ public class StructuredNetworkIntervals extends CalculationNode {
     private Network network;
 
     private List<StructuredNetworkEvent> networkEventList, storedNetworkEventList;
+    // true if the current list is also the stored one and has to be copied
+    // before it is reordered
+    private boolean listShared;
+    private Map<NetworkNode, StructuredNetworkEvent> eventOfNode = new IdentityHashMap<>();
+    private boolean eventMapValid = true;
+    private StructuredNetworkEvent[] previousOrder = new StructuredNetworkEvent[0];
+    // events changed since the last store
+    private final List<StructuredNetworkEvent> changedEvents = new ArrayList<>();
 
     public boolean eventListDirty = true;
+    // the network was edited since the last store, in which case a restore
+    // swaps it to a copy with new node objects
+    private boolean networkEdited;
+    // false if the last restore could not bind the events to the copy
+    private boolean lineageIdsKept = true;
+
+    private final NetworkEventArrays eventArrays = new NetworkEventArrays();
+    private final Map<NetworkEdge, Integer> lineageIds = new IdentityHashMap<>();
+    // number of leading events whose entries in the arrays are valid, and
+    // number of lineage ids before each event
+    private int arraysValidTo = 0;
+    private int[] lineagesBefore = new int[1];
+    // first event changed since the last store
+    private int changedFrom = Integer.MAX_VALUE;
+
+    // replaced rather than modified, since it is shared with worker threads
+    private volatile ReassortmentObservability observability, storedObservability;
 
     @Override
     public void initAndValidate() {
@@ -41,6 +74,12 @@ public class StructuredNetworkIntervals extends CalculationNode {
 		this.network = network;
 
 		storedNetworkEventList = new ArrayList<>();
+		// used without store and restore, nothing has to be undone
+		for (StructuredNetworkEvent event : changedEvents)
+			event.journaled = false;
+		changedEvents.clear();
+		eventListDirty = true;
+		arraysValidTo = 0;
 	}
 
     public List<StructuredNetworkEvent> getNetworkEventList() {
@@ -51,116 +90,468 @@ public class StructuredNetworkIntervals extends CalculationNode {
 	}
 
 	public List<StructuredNetworkEvent> getNetworkEventList(Network network) {
+		if (network != this.network)
+			eventListDirty = true;
 		this.network = network;
         update();
 
         return networkEventList;
     }
 
+    /**
+     * Struct of arrays view of the current event list, rewritten from the
+     * first event that changed.
+     */
+    public NetworkEventArrays getEventArrays() {
+        network = networkInput.get();
+        update();
+        updateEventArrays();
+        return eventArrays;
+    }
+
+	public NetworkEventArrays getEventArrays(Network network) {
+		getNetworkEventList(network);
+		updateEventArrays();
+		return eventArrays;
+	}
+
+    private void updateEventArrays() {
+        int n = networkEventList.size();
+        if (arraysValidTo >= n && eventArrays.size == n)
+            return;
+
+        // every lineage is added by exactly one event
+        eventArrays.ensureCapacity(n, 2 * n);
+        if (lineagesBefore.length < n + 1)
+            lineagesBefore = Arrays.copyOf(lineagesBefore, 2 * n + 1);
+        int from = Math.min(arraysValidTo, n);
+        // the lineages that first occur from there on are numbered again
+        if (from == 0) {
+            lineageIds.clear();
+        } else {
+            for (int id = lineagesBefore[from]; id < eventArrays.lineageCount; id++)
+                lineageIds.remove(eventArrays.edges[id]);
+        }
+        eventArrays.size = n;
+        for (int i = from; i < n; i++) {
+            lineagesBefore[i] = lineageIds.size();
+            StructuredNetworkEvent event = networkEventList.get(i);
+            eventArrays.time[i] = event.time;
+            switch (event.type) {
+                case SAMPLE:
+                    eventArrays.type[i] = NetworkEventArrays.SAMPLE;
+                    break;
+                case COALESCENCE:
+                    eventArrays.type[i] = NetworkEventArrays.COALESCENCE;
+                    break;
+                case REASSORTMENT:
+                    eventArrays.type[i] = NetworkEventArrays.REASSORTMENT;
+                    break;
+            }
+            eventArrays.added1[i] = lineageId(event.lineagesAdded, 0);
+            eventArrays.added2[i] = lineageId(event.lineagesAdded, 1);
+            eventArrays.removed1[i] = lineageId(event.lineagesRemoved, 0);
+            eventArrays.removed2[i] = lineageId(event.lineagesRemoved, 1);
+            eventArrays.segsToSort[i] = event.segsToSort;
+            eventArrays.segsSortedLeft[i] = event.segsSortedLeft;
+            eventArrays.lineages[i] = event.lineages;
+            eventArrays.totalReassortmentObsProb[i] = event.totalReassortmentObsProb;
+            eventArrays.node[i] = event.node;
+        }
+        lineagesBefore[n] = lineageIds.size();
+        eventArrays.lineageCount = lineageIds.size();
+        arraysValidTo = n;
+    }
+
+    /**
+     * Points the valid part of the arrays to the nodes and edges the events
+     * were bound to.
+     */
+    private void bindEventArrays() {
+        lineageIds.clear();
+        for (int i = 0; i < arraysValidTo; i++) {
+            StructuredNetworkEvent event = networkEventList.get(i);
+            eventArrays.node[i] = event.node;
+            bindLineage(eventArrays.added1[i], event.lineagesAdded, 0);
+            bindLineage(eventArrays.added2[i], event.lineagesAdded, 1);
+            bindLineage(eventArrays.removed1[i], event.lineagesRemoved, 0);
+            bindLineage(eventArrays.removed2[i], event.lineagesRemoved, 1);
+        }
+    }
+
+    private void bindLineage(int id, List<NetworkEdge> edges, int index) {
+        if (id < 0)
+            return;
+        eventArrays.edges[id] = edges.get(index);
+        lineageIds.put(edges.get(index), id);
+    }
+
+    private int lineageId(List<NetworkEdge> edges, int index) {
+        if (index >= edges.size())
+            return -1;
+        NetworkEdge edge = edges.get(index);
+        Integer id = lineageIds.get(edge);
+        if (id == null) {
+            id = lineageIds.size();
+            lineageIds.put(edge, id);
+            eventArrays.ensureCapacity(0, id + 1);
+            eventArrays.segments[id] = edge.hasSegments.cardinality();
+            eventArrays.edges[id] = edge;
+        }
+        return id;
+    }
+
     public double getBinomialProb() {
         return binomialProbInput.get() != null
                 ? binomialProbInput.get().getArrayValue()
                 : 0.5;
     }
 
+    /**
+     * Table of the segment count dependent reassortment factors for the
+     * current binomialProb, shared with the likelihood calculations.
+     */
+    public ReassortmentObservability getObservability() {
+        observability = getObservability(network.getSegmentCount());
+        return observability;
+    }
+
+    /**
+     * The current table if it is valid for binomialProb and maxSegments,
+     * otherwise a new one.
+     */
+    private ReassortmentObservability getObservability(int maxSegments) {
+        ReassortmentObservability table = observability;
+        if (table == null || table.getBinomialProb() != getBinomialProb()
+                || table.getMaxSegments() < maxSegments)
+            table = new ReassortmentObservability(getBinomialProb(), maxSegments);
+        return table;
+    }
+
+    private double getObsProb(NetworkEdge edge) {
+        return observability.getObsProb(edge.hasSegments.cardinality());
+    }
+
+    /**
+     * Brings the event list up to date with the network. The network only
+     * reports that it was edited, not which nodes changed, so finding the
+     * changed events takes one pass over the nodes that compares each event
+     * with its node. Only the events that differ are written and journaled,
+     * the list is re-sorted (nearly sorted after local edits) and lineage
+     * counts and observation probabilities are recomputed from the first
+     * event that changed. restore() only undoes the journaled events.
+     */
     void update() {
-//        if (!eventListDirty)
-//            return;
-
-//		System.out.println(network.getExtendedNewick());
-        networkEventList = network.getNodes().stream().map(n -> {
-            StructuredNetworkEvent event = new StructuredNetworkEvent();
-			event.time = Precision.round(n.getHeight(), 10);
-//			event.time = n.getHeight();
-            event.node = n;
-            switch(n.getChildCount()) {
-                case 0:
-                    event.type = StructuredNetworkEvent.NetworkEventType.SAMPLE;
-                    break;
+        if (!eventListDirty && networkEventList != null && !network.somethingIsDirty())
+            return;
 
-                case 1:
-                    event.type = StructuredNetworkEvent.NetworkEventType.REASSORTMENT;
-                    break;
+        observability = getObservability(network.getSegmentCount());
 
-                case 2:
-                    event.type = StructuredNetworkEvent.NetworkEventType.COALESCENCE;
+        Set<NetworkNode> nodes = network.getNodes();
+        if (!eventMapValid && networkEventList != null) {
+            eventOfNode.clear();
+            for (StructuredNetworkEvent event : networkEventList)
+                eventOfNode.put(event.node, event);
+            eventMapValid = true;
+        }
+        boolean reuse = networkEventList != null && nodes.size() == networkEventList.size();
+        if (reuse) {
+            for (NetworkNode node : nodes) {
+                if (eventOfNode.get(node) == null) {
+                    reuse = false;
                     break;
+                }
+            }
+        }
 
-                default:
-                    throw new RuntimeException("Network node has illegal number of children.");
+        int from = Integer.MAX_VALUE;
+        if (reuse) {
+            // heights, edges and segments may have been changed in place
+            for (int i = 0; i < networkEventList.size(); i++) {
+                StructuredNetworkEvent event = networkEventList.get(i);
+                if (refresh(event, event.node))
+                    from = Math.min(from, i);
+            }
+        } else {
+            // nodes were added or removed, or the network was replaced
+            List<StructuredNetworkEvent> events = new ArrayList<>(nodes.size());
+            Map<NetworkNode, StructuredNetworkEvent> eventOf = new IdentityHashMap<>();
+            for (NetworkNode node : nodes) {
+                StructuredNetworkEvent event = eventOfNode.get(node);
+                if (event == null)
+                    event = new StructuredNetworkEvent();
+                refresh(event, node);
+                events.add(event);
+                eventOf.put(node, event);
+            }
+            eventOfNode = eventOf;
+            networkEventList = events;
+            listShared = false;
+            from = 0;
+        }
+
+        // re-sort, which is close to linear for the nearly sorted list of a
+        // local edit
+        if (!isSorted(networkEventList)) {
+            if (listShared) {
+                networkEventList = new ArrayList<>(networkEventList);
+                listShared = false;
+            }
+            previousOrder = networkEventList.toArray(previousOrder);
+            networkEventList.sort(BY_TIME);
+            for (int i = 0; i < networkEventList.size() && i < from; i++) {
+                if (networkEventList.get(i) != previousOrder[i])
+                    from = i;
             }
-            return event;
-        }).sorted(Comparator.comparingDouble(e -> e.time)).collect(Collectors.toList());
+        }
 
         int lineages = 0;
         double totalReassortmentObsProb = 0;
+        if (from > 0 && from < networkEventList.size()) {
+            lineages = networkEventList.get(from - 1).lineages;
+            totalReassortmentObsProb = networkEventList.get(from - 1).totalReassortmentObsProb;
+        }
+        for (int i = from; i < networkEventList.size(); i++) {
+            StructuredNetworkEvent event = networkEventList.get(i);
+            lineages += event.type == StructuredNetworkEvent.NetworkEventType.COALESCENCE ? -1 : 1;
+            totalReassortmentObsProb += event.obsProbChange;
+            if (event.lineages != lineages || event.totalReassortmentObsProb != totalReassortmentObsProb) {
+                journal(event);
+                event.lineages = lineages;
+                event.totalReassortmentObsProb = totalReassortmentObsProb;
+            }
+        }
 
-        for (StructuredNetworkEvent event : networkEventList) {
-            switch(event.type) {
-                case SAMPLE:
-                    lineages += 1;
-                    event.lineagesAdded.add(event.node.getParentEdges().get(0));
-                    totalReassortmentObsProb += event.node.getParentEdges().get(0).getReassortmentObsProb(getBinomialProb());
-                    break;
+        arraysValidTo = Math.min(arraysValidTo, from);
+        changedFrom = Math.min(changedFrom, from);
+        eventListDirty = false;
+    }
 
-                case REASSORTMENT:
-                    lineages += 1;
-                    
-                    event.lineagesAdded.add(event.node.getParentEdges().get(0));
-                    event.lineagesAdded.add(event.node.getParentEdges().get(1));
-                    event.lineagesRemoved.add(event.node.getChildEdges().get(0));
-                    
-                    totalReassortmentObsProb -= event.node.getChildEdges().get(0).getReassortmentObsProb(getBinomialProb());
-                    totalReassortmentObsProb += event.node.getParentEdges().get(0).getReassortmentObsProb(getBinomialProb());
-                    totalReassortmentObsProb += event.node.getParentEdges().get(1).getReassortmentObsProb(getBinomialProb());
-
-                    event.segsToSort = event.node.getChildEdges().get(0).hasSegments.cardinality();
-                    event.segsSortedLeft = event.node.getParentEdges().get(0).hasSegments.cardinality();
-                    break;
+    private static final Comparator<StructuredNetworkEvent> BY_TIME = Comparator.comparingDouble(e -> e.time);
 
-                case COALESCENCE:
-                    lineages -= 1;
-                    
-                    event.lineagesAdded.add(event.node.getParentEdges().get(0));
-                    event.lineagesRemoved.add(event.node.getChildEdges().get(0));
-                    event.lineagesRemoved.add(event.node.getChildEdges().get(1));
-                    
-                    totalReassortmentObsProb -= event.node.getChildEdges().get(0).getReassortmentObsProb(getBinomialProb());
-                    totalReassortmentObsProb -= event.node.getChildEdges().get(1).getReassortmentObsProb(getBinomialProb());
-                    totalReassortmentObsProb += event.node.getParentEdges().get(0).getReassortmentObsProb(getBinomialProb());
-                    break;
-            }
+    private static boolean isSorted(List<StructuredNetworkEvent> events) {
+        for (int i = 1; i < events.size(); i++) {
+            if (events.get(i).time < events.get(i - 1).time)
+                return false;
+        }
+        return true;
+    }
 
-            event.lineages = lineages;
-            event.totalReassortmentObsProb = totalReassortmentObsProb;
+    /**
+     * Sets the event to describe node and returns true if anything changed.
+     */
+    private boolean refresh(StructuredNetworkEvent event, NetworkNode node) {
+        double time = Precision.round(node.getHeight(), 10);
+        StructuredNetworkEvent.NetworkEventType type;
+        switch (node.getChildCount()) {
+            case 0:
+                type = StructuredNetworkEvent.NetworkEventType.SAMPLE;
+                break;
+            case 1:
+                type = StructuredNetworkEvent.NetworkEventType.REASSORTMENT;
+                break;
+            case 2:
+                type = StructuredNetworkEvent.NetworkEventType.COALESCENCE;
+                break;
+            default:
+                throw new RuntimeException("Network node has illegal number of children.");
         }
 
-//        eventListDirty = false;
+        NetworkEdge added1 = node.getParentEdges().get(0);
+        NetworkEdge added2 = type == StructuredNetworkEvent.NetworkEventType.REASSORTMENT
+                ? node.getParentEdges().get(1) : null;
+        NetworkEdge removed1 = type == StructuredNetworkEvent.NetworkEventType.SAMPLE
+                ? null : node.getChildEdges().get(0);
+        NetworkEdge removed2 = type == StructuredNetworkEvent.NetworkEventType.COALESCENCE
+                ? node.getChildEdges().get(1) : null;
+
+        double obsProbChange = getObsProb(added1);
+        if (added2 != null)
+            obsProbChange += getObsProb(added2);
+        if (removed1 != null)
+            obsProbChange -= getObsProb(removed1);
+        if (removed2 != null)
+            obsProbChange -= getObsProb(removed2);
+
+        int segsToSort = 0, segsSortedLeft = 0;
+        if (type == StructuredNetworkEvent.NetworkEventType.REASSORTMENT) {
+            segsToSort = removed1.hasSegments.cardinality();
+            segsSortedLeft = added1.hasSegments.cardinality();
+        }
+
+        if (event.node == node && event.time == time && event.type == type && event.obsProbChange == obsProbChange
+                && event.segsToSort == segsToSort && event.segsSortedLeft == segsSortedLeft
+                && sameEdges(event.lineagesAdded, added1, added2)
+                && sameEdges(event.lineagesRemoved, removed1, removed2))
+            return false;
+
+        journal(event);
+        event.node = node;
+        event.time = time;
+        event.type = type;
+        event.obsProbChange = obsProbChange;
+        event.segsToSort = segsToSort;
+        event.segsSortedLeft = segsSortedLeft;
+        setEdges(event.lineagesAdded, added1, added2);
+        setEdges(event.lineagesRemoved, removed1, removed2);
+        return true;
+    }
+
+    private static boolean sameEdges(List<NetworkEdge> edges, NetworkEdge e1, NetworkEdge e2) {
+        int n = e1 == null ? 0 : (e2 == null ? 1 : 2);
+        return edges.size() == n && (n < 1 || edges.get(0) == e1) && (n < 2 || edges.get(1) == e2);
+    }
+
+    private static void setEdges(List<NetworkEdge> edges, NetworkEdge e1, NetworkEdge e2) {
+        edges.clear();
+        if (e1 != null)
+            edges.add(e1);
+        if (e2 != null)
+            edges.add(e2);
+    }
+
+    /**
+     * Saves the state of an event at the last store() before it is changed
+     * for the first time.
+     */
+    private void journal(StructuredNetworkEvent event) {
+        if (event.journaled)
+            return;
+        if (event.backup == null)
+            event.backup = new StructuredNetworkEvent();
+        event.copyStructureTo(event.backup);
+        event.journaled = true;
+        changedEvents.add(event);
     }
 
     @Override
     protected boolean requiresRecalculation() {
-        eventListDirty = true;
+        networkEdited = networkEdited || network.somethingIsDirty();
+        eventListDirty = eventListDirty || network.somethingIsDirty()
+                || observability == null || getBinomialProb() != observability.getBinomialProb();
+
+        return eventListDirty;
+    }
+
+    /**
+     * True unless the last restore had to rebuild the events, after which
+     * the lineage ids of the event arrays can differ from the stored ones.
+     */
+    public boolean keptLineageIds() {
+        return lineageIdsKept;
+    }
+
+    /**
+     * Binds the events to the nodes and edges of the copy of the network
+     * that a restore after an edit swaps in. The copy has the structure the
+     * restored events describe, so both are walked together from the root
+     * edge. Returns false, leaving the events unchanged, if the structures
+     * differ.
+     */
+    private boolean bindToCopy(NetworkEdge rootEdge) {
+        Map<NetworkEdge, StructuredNetworkEvent> addedBy = new IdentityHashMap<>();
+        Set<NetworkEdge> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (StructuredNetworkEvent event : networkEventList) {
+            for (NetworkEdge edge : event.lineagesAdded)
+                addedBy.put(edge, event);
+            removed.addAll(event.lineagesRemoved);
+        }
+        // the only lineage that no event removes
+        NetworkEdge storedRootEdge = null;
+        for (NetworkEdge edge : addedBy.keySet()) {
+            if (!removed.contains(edge)) {
+                if (storedRootEdge != null)
+                    return false;
+                storedRootEdge = edge;
+            }
+        }
+        if (storedRootEdge == null)
+            return false;
+
+        Map<NetworkEdge, NetworkEdge> edgeCopy = new IdentityHashMap<>();
+        Map<NetworkNode, NetworkNode> nodeCopy = new IdentityHashMap<>();
+        ArrayDeque<NetworkEdge[]> pairs = new ArrayDeque<>();
+        pairs.push(new NetworkEdge[] { storedRootEdge, rootEdge });
+        while (!pairs.isEmpty()) {
+            NetworkEdge[] pair = pairs.pop();
+            StructuredNetworkEvent event = addedBy.get(pair[0]);
+            if (event == null || edgeCopy.put(pair[0], pair[1]) != null)
+                return false;
+            NetworkNode node = pair[1].childNode;
+            // the second parent edge of a reassortment
+            if (nodeCopy.containsKey(event.node)) {
+                if (nodeCopy.get(event.node) != node)
+                    return false;
+                continue;
+            }
+            if (Precision.round(node.getHeight(), 10) != event.time
+                    || node.getParentEdges().size() != event.lineagesAdded.size()
+                    || node.getChildEdges().size() != event.lineagesRemoved.size())
+                return false;
+            nodeCopy.put(event.node, node);
+            for (int k = 0; k < event.lineagesRemoved.size(); k++)
+                pairs.push(new NetworkEdge[] { event.lineagesRemoved.get(k), node.getChildEdges().get(k) });
+        }
+        if (nodeCopy.size() != networkEventList.size() || edgeCopy.size() != addedBy.size())
+            return false;
 
+        eventOfNode.clear();
+        for (StructuredNetworkEvent event : networkEventList) {
+            event.node = nodeCopy.get(event.node);
+            for (int k = 0; k < event.lineagesAdded.size(); k++)
+                event.lineagesAdded.set(k, edgeCopy.get(event.lineagesAdded.get(k)));
+            for (int k = 0; k < event.lineagesRemoved.size(); k++)
+                event.lineagesRemoved.set(k, edgeCopy.get(event.lineagesRemoved.get(k)));
+            eventOfNode.put(event.node, event);
+        }
+        eventMapValid = true;
         return true;
     }
 
     @Override
     protected void restore() {
-        List<StructuredNetworkEvent> tmp = networkEventList;
+        for (StructuredNetworkEvent event : changedEvents) {
+            event.backup.copyStructureTo(event);
+            event.journaled = false;
+        }
+        changedEvents.clear();
         networkEventList = storedNetworkEventList;
-        storedNetworkEventList = tmp;
-        
-        eventListDirty = true;
-        
+        listShared = true;
+        // the events before the first change are the stored ones
+        arraysValidTo = Math.min(arraysValidTo, changedFrom);
+        changedFrom = Integer.MAX_VALUE;
+        observability = storedObservability;
+
+        // After an edit the network is restored to the copy made at store,
+        // whose nodes the events do not refer to until they are bound to it.
+        // Otherwise only binomialProb changed and the journal restored the
+        // events exactly.
+        lineageIdsKept = !networkEdited || bindToCopy(network.getRootEdge());
+        if (!lineageIdsKept) {
+            eventMapValid = false;
+            eventListDirty = true;
+            arraysValidTo = 0;
+        } else {
+            if (networkEdited)
+                bindEventArrays();
+            eventListDirty = false;
+        }
+        networkEdited = false;
+
         super.restore();
     }
 
     @Override
     protected void store() {
-        storedNetworkEventList.clear();
-        storedNetworkEventList.addAll(networkEventList);
+        for (StructuredNetworkEvent event : changedEvents)
+            event.journaled = false;
+        changedEvents.clear();
+        storedNetworkEventList = networkEventList;
+        listShared = true;
+        changedFrom = Integer.MAX_VALUE;
+        storedObservability = observability;
+        networkEdited = false;
 
         super.store();
     }
-}
\ No newline at end of file
+}
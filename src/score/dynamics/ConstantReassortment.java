@@ -1,6 +1,7 @@
 package score.dynamics;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 
 import beast.core.Input;
 import beast.core.Input.Validate;
@@ -44,21 +45,250 @@ public class ConstantReassortment extends Dynamics implements Loggable {
 		super.initAndValidate();
     }
 
-    public double[] getReassortmentRate(int i) {
-	if (reassortmentRates.get().getDimension() != dimensionInput.get()) {
+    /**
+     * Immutable copy of the rates of all epochs. The arrays of an epoch are
+     * shared with the previous snapshot as long as they did not change, and
+     * must not be modified by consumers.
+     */
+    public static final class RateSnapshot {
+	// unique over the lifetime of the dynamics, also across restores
+	private final long version;
+	// version of the snapshot in which the rates of each epoch last changed
+	private final long[] epochVersions;
+	// the tables are shared between snapshots and never modified, they are
+	// only handed out as copies
+	private final double[][] coalescentRates;
+	private final double[][] migrationRates;
+	private final double[][] reassortmentRates;
+	private final int[][] indicators;
+	private final double[] intervals;
+	// distinct reassortment rate vectors, shared by the epochs they apply to
+	private final double[][] reassortmentBlocks;
+
+	RateSnapshot(long version, long[] epochVersions, double[][] coalescentRates, double[][] migrationRates,
+		double[][] reassortmentRates, int[][] indicators, double[] intervals, double[][] reassortmentBlocks) {
+	    this.version = version;
+	    this.epochVersions = epochVersions;
+	    this.coalescentRates = coalescentRates;
+	    this.migrationRates = migrationRates;
+	    this.reassortmentRates = reassortmentRates;
+	    this.indicators = indicators;
+	    this.intervals = intervals;
+	    this.reassortmentBlocks = reassortmentBlocks;
+	}
+
+	public long getVersion() {
+	    return version;
+	}
+
+	public int getEpochCount() {
+	    return epochVersions.length;
+	}
+
+	/**
+	 * Index of the first epoch whose rates or start time differ from the
+	 * snapshot since, 0 if there is none to compare with.
+	 */
+	public int firstChangedEpoch(RateSnapshot since) {
+	    if (since == null || since.getEpochCount() != getEpochCount())
+		return 0;
+	    if (since.version == version)
+		return getEpochCount();
+	    for (int i = 0; i < getEpochCount(); i++)
+		if (epochVersions[i] != since.epochVersions[i])
+		    return i;
+	    return getEpochCount();
+	}
+
+	public double getCoalescentRate(int epoch, int type) {
+	    return coalescentRates[epoch][type];
+	}
+
+	public double getMigrationRate(int epoch, int index) {
+	    return migrationRates[epoch][index];
+	}
+
+	public double getReassortmentRate(int epoch, int type) {
+	    return reassortmentRates[epoch][type];
+	}
+
+	/**
+	 * copies of the rate tables, indexed by epoch
+	 */
+	public double[][] getCoalescentRates() {
+	    return copy(coalescentRates);
+	}
+
+	public double[][] getMigrationRates() {
+	    return copy(migrationRates);
+	}
+
+	public double[][] getReassortmentRates() {
+	    return copy(reassortmentRates);
+	}
+
+	public int[][] getIndicators() {
+	    int[][] copy = new int[indicators.length][];
+	    for (int i = 0; i < copy.length; i++)
+		copy[i] = indicators[i] == null ? null : indicators[i].clone();
+	    return copy;
+	}
+
+	public double[] getIntervals() {
+	    return intervals.clone();
+	}
+
+	private static double[][] copy(double[][] table) {
+	    double[][] copy = new double[table.length][];
+	    for (int i = 0; i < copy.length; i++)
+		copy[i] = table[i].clone();
+	    return copy;
+	}
+    }
+
+    private RateSnapshot snapshot, storedSnapshot;
+    private boolean snapshotDirty = true, storedSnapshotDirty = true;
+    private long lastVersion = -1;
+
+    /**
+     * Returns the rates of all epochs. A snapshot with a new version is only
+     * created if a rate or an epoch boundary actually changed since the last
+     * one, otherwise the previous snapshot is returned.
+     */
+    public RateSnapshot getRateSnapshot() {
+	if (snapshot != null && !snapshotDirty)
+	    return snapshot;
+	snapshotDirty = false;
+
+	int blocks = getReassortmentEpochCount();
+	int dim = dimensionInput.get();
+	updateReassortmentRates();
+
+	RateSnapshot previous = snapshot;
+	int n = getEpochCount();
+	if (previous != null && previous.getEpochCount() != n)
+	    previous = null;
+	double[] intervals = getIntervals();
+
+	// the reassortment rates of epoch b are at b*dimension ... (b+1)*dimension-1
+	double[][] reassortBlocks = new double[blocks][];
+	boolean[] reassortChanged = new boolean[blocks];
+	for (int b = 0; b < blocks; b++) {
+	    double[] old = previous == null || previous.reassortmentBlocks.length != blocks ? null
+		    : previous.reassortmentBlocks[b];
+	    reassortChanged[b] = old == null;
+	    for (int k = 0; k < dim && !reassortChanged[b]; k++)
+		reassortChanged[b] = old[k] != getReassortmentRateValue(b, k);
+	    if (reassortChanged[b]) {
+		reassortBlocks[b] = new double[dim];
+		for (int k = 0; k < dim; k++)
+		    reassortBlocks[b][k] = getReassortmentRateValue(b, k);
+	    } else {
+		reassortBlocks[b] = old;
+	    }
+	}
+
+	long version = lastVersion + 1;
+	long[] epochVersions = new long[n];
+	double[][] coalescent = new double[n][];
+	double[][] migration = new double[n][];
+	double[][] reassortment = new double[n][];
+	int[][] indicators = new int[n][];
+	boolean changed = previous == null;
+	// a changed epoch length moves the start of all later epochs
+	boolean shifted = previous == null;
+	for (int i = 0; i < n; i++) {
+	    shifted = shifted || i >= intervals.length || i >= previous.intervals.length
+		    || intervals[i] != previous.intervals[i];
+	    double[] c = getCoalescentRate(i);
+	    double[] m = getBackwardsMigration(i);
+	    int[] ind = getIndicators(i);
+	    int block = getReassortmentEpoch(i);
+	    if (!shifted && !reassortChanged[block] && Arrays.equals(c, previous.coalescentRates[i])
+		    && Arrays.equals(m, previous.migrationRates[i]) && Arrays.equals(ind, previous.indicators[i])) {
+		epochVersions[i] = previous.epochVersions[i];
+		coalescent[i] = previous.coalescentRates[i];
+		migration[i] = previous.migrationRates[i];
+		indicators[i] = previous.indicators[i];
+	    } else {
+		epochVersions[i] = version;
+		coalescent[i] = c.clone();
+		migration[i] = m.clone();
+		indicators[i] = ind == null ? null : ind.clone();
+		changed = true;
+	    }
+	    reassortment[i] = reassortBlocks[block];
+	}
+	if (!changed && intervals.length == previous.intervals.length)
+	    return snapshot;
+
+	lastVersion = version;
+	snapshot = new RateSnapshot(version, epochVersions, coalescent, migration, reassortment, indicators,
+		intervals.clone(), reassortBlocks);
+	return snapshot;
+    }
+
+    /**
+     * Number of distinct reassortment rate vectors in the reassortment rates
+     * input, the constant dynamics use the same rates in every epoch.
+     */
+    protected int getReassortmentEpochCount() {
+	return 1;
+    }
+
+    /**
+     * Called before the reassortment rates are read for a new snapshot.
+     */
+    protected void updateReassortmentRates() {
+	int dim = dimensionInput.get() * getReassortmentEpochCount();
+	if (reassortmentRates.get().getDimension() != dim) {
 	    System.err.println("Wrong dimension of reassortment rates input. "
 		    + "Reassortment rates for all types set to the value: " + reassortmentRates.get().getArrayValue(0));
-	    reassortmentRates.get().setDimension(dimensionInput.get());
-	}
-	double[] reassort = new double[dimensionInput.get()];
-	for (int k = 0; k < dimensionInput.get(); k++) {
-	    reassort[k] = reassortmentRates.get().getArrayValue(k);
+	    reassortmentRates.get().setDimension(dim);
 	}
+    }
 
-	return reassort;
+    /**
+     * Reassortment rate of type in the reassortment rate vector block.
+     */
+    protected double getReassortmentRateValue(int block, int type) {
+	return reassortmentRates.get().getArrayValue(block * dimensionInput.get() + type);
     }
 
+    /**
+     * Index of the reassortment rate vector used in epoch i.
+     */
+    protected int getReassortmentEpoch(int i) {
+	return 0;
+    }
 
+    /**
+     * Copy of the reassortment rates of epoch i.
+     */
+    public double[] getReassortmentRate(int i) {
+	return getRateSnapshot().reassortmentRates[i].clone();
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+	snapshotDirty = true;
+	return super.requiresRecalculation();
+    }
+
+    @Override
+    protected void store() {
+	storedSnapshot = snapshot;
+	storedSnapshotDirty = snapshotDirty;
+	super.store();
+    }
+
+    @Override
+    protected void restore() {
+	// the parameters are back to the values of the stored snapshot
+	snapshot = storedSnapshot;
+	snapshotDirty = storedSnapshotDirty;
+	super.restore();
+    }
 
     @Override
     public void recalculate() {
@@ -77,7 +307,8 @@ public class ConstantReassortment extends Dynamics implements Loggable {
 
     @Override
     public boolean intervalIsDirty(int i) {
-	return scDynamics.intervalIsDirty(i);
+	// the reassortment rates are the same in every epoch
+	return scDynamics.intervalIsDirty(i) || reassortmentRates.get().somethingIsDirty();
     }
 
     @Override
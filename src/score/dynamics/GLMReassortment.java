@@ -0,0 +1,176 @@
+package score.dynamics;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.parameter.BooleanParameter;
+import beast.core.parameter.RealParameter;
+
+@Description("Reassortment rates per type that are a log-linear function of covariates, "
+		+ "rate = scaler * exp(sum_j coefficient_j * indicator_j * covariate_j).")
+public class GLMReassortment extends ConstantReassortment {
+
+	public Input<List<RealParameter>> covariatesInput = new Input<>("covariate",
+			"covariate with one value per type, or one value per type and epoch of the structured coalescent "
+					+ "dynamics with the values of epoch k at k*dimension ... (k+1)*dimension-1",
+			new ArrayList<>());
+	public Input<RealParameter> coefficientsInput = new Input<>("coefficients",
+			"coefficient of each covariate", Validate.REQUIRED);
+	public Input<BooleanParameter> indicatorsInput = new Input<>("indicators",
+			"indicates whether a covariate is used, all covariates are used if not given");
+	public Input<RealParameter> scalerInput = new Input<>("scaler",
+			"reassortment rate if all covariates are 0", Validate.REQUIRED);
+
+	// number of incremental updates after which the linear predictor is
+	// recomputed from scratch, such that rounding errors do not accumulate
+	static final int FULL_UPDATE_INTERVAL = 1000;
+
+	private int types, epochs;
+	// covariate values for all epochs, covariates[j][k * types + s]
+	private double[][] covariates;
+	// coefficient times indicator currently included in the linear predictor
+	private double[] effect, storedEffect;
+	private double[] linearPredictor, storedLinearPredictor;
+	private int updates;
+
+	public GLMReassortment() {
+		reassortmentRates.setRule(Validate.OPTIONAL);
+	}
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		types = dimensionInput.get();
+
+		List<RealParameter> covariateList = covariatesInput.get();
+		if (coefficientsInput.get().getDimension() != covariateList.size())
+			throw new IllegalArgumentException("the number of coefficients has to match the number of covariates");
+		if (indicatorsInput.get() != null && indicatorsInput.get().getDimension() != covariateList.size())
+			throw new IllegalArgumentException("the number of indicators has to match the number of covariates");
+
+		epochs = 1;
+		for (RealParameter covariate : covariateList) {
+			if (covariate.getDimension() == types * scDynamics.getEpochCount())
+				epochs = scDynamics.getEpochCount();
+			else if (covariate.getDimension() != types)
+				throw new IllegalArgumentException("covariate " + covariate.getID() + " has dimension "
+						+ covariate.getDimension() + ", expected " + types + " or "
+						+ types * scDynamics.getEpochCount());
+		}
+
+		// constant covariates are repeated for every epoch
+		covariates = new double[covariateList.size()][epochs * types];
+		for (int j = 0; j < covariates.length; j++) {
+			RealParameter covariate = covariateList.get(j);
+			for (int k = 0; k < epochs * types; k++)
+				covariates[j][k] = covariate.getArrayValue(k % covariate.getDimension());
+		}
+
+		effect = new double[covariates.length];
+		storedEffect = new double[covariates.length];
+		linearPredictor = new double[epochs * types];
+		storedLinearPredictor = new double[epochs * types];
+		computeLinearPredictor();
+	}
+
+	private double getEffect(int j) {
+		if (indicatorsInput.get() != null && !indicatorsInput.get().getValue(j))
+			return 0.0;
+		return coefficientsInput.get().getArrayValue(j);
+	}
+
+	private void computeLinearPredictor() {
+		for (int j = 0; j < covariates.length; j++)
+			effect[j] = getEffect(j);
+		for (int k = 0; k < linearPredictor.length; k++) {
+			double eta = 0.0;
+			for (int j = 0; j < covariates.length; j++)
+				eta += effect[j] * covariates[j][k];
+			linearPredictor[k] = eta;
+		}
+		updates = 0;
+	}
+
+	/**
+	 * Adds the change of each coefficient times its covariate to the linear
+	 * predictor. The epochs whose rates changed are found by comparing the
+	 * rate snapshots.
+	 */
+	@Override
+	protected void updateReassortmentRates() {
+		if (updates >= FULL_UPDATE_INTERVAL) {
+			computeLinearPredictor();
+		} else {
+			for (int j = 0; j < covariates.length; j++) {
+				double delta = getEffect(j) - effect[j];
+				if (delta == 0.0)
+					continue;
+				for (int k = 0; k < linearPredictor.length; k++) {
+					if (covariates[j][k] != 0.0)
+						linearPredictor[k] += delta * covariates[j][k];
+				}
+				effect[j] += delta;
+				updates++;
+			}
+		}
+	}
+
+	@Override
+	protected double getReassortmentRateValue(int block, int type) {
+		return scalerInput.get().getArrayValue() * Math.exp(linearPredictor[block * types + type]);
+	}
+
+	@Override
+	protected int getReassortmentEpochCount() {
+		return epochs;
+	}
+
+	@Override
+	protected int getReassortmentEpoch(int i) {
+		return Math.min(i, epochs - 1);
+	}
+
+	@Override
+	public boolean intervalIsDirty(int i) {
+		return scDynamics.intervalIsDirty(i) || scalerInput.get().somethingIsDirty()
+				|| coefficientsInput.get().somethingIsDirty()
+				|| (indicatorsInput.get() != null && indicatorsInput.get().somethingIsDirty());
+	}
+
+	@Override
+	protected void store() {
+		System.arraycopy(effect, 0, storedEffect, 0, effect.length);
+		System.arraycopy(linearPredictor, 0, storedLinearPredictor, 0, linearPredictor.length);
+		super.store();
+	}
+
+	@Override
+	protected void restore() {
+		double[] tmp = effect;
+		effect = storedEffect;
+		storedEffect = tmp;
+		tmp = linearPredictor;
+		linearPredictor = storedLinearPredictor;
+		storedLinearPredictor = tmp;
+		super.restore();
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		for (int k = 0; k < epochs * types; k++) {
+			out.print(String.format("%s.%s%s\t", getID(), getStringStateValue(k % types),
+					epochs > 1 ? "." + k / types : ""));
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		RateSnapshot rates = getRateSnapshot();
+		for (int k = 0; k < epochs * types; k++)
+			out.print(rates.getReassortmentRate(Math.min(k / types, rates.getEpochCount() - 1), k % types) + "\t");
+	}
+}
@@ -0,0 +1,154 @@
+package score.dynamics;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.parameter.RealParameter;
+
+@Description("Reassortment rates that are piecewise constant in time. The reassortment rate shifts are merged "
+		+ "with the epochs of the structured coalescent dynamics, such that every epoch of the merged table "
+		+ "has one set of coalescent, migration and reassortment rates.")
+public class SkylineReassortment extends ConstantReassortment {
+
+	public Input<RealParameter> reassortmentRateShiftsInput = new Input<>("reassortmentRateShifts",
+			"times before the most recent sample at which the reassortment rates change, in increasing order. "
+					+ "The reassortment rates of epoch k are at k*dimension ... (k+1)*dimension-1",
+			Validate.REQUIRED);
+
+	// duration of each merged epoch, the last one is infinite
+	private double[] intervals;
+	// epoch of the structured coalescent dynamics and reassortment rate
+	// vector that apply in each merged epoch
+	private int[] coalescentEpoch;
+	private int[] reassortmentEpoch;
+	private boolean tableDirty = true;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		double[] shifts = reassortmentRateShiftsInput.get().getDoubleValues();
+		for (int i = 1; i < shifts.length; i++) {
+			if (shifts[i] <= shifts[i - 1])
+				throw new IllegalArgumentException("reassortment rate shifts have to be increasing");
+		}
+	}
+
+	/**
+	 * Merges the rate shifts of the structured coalescent dynamics and of the
+	 * reassortment rates into one table of epochs.
+	 */
+	private void setUpEpochs() {
+		if (!tableDirty)
+			return;
+		tableDirty = false;
+
+		int scEpochs = scDynamics.getEpochCount();
+		double[] scShifts = new double[scEpochs - 1];
+		double t = 0.0;
+		for (int j = 0; j < scEpochs - 1; j++) {
+			t += scDynamics.getInterval(j);
+			scShifts[j] = t;
+		}
+		double[] reassortmentShifts = reassortmentRateShiftsInput.get().getDoubleValues();
+
+		int n = scShifts.length + reassortmentShifts.length + 1;
+		double[] start = new double[n];
+		coalescentEpoch = new int[n];
+		reassortmentEpoch = new int[n];
+		int a = 0, b = 0, epochs = 1;
+		while (a < scShifts.length || b < reassortmentShifts.length) {
+			double next = Math.min(a < scShifts.length ? scShifts[a] : Double.POSITIVE_INFINITY,
+					b < reassortmentShifts.length ? reassortmentShifts[b] : Double.POSITIVE_INFINITY);
+			// shifts at the same time start a single epoch
+			if (a < scShifts.length && scShifts[a] == next)
+				a++;
+			if (b < reassortmentShifts.length && reassortmentShifts[b] == next)
+				b++;
+			start[epochs] = next;
+			coalescentEpoch[epochs] = a;
+			reassortmentEpoch[epochs] = b;
+			epochs++;
+		}
+
+		intervals = new double[epochs];
+		for (int i = 0; i < epochs - 1; i++)
+			intervals[i] = start[i + 1] - start[i];
+		intervals[epochs - 1] = Double.POSITIVE_INFINITY;
+		if (epochs < n) {
+			coalescentEpoch = Arrays.copyOf(coalescentEpoch, epochs);
+			reassortmentEpoch = Arrays.copyOf(reassortmentEpoch, epochs);
+		}
+	}
+
+	@Override
+	protected int getReassortmentEpochCount() {
+		return reassortmentRateShiftsInput.get().getDimension() + 1;
+	}
+
+	@Override
+	protected int getReassortmentEpoch(int i) {
+		setUpEpochs();
+		return reassortmentEpoch[Math.min(i, reassortmentEpoch.length - 1)];
+	}
+
+	@Override
+	public double getInterval(int i) {
+		setUpEpochs();
+		return i < intervals.length ? intervals[i] : Double.POSITIVE_INFINITY;
+	}
+
+	@Override
+	public double[] getIntervals() {
+		setUpEpochs();
+		return intervals;
+	}
+
+	@Override
+	public boolean intervalIsDirty(int i) {
+		setUpEpochs();
+		return scDynamics.intervalIsDirty(coalescentEpoch[Math.min(i, coalescentEpoch.length - 1)])
+				|| reassortmentRates.get().somethingIsDirty() || reassortmentRateShiftsInput.get().somethingIsDirty();
+	}
+
+	@Override
+	public double[] getCoalescentRate(int i) {
+		setUpEpochs();
+		return scDynamics.getCoalescentRate(coalescentEpoch[Math.min(i, coalescentEpoch.length - 1)]);
+	}
+
+	@Override
+	public double[] getBackwardsMigration(int i) {
+		setUpEpochs();
+		return scDynamics.getBackwardsMigration(coalescentEpoch[Math.min(i, coalescentEpoch.length - 1)]);
+	}
+
+	@Override
+	public int getEpochCount() {
+		setUpEpochs();
+		return intervals.length;
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		int types = dimensionInput.get();
+		for (int i = 0; i < reassortmentRates.get().getDimension(); i++) {
+			out.print(String.format("%s.%s.%d\t", reassortmentRates.get().getID(),
+					this.getStringStateValue(i % types), i / types));
+		}
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		tableDirty = true;
+		return super.requiresRecalculation();
+	}
+
+	@Override
+	protected void restore() {
+		tableDirty = true;
+		super.restore();
+	}
+}
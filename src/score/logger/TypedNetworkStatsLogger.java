@@ -9,6 +9,7 @@ import java.util.stream.Collectors;
 import beast.core.BEASTObject;
 import beast.core.Input;
 import beast.core.Loggable;
+import coalre.network.Network;
 import coalre.network.NetworkEdge;
 import coalre.network.NetworkNode;
 import score.dynamics.ConstantReassortment;
@@ -46,6 +47,12 @@ public class TypedNetworkStatsLogger extends BEASTObject implements Loggable {
 		} else {
 			simulation = false;
 			network = typedNetworkInput.get();
+			// the counts are part of the line of their sample, which would
+			// have to wait for the background mapping on the chain
+			if (network.asyncMappingInput.get() && network.remapOnLogInput.get())
+				throw new IllegalArgumentException("the statistics of network " + network.getID()
+						+ " cannot be logged with asyncMapping, set asyncMapping=\"false\" or log the typed "
+						+ "networks only");
 			dynamics = network.dynamics;
 			nTypes = dynamics.getNrTypes();
 		}
@@ -54,21 +61,18 @@ public class TypedNetworkStatsLogger extends BEASTObject implements Loggable {
 
 
 	private void countChanges() {
+		countChanges(simulation ? simNetwork : network);
+	}
+
+	private void countChanges(Network network) {
 		for (int i = 0; i < nTypes; i++) {
 			for (int j = 0; j < nTypes; j++) {
 				countMatrix[i][j] = 0;
 			}
 		}
-		List<NetworkNode> migrationNodes;
-
-		if (simulation)
-			migrationNodes = simNetwork.getNodes().stream().filter(n -> n.getParentCount() == 1)
+		List<NetworkNode> migrationNodes = network.getNodes().stream().filter(n -> n.getParentCount() == 1)
 				.filter(n -> n.getChildCount() == 1).sorted(Comparator.comparing(NetworkNode::getHeight))
 				.collect(Collectors.toList());
-		else
-			migrationNodes = network.getNodes().stream().filter(n -> n.getParentCount() == 1)
-					.filter(n -> n.getChildCount() == 1).sorted(Comparator.comparing(NetworkNode::getHeight))
-					.collect(Collectors.toList());
 
 		Collections.reverse(migrationNodes);
 
@@ -102,20 +106,25 @@ public class TypedNetworkStatsLogger extends BEASTObject implements Loggable {
 					? network.getID() + "."
 					: "";
 
-        for (int type=0; type<nTypes; type++) {
-            for (int typeP=0; typeP<nTypes; typeP++) {
-                if (type == typeP)
-                    continue;
-
-				if (simulation)
-					out.print(prefix + "count_" + simNetwork.typeIndexToName.get(type)
-							+ "_to_" + simNetwork.typeIndexToName.get(typeP) + "\t");
-
-				else
-					out.print(prefix + "count_" + dynamics.getStringStateValue(type)
-						+ "_to_" + dynamics.getStringStateValue(typeP) + "\t");
-            }
-        }
+		// one set of counts per draw of the mapping
+		int draws = simulation ? 1 : network.drawsInput.get();
+		for (int k = 0; k < draws; k++) {
+			String suffix = k > 0 ? "." + k : "";
+	        for (int type=0; type<nTypes; type++) {
+	            for (int typeP=0; typeP<nTypes; typeP++) {
+	                if (type == typeP)
+	                    continue;
+
+					if (simulation)
+						out.print(prefix + "count_" + simNetwork.typeIndexToName.get(type)
+								+ "_to_" + simNetwork.typeIndexToName.get(typeP) + "\t");
+
+					else
+						out.print(prefix + "count_" + dynamics.getStringStateValue(type)
+							+ "_to_" + dynamics.getStringStateValue(typeP) + suffix + "\t");
+	            }
+	        }
+		}
     }
 
     @Override
@@ -128,8 +137,18 @@ public class TypedNetworkStatsLogger extends BEASTObject implements Loggable {
 		else
 			simNetwork = (SimulateStructureCoalescentNetwork) simNetwork.getCurrent();
 
-		countChanges();
+		if (simulation) {
+			countChanges();
+			logCounts(out);
+		} else {
+			for (Network mapping : network.getMappings(sample)) {
+				countChanges(mapping);
+				logCounts(out);
+			}
+		}
+    }
 
+    private void logCounts(PrintStream out) {
         for (int type=0; type<nTypes; type++) {
             for (int typeP = 0; typeP < nTypes; typeP++) {
                 if (type == typeP)
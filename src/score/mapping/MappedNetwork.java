@@ -2,10 +2,20 @@ package score.mapping;
 
 
 import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.jblas.DoubleMatrix;
 
@@ -18,11 +28,18 @@ import beast.util.Randomizer;
 import coalre.network.Network;
 import coalre.network.NetworkEdge;
 import coalre.network.NetworkNode;
+import score.distribution.BackwardPassRecord;
+import score.distribution.NetworkEventArrays;
+import score.distribution.SCORE;
 import score.distribution.StructuredNetworkEvent;
 import score.distribution.StructuredNetworkIntervals;
 import score.dynamics.ConstantReassortment;
+import score.dynamics.ConstantReassortment.RateSnapshot;
 import score.math.Euler2ndOrder;
+import score.math.DenseOutput;
 import score.math.Euler2ndOrderBase;
+import score.math.ReassortmentObservability;
+import score.utils.NetworkArena;
 
 
 /**
@@ -68,11 +85,22 @@ public class MappedNetwork extends Network {
 	public Input<Integer> nRecordsInput = new Input<>("nRecords",
 			"maximum number of records to keep per interval for stochastic mapping", 200);
 
+	public Input<Double> recordToleranceInput = new Input<>("recordTolerance",
+			"maximal estimated error of the linear interpolation of the lineage state probabilities between "
+					+ "records, records are placed where this error would be exceeded",
+			1e-4);
+
 	public Input<Boolean> rejectionInput = new Input<>("rejection",
 			"If true, mapper will reject simulation if parent lineage types of reassortment event are different. "
-					+ "Can significantly increase the runtime",
+					+ "Can significantly increase the runtime. Only used if jointReassortmentTypes is false",
 			true);
 
+	public Input<Boolean> jointReassortmentTypesInput = new Input<>("jointReassortmentTypes",
+			"If true, the parent lineages of a reassortment event are simulated jointly from the time both exist, "
+					+ "conditioned on arriving at the event in the same type, instead of rejecting or resampling "
+					+ "simulations in which they disagree",
+			false);
+
 	public Input<Boolean> remapOnLogInput = new Input<>("remapOnLog",
 			"If true, mapping will be regenerated when this object " +
 					"is logged.",
@@ -82,9 +110,41 @@ public class MappedNetwork extends Network {
 			"Does child lineage of reassortment event inherits the type from at least one parent",
 			true);
 
+	public Input<Boolean> asyncMappingInput = new Input<>("asyncMapping",
+			"If true, mappings for logging are done by background workers on a snapshot of the network and the "
+					+ "rates taken at log time, and the trees are written in order of the samples once they are "
+					+ "complete, such that the chain does not wait for the mapping. Not supported by "
+					+ "TypedNetworkStatsLogger",
+			false);
+
+	public Input<Integer> mappingThreadsInput = new Input<>("mappingThreads",
+			"number of workers for the background mappings if asyncMapping is true and for the draws of a "
+					+ "mapping if draws is larger than one", 2);
+
+	public Input<Integer> maxPendingMappingsInput = new Input<>("maxPendingMappings",
+			"maximal number of unfinished background mappings, logging waits for the oldest one if it is exceeded",
+			8);
+
+	public Input<SCORE> scoreInput = new Input<>("score",
+			"SCORE distribution of the untyped network with the same dynamics. If given, the backward pass of its "
+					+ "last accepted state is reused for the mapping instead of integrating it again. Otherwise the "
+					+ "mapping integrates with the epsilon and maxStep of score");
+
+	public Input<Function> binomialProbInput = new Input<>("binomialProb",
+			"Probability of a given segment choosing a particular parent. If not given, the one of the network "
+					+ "intervals of score is used, or 0.5 without score.");
+
+	public Input<Integer> drawsInput = new Input<>("draws",
+			"number of independent mappings drawn in parallel for every mapping of the network. "
+					+ "The backward integration is shared, every draw is logged.",
+			1);
+
 
 	boolean rejection;
+	boolean jointReassortmentTypes;
 	boolean inheritReaType;
+	int draws, nRecords;
+	double recordTolerance;
 
 
 	StructuredNetworkIntervals intervals = new StructuredNetworkIntervals();
@@ -104,28 +164,70 @@ public class MappedNetwork extends Network {
 	private int linProbsLength;
 	Euler2ndOrderBase euler;
 
-	/**
-	 * Maximum number of steps in each waiting time calculation in forward
-	 * simulation.
-	 */
-	private final int FORWARD_INTEGRATION_STEPS = 100;
-
 	private final double STEP_SIZE_BACKWARD_INTEGRATION = 0.000001;
 
 	private final double MAX_STEP_FOR_BACKWARD_INTEGRATION = 0.1;
 
+	// settings of the backward integration, those of score if given such
+	// that the mapping integrates like the pass recorded by score
+	private double epsilon = STEP_SIZE_BACKWARD_INTEGRATION, maxStep = MAX_STEP_FOR_BACKWARD_INTEGRATION;
+
+	// maximal number of steps of the joint simulation of reassortment parents
+	// between two records
+	private static final int MAX_BRIDGE_SUBSTEPS = 64;
+
 	List<NetworkEdge> activeLineages;
 
 	private double[] coalescentRates;
 	private double[] reassortmentRates;
+	// rate tables of the mapped state, copied from its rate snapshot
+	private double[][] coalescentRateTable;
+	private double[][] migrationRateTable;
+	private double[][] reassortmentRateTable;
+	private int[][] indicatorTable;
+	// durations of the epochs and the times they start at
+	private double[] rateShiftTable;
+	private double[] epochStarts;
+	// element-wise maximum of the migration rates over all epochs
+	private double[] maxMigrationRates;
+	private NetworkEventArrays events;
+	private final MappingDraw mainDraw = new MappingDraw(null);
+	// typed networks of all draws of the last mapping, the first one is this
+	private final List<Network> mappings = new ArrayList<>();
+	private ReassortmentObservability observability;
 	int[] parents;
 
 
+	public MappedNetwork() {
+	}
+
+	/**
+	 * Background worker with the settings of owner and state of its own.
+	 */
+	private MappedNetwork(MappedNetwork owner) {
+		rejection = owner.rejection;
+		jointReassortmentTypes = owner.jointReassortmentTypes;
+		inheritReaType = owner.inheritReaType;
+		draws = owner.draws;
+		nRecords = owner.nRecords;
+		recordTolerance = owner.recordTolerance;
+		epsilon = owner.epsilon;
+		maxStep = owner.maxStep;
+		dynamics = owner.dynamics;
+		types = owner.types;
+		mappingPool = owner.mappingPool;
+		activeLineages = new ArrayList<>();
+	}
+
 	@Override
 	public void initAndValidate() {
 
 		rejection = rejectionInput.get();
+		jointReassortmentTypes = jointReassortmentTypesInput.get();
 		inheritReaType = inheritReaTypeInput.get();
+		draws = drawsInput.get();
+		nRecords = nRecordsInput.get();
+		recordTolerance = recordToleranceInput.get();
 
 		if (dynamicsInput.get() == null) {
 			setDynamics();
@@ -135,35 +237,195 @@ public class MappedNetwork extends Network {
 		types = dynamics.getNrTypes();
 
 		activeLineages = new ArrayList<>();
+		mappings.clear();
+		mappings.add(this);
+
+		if (scoreInput.get() != null) {
+			if (scoreInput.get().network != netwokInput.get() || scoreInput.get().dynamics != dynamics)
+				throw new IllegalArgumentException("score has to be the distribution of the untyped network "
+						+ "under the dynamics of the mapping");
+			if (binomialProbInput.get() != null && binomialProbInput.get() != getScoreIntervals().binomialProbInput.get())
+				throw new IllegalArgumentException("binomialProb has to be the one of the network intervals of score");
+			epsilon = scoreInput.get().epsilonInput.get();
+			maxStep = scoreInput.get().maxStepInput.get();
+			scoreInput.get().setRecordBackwardPass(nRecords, recordTolerance);
+		}
 
 		if (mapOnInitInput.get())
 			doStochasticMapping();
 	}
 
 	public void doStochasticMapping() {
-		untypedNetwork = (Network) netwokInput.get().copy();
-		this.setRootEdge(untypedNetwork.getRootEdge());
-
 		if (dynamicsInput.get() == null) {
 			setDynamics();
 		}
 
+		BackwardPassRecord pass = getBackwardPass();
+		NetworkNode[] roots = pass != null ? map(pass, null)
+				: map(snapshotNetwork(), dynamics.getRateSnapshot(), getBinomialProb(), null);
+
+		this.setRootEdge(roots[0].getParentEdges().get(0));
+		mappings.clear();
+		mappings.add(this);
+		for (int k = 1; k < draws; k++)
+			mappings.add(new Network(roots[k].getParentEdges().get(0)));
+	}
+
+	/**
+	 * Copy of the untyped network that is not changed by the chain.
+	 */
+	private Network snapshotNetwork() {
+		return (Network) netwokInput.get().copy();
+	}
+
+	/**
+	 * Copy of the untyped network as an arena, such that the network objects
+	 * of a background mapping are created by its worker rather than on the
+	 * chain. Null if the network has too many segments for an arena.
+	 */
+	private NetworkArena snapshotArena() {
+		Network network = netwokInput.get();
+		if (!NetworkArena.supports(network))
+			return null;
+		return NetworkArena.fromNetwork(network, new IdentityHashMap<>(), new IdentityHashMap<>());
+	}
+
+	private StructuredNetworkIntervals getScoreIntervals() {
+		return scoreInput.get().networkIntervalsInput.get();
+	}
+
+	/**
+	 * Current probability of a segment choosing a particular parent.
+	 */
+	private double getBinomialProb() {
+		if (binomialProbInput.get() != null)
+			return binomialProbInput.get().getArrayValue();
+		return scoreInput.get() != null ? getScoreIntervals().getBinomialProb() : 0.5;
+	}
+
+	/**
+	 * Backward pass of the current state recorded by the score, null if
+	 * there is none.
+	 */
+	private BackwardPassRecord getBackwardPass() {
+		return scoreInput.get() != null ? scoreInput.get().getBackwardPass() : null;
+	}
+
+	/**
+	 * Maps the untyped network under the given rates and binomialProb and
+	 * returns the roots of the typed networks of all draws. Draws use the
+	 * global Randomizer unless a random stream is given.
+	 */
+	private NetworkNode[] map(Network untyped, RateSnapshot snapshot, double binomialProb,
+			SplittableRandom random) {
+		untypedNetwork = untyped;
+		setRates(snapshot);
+
+		intervals.binomialProbInput.setValue(new RealParameter(new Double[] { binomialProb }), intervals);
 		intervals.initAndValidate(untypedNetwork);
 		eventList = intervals.getNetworkEventList(untypedNetwork);
+		events = intervals.getEventArrays(untypedNetwork);
 
+		// the forward simulation leaves the untyped network and the results
+		// of the backward integration untouched, such that rejected draws
+		// only have to repeat the forward simulation
 		backwardIntegration();
-		Object[] net = forwardSimulateNetwork();
 
-		while (!(Boolean) net[0]) {
-			untypedNetwork = (Network) netwokInput.get().copy();
+		return drawMappings(random);
+	}
+
+	/**
+	 * Maps the network of a backward pass recorded by the score, such that
+	 * only the forward simulation is left to do.
+	 */
+	private NetworkNode[] map(BackwardPassRecord pass, SplittableRandom random) {
+		NetworkNode[] passNodes = new NetworkNode[pass.network.nodeCount];
+		NetworkEdge[] passEdges = new NetworkEdge[pass.network.edgeCount];
+		untypedNetwork = pass.network.toNetwork(passNodes, passEdges);
+		setRates(pass.rates);
+
+		eventList = new ArrayList<>(pass.size);
+		for (int i = 0; i < pass.size; i++) {
+			StructuredNetworkEvent event = new StructuredNetworkEvent();
+			event.type = pass.getEventType(i);
+			event.time = pass.time[i];
+			event.node = passNodes[pass.node[i]];
+			event.denseOutput = pass.denseOutput[i];
+			if (pass.lineages[i] != null) {
+				event.activeLineages = new ArrayList<>(pass.lineages[i].length);
+				for (int id : pass.lineages[i])
+					event.activeLineages.add(passEdges[pass.lineageEdge[id]]);
+			}
+			eventList.add(event);
+		}
+		// the forward simulation starts from the last node state
+		nodeStateProbabilities = new DoubleMatrix[] { new DoubleMatrix(pass.rootProbabilities) };
+		setUpMaxMigrationRates();
 
-			intervals.initAndValidate(untypedNetwork);
-			eventList = intervals.getNetworkEventList(untypedNetwork);
-			backwardIntegration();
-			net = forwardSimulateNetwork();
+		return drawMappings(random);
+	}
+
+	private NetworkNode[] drawMappings(SplittableRandom random) {
+		MappingContext context = getMappingContext();
+		NetworkNode[] roots = new NetworkNode[draws];
+		if (draws == 1) {
+			roots[0] = forwardSimulate(context, random == null ? mainDraw : new MappingDraw(random));
+		} else {
+			// one stream per draw, split off sequentially such that the
+			// mapping is reproducible for a given seed
+			if (random == null)
+				random = new SplittableRandom(Randomizer.nextLong());
+			List<Callable<NetworkNode>> tasks = new ArrayList<>();
+			for (int k = 0; k < draws; k++) {
+				MappingDraw draw = new MappingDraw(random.split());
+				tasks.add(() -> forwardSimulate(context, draw));
+			}
+			try {
+				List<Future<NetworkNode>> results = getMappingPool().invokeAll(tasks);
+				for (int k = 0; k < draws; k++)
+					roots[k] = results.get(k).get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException("parallel stochastic mapping failed", e);
+			}
 		}
+		return roots;
+	}
 
-		this.setRootEdge(((NetworkNode) net[1]).getParentEdges().get(0));
+	/**
+	 * Everything the draws of the current mapping read, taken from this
+	 * network before they start.
+	 */
+	private MappingContext getMappingContext() {
+		String[] typeLabels = new String[types];
+		for (int k = 0; k < types; k++)
+			typeLabels[k] = dynamics.getStringStateValue(k);
+		int[] sampleTypes = new int[eventList.size()];
+		for (int i = 0; i < eventList.size(); i++) {
+			if (eventList.get(i).type == StructuredNetworkEvent.NetworkEventType.SAMPLE)
+				sampleTypes[i] = dynamics.getValue(eventList.get(i).node.getTaxonLabel());
+		}
+		return new MappingContext(eventList, nodeStateProbabilities[nodeStateProbabilities.length - 1].toArray(),
+				typeLabels, sampleTypes, rejection, inheritReaType, jointReassortmentTypes, migrationRateTable,
+				maxMigrationRates, rateShiftTable, jointReassortmentTypes ? getReassortmentBridges() : null);
+	}
+
+	/**
+	 * Repeats the forward simulation until a mapping is accepted and returns
+	 * the root of the typed network.
+	 */
+	private static NetworkNode forwardSimulate(MappingContext context, MappingDraw draw) {
+		Object[] net = forwardSimulateNetwork(context, draw);
+		while (!(Boolean) net[0])
+			net = forwardSimulateNetwork(context, draw);
+		return (NetworkNode) net[1];
+	}
+
+	/**
+	 * Typed networks of all draws of the last mapping, the first one being
+	 * this network.
+	 */
+	public List<Network> getMappings() {
+		return mappings;
 	}
 
 	private void backwardIntegration() {
@@ -181,7 +443,9 @@ public class MappedNetwork extends Network {
 		linProbsNew = new double[MAX_SIZE];
 
 		euler = new Euler2ndOrder();
-		euler.setup(MAX_SIZE, types, STEP_SIZE_BACKWARD_INTEGRATION, MAX_STEP_FOR_BACKWARD_INTEGRATION);
+		euler.setup(MAX_SIZE, types, epsilon, maxStep);
+		observability = intervals.getObservability();
+		euler.setObservability(observability);
 
 		activeLineages.clear();
 		nrLineages = 0;
@@ -192,14 +456,16 @@ public class MappedNetwork extends Network {
 
 		StructuredNetworkEvent nextNetworkEvent = eventList.get(networkInterval);
 		StructuredNetworkEvent startEvent = new StructuredNetworkEvent();
-		double nextRateShift = dynamics.getInterval(ratesInterval);
+		// end of the current epoch, measured from the most recent sample like
+		// the event times
+		double nextRateShift = getRateInterval(ratesInterval);
 		double nextNetworkEventTime = nextNetworkEvent.time;
 
 		setUpDynamics();
 
 		// Get rates
-		coalescentRates = dynamics.getCoalescentRate(ratesInterval);
-		reassortmentRates = dynamics.getReassortmentRate(ratesInterval);
+		coalescentRates = coalescentRateTable[ratesInterval];
+		reassortmentRates = reassortmentRateTable[ratesInterval];
 
 		nrLineages = activeLineages.size();
 		linProbsLength = nrLineages * types;
@@ -215,36 +481,33 @@ public class MappedNetwork extends Network {
 			}
 
 			if (nextNetworkEventTime <= nextRateShift) {
-				switch (nextNetworkEvent.type) {
-				case COALESCENCE:
+				switch (events.type[networkInterval]) {
+				case NetworkEventArrays.COALESCENCE:
 					nrLineages--;
 					coalesce(nextNetworkEvent);
 					break;
 
-				case SAMPLE:
+				case NetworkEventArrays.SAMPLE:
 					nrLineages++;
 					sample(nextNetworkEvent);
 					break;
 
-				case REASSORTMENT:
+				case NetworkEventArrays.REASSORTMENT:
 					reassortment(nextNetworkEvent);
 					nrLineages++;
 					break;
 				}
 
 				networkInterval++;
-				nextRateShift -= nextNetworkEventTime;
-				try {
-					nextNetworkEvent = eventList.get(networkInterval);
-					nextNetworkEventTime = nextNetworkEvent.node.getHeight();
-				} catch (Exception e) {
+				if (networkInterval >= events.size)
 					break;
-				}
+				nextNetworkEvent = eventList.get(networkInterval);
+				nextNetworkEventTime = events.node[networkInterval].getHeight();
 			} else {
 				ratesInterval++;
-				coalescentRates = dynamics.getCoalescentRate(ratesInterval);
-				nextNetworkEventTime -= nextRateShift;
-				nextRateShift = dynamics.getInterval(ratesInterval);
+				coalescentRates = coalescentRateTable[Math.min(ratesInterval, coalescentRateTable.length - 1)];
+				reassortmentRates = reassortmentRateTable[Math.min(ratesInterval, reassortmentRateTable.length - 1)];
+				nextRateShift += getRateInterval(ratesInterval);
 			}
 
 			prevEventTime = nextEventTime;
@@ -253,92 +516,96 @@ public class MappedNetwork extends Network {
 
 
 
-	private Object[] forwardSimulateNetwork() {
-		int nIntervals = eventList.size() - 1;
-		StructuredNetworkEvent currentEvent = eventList.get(nIntervals);
-		StructuredNetworkEvent nextEvent = eventList.get(nIntervals - 1);
-		int startType = Randomizer.randomChoicePDF(nodeStateProbabilities[nodeStateProbabilities.length - 1].toArray());
+	private static Object[] forwardSimulateNetwork(MappingContext context, MappingDraw draw) {
+		int nIntervals = context.eventList.size() - 1;
+		StructuredNetworkEvent currentEvent = context.eventList.get(nIntervals);
+		StructuredNetworkEvent nextEvent = context.eventList.get(nIntervals - 1);
+		int startType = draw.randomChoicePDF(context.rootProbabilities);
 
 		HashMap<NetworkEdge, Integer> lineageType = new HashMap<NetworkEdge, Integer>();
 		for (int j = 0; j < nextEvent.activeLineages.size(); j++) {
 			lineageType.put(nextEvent.activeLineages.get(j), startType);
 		}
-
-		NetworkEdge rootEdge = currentEvent.node.getParentEdges().get(0);
-		NetworkNode root = rootEdge.childNode;
+		draw.plannedMigrations.clear();
+		if (!startBridges(context, draw, nextEvent.activeLineages, lineageType))
+			return new Object[] { false, null };
+
+		// the typed network is built from new nodes and edges, typedEdges maps
+		// every edge of the untyped network to the lowest typed edge on it
+		draw.typedEdges.clear();
+		NetworkNode root = new NetworkNode();
+		root.addParentEdge(typedEdge(draw, currentEvent.node.getParentEdges().get(0)));
+		for (NetworkEdge childEdge : currentEvent.node.getChildEdges())
+			root.addChildEdge(typedEdge(draw, childEdge));
+		root.setHeight(currentEvent.node.getHeight());
 		root.setTypeIndex(startType);
-		root.setTypeLabel(dynamics.getStringStateValue(startType));
+		root.setTypeLabel(context.typeLabels[startType]);
 		root.setMetaData(currentEvent.node.getMetaData());
 
 		NetworkNode currentNode = root;
 		double currentTime = currentEvent.node.getHeight();
 		double endTime = nextEvent.node.getHeight();
 
-		double[] rates = new double[types];
-		double[] ratesNext = new double[types];
-		double totalRate;
-		double totalRateNext;
+		double[] rates = new double[context.types];
+		double[] minRates = new double[context.types];
 
 		while (nIntervals > 0) {
 			while (true) {
-				double dt = (endTime - currentTime) / FORWARD_INTEGRATION_STEPS;
 				// If the length of interval between events is 0, jump to next event
-				if (dt > -1E-15)
+				if (endTime - currentTime > -1E-15)
 					break;
-				NetworkEdge minEdge = new NetworkEdge();
+				NetworkEdge minEdge = null;
 				double minTime = Double.NEGATIVE_INFINITY;
-				double[] minRates = new double[types];
-
-				for (NetworkEdge e : nextEvent.activeLineages)
-				{
-					double K = Math.log(Randomizer.nextDouble());
-					double I = 0.0;
-					double t = currentTime;
-					double currentTime_l = currentTime;
-					int idx = nextEvent.activeLineages.indexOf(e);
-
-					totalRate = getTotalForwardsRate(lineageType.get(e), currentTime, idx,
-							rates, nextEvent);
-
-					int integrationStep;
-					for (integrationStep = 0; integrationStep < FORWARD_INTEGRATION_STEPS; integrationStep++) {
-						double tnext = currentTime_l
-								- (currentTime_l - endTime) * (integrationStep + 1) / FORWARD_INTEGRATION_STEPS;
-						totalRateNext = getTotalForwardsRate(lineageType.get(e), tnext, idx,
-								ratesNext, nextEvent);
-
-						I += 0.5 * (totalRateNext + totalRate) * dt;
-
-						if (I <= K) {
-							currentTime_l = t + 0.5 * dt;
-							if (currentTime_l > minTime) {
-								minTime = currentTime_l;
-								minEdge = e;
-								minRates = ratesNext.clone();
-							}
-							break;
+				int minType = -1;
+
+				// sample the next migration of every lineage by thinning.
+				// Only the earliest migration (forwards in time) is applied,
+				// such that a lineage can stop once it cannot migrate before
+				// the current earliest one.
+				for (int idx = 0; idx < nextEvent.activeLineages.size(); idx++) {
+					NetworkEdge e = nextEvent.activeLineages.get(idx);
+					ArrayDeque<double[]> planned = draw.plannedMigrations.get(e);
+					if (planned != null) {
+						// the parents of a reassortment follow their joint path
+						double[] migration = planned.peek();
+						if (migration != null && migration[0] > endTime && migration[0] > minTime) {
+							minTime = migration[0];
+							minEdge = e;
+							minType = (int) migration[1];
 						}
-						totalRate = totalRateNext;
-						t = tnext;
+						continue;
+					}
+					double t = sampleMigrationTime(context, draw, lineageType.get(e), currentTime,
+							Math.max(endTime, minTime), nIntervals - 1, idx, rates);
+					if (t > endTime && t > minTime) {
+						minTime = t;
+						minEdge = e;
+						minType = -1;
+						System.arraycopy(rates, 0, minRates, 0, context.types);
 					}
 				}
 
 				if (minTime > endTime) {
 
 
-					NetworkEdge lineage = minEdge;
+					NetworkEdge lineage = draw.typedEdges.get(minEdge);
 					NetworkNode parent = lineage.parentNode;
 					NetworkEdge newEdge = new NetworkEdge();
 					NetworkNode newNode = new NetworkNode();
 					newEdge.hasSegments = lineage.hasSegments;
 
-					int oldType = lineageType.get(lineage);
+					int oldType = lineageType.get(minEdge);
 					
 					int newType = 0;
-					if (minRates[0] == 0.0 && minRates[1] == 0.0) {
-						break;
+					if (minType != -1) {
+						newType = minType;
+						draw.plannedMigrations.get(minEdge).poll();
+					} else {
+						if (minRates[0] == 0.0 && minRates[1] == 0.0) {
+							break;
+						}
+						newType = draw.randomChoicePDF(minRates);
 					}
-					newType = Randomizer.randomChoicePDF(minRates);
 
 					if (oldType == newType) {
 						Network test = new Network();
@@ -349,10 +616,10 @@ public class MappedNetwork extends Network {
 					}
 
 					newNode.setTypeIndex(oldType);
-					newNode.setTypeLabel(dynamics.getStringStateValue(oldType));
+					newNode.setTypeLabel(context.typeLabels[oldType]);
 
 					// track type change on a lineage
-					lineageType.put(lineage, newType);
+					lineageType.put(minEdge, newType);
 
 					parent.removeChildEdge(lineage);
 					newNode.addChildEdge(lineage);
@@ -378,18 +645,16 @@ public class MappedNetwork extends Network {
 				sampleNode.setHeight(endTime);
 				sampleNode.setTaxonLabel(nextEvent.node.getTaxonLabel());
 				sampleNode.setTaxonIndex(nextEvent.node.getTaxonIndex());
-				String label = nextEvent.node.getTaxonLabel();
-				int labelIdx = dynamics.getValue(label);
+				int labelIdx = context.sampleTypes[nIntervals - 1];
 				int idx = lineageType.get(sampleLineage);
 				if (idx != labelIdx) {
 					return new Object[] { false, null };
 				}
 
 				sampleNode.setTypeIndex(idx);
-				sampleNode.setTypeLabel(dynamics.getStringStateValue(idx));
+				sampleNode.setTypeLabel(context.typeLabels[idx]);
 
-				nextEvent.node.removeParentEdge(sampleLineage);
-				sampleNode.addParentEdge(sampleLineage);
+				sampleNode.addParentEdge(draw.typedEdges.get(sampleLineage));
 
 				lineageType.remove(sampleLineage);
 
@@ -402,22 +667,20 @@ public class MappedNetwork extends Network {
 
 				coalNode.setHeight(endTime);
 				coalNode.setTypeIndex(coalType);
-				coalNode.setTypeLabel(dynamics.getStringStateValue(coalType));
+				coalNode.setTypeLabel(context.typeLabels[coalType]);
 
-				nextEvent.node.removeParentEdge(coalLineage);
 				NetworkEdge child1 = nextEvent.node.getChildEdges().get(0);
 				NetworkEdge child2 = nextEvent.node.getChildEdges().get(1);
 
-				nextEvent.node.removeChildEdge(child1);
-				nextEvent.node.removeChildEdge(child2);
-
-				coalNode.addParentEdge(coalLineage);
-				coalNode.addChildEdge(child1);
-				coalNode.addChildEdge(child2);
+				coalNode.addParentEdge(draw.typedEdges.get(coalLineage));
+				coalNode.addChildEdge(typedEdge(draw, child1));
+				coalNode.addChildEdge(typedEdge(draw, child2));
 
 				lineageType.remove(coalLineage);
 				lineageType.put(child1, coalType);
 				lineageType.put(child2, coalType);
+				if (!startBridges(context, draw, nextEvent.node.getChildEdges(), lineageType))
+					return new Object[] { false, null };
 
 				break;
 			case REASSORTMENT:
@@ -429,31 +692,34 @@ public class MappedNetwork extends Network {
 				
 				if (type1==type2)
 					reassType = type1;
+				else if (context.jointReassortmentTypes)
+					// cannot happen up to rounding, the joint paths end in the same type
+					return new Object[] { false, null };
 				else {
-					if (rejection)
+					if (context.rejection)
 					{ // reject simulation if reassortment parents have different types
 						return new Object[] { false, null };
 					}
 					else {
-							double[] r1 = new double[types];
-							double rates1 = getTotalForwardsRate(lineageType.get(parent1),
+							double[] r1 = new double[context.types];
+							double rates1 = getTotalForwardsRate(context, draw, lineageType.get(parent1),
 									parent1.childNode.getHeight(), nextEvent.activeLineages.indexOf(parent1),
 									r1, nextEvent);
-							double[] r2 = new double[types];
-							double rates2 = getTotalForwardsRate(lineageType.get(parent2),
+							double[] r2 = new double[context.types];
+							double rates2 = getTotalForwardsRate(context, draw, lineageType.get(parent2),
 									parent1.childNode.getHeight(), nextEvent.activeLineages.indexOf(parent2),
 									r2, nextEvent);
 
-						if (inheritReaType) { // Reassortment child lineage must inherit the type of at least one parent
+						if (context.inheritReaType) { // Reassortment child lineage must inherit the type of at least one parent
 							while (reassType != type1 && reassType != type2) {
-								reassType = rates1 > rates2 ? Randomizer.randomChoicePDF(r1)
-										: Randomizer.randomChoicePDF(r2);
+								reassType = rates1 > rates2 ? draw.randomChoicePDF(r1)
+										: draw.randomChoicePDF(r2);
 							}
 
 						} else // Reassortment child lineage may or may not inherit the type of at least one
 								// parent
-							reassType = rates1 > rates2 ? Randomizer.randomChoicePDF(r1)
-									: Randomizer.randomChoicePDF(r2);
+							reassType = rates1 > rates2 ? draw.randomChoicePDF(r1)
+									: draw.randomChoicePDF(r2);
 					}
 				}
 
@@ -463,12 +729,11 @@ public class MappedNetwork extends Network {
 
 				reassNode.setHeight(endTime);
 				reassNode.setTypeIndex(reassType);
-				reassNode.setTypeLabel(dynamics.getStringStateValue(reassType));
+				reassNode.setTypeLabel(context.typeLabels[reassType]);
 				
-				nextEvent.node.removeParentEdge(parent1);
-				nextEvent.node.removeParentEdge(parent2);
 				NetworkEdge child = nextEvent.node.getChildEdges().get(0);
-				nextEvent.node.removeChildEdge(child);
+				NetworkEdge typedParent1 = draw.typedEdges.get(parent1);
+				NetworkEdge typedParent2 = draw.typedEdges.get(parent2);
 
 				if (reassType != type2) {
 						NetworkNode fakeMigNode2 = new NetworkNode();
@@ -476,9 +741,9 @@ public class MappedNetwork extends Network {
 
 						fakeMigNode2.setHeight(endTime);
 						fakeMigNode2.setTypeIndex(type2);
-						fakeMigNode2.setTypeLabel(dynamics.getStringStateValue(type2));
+						fakeMigNode2.setTypeLabel(context.typeLabels[type2]);
 
-						fakeMigNode2.addParentEdge(parent2);
+						fakeMigNode2.addParentEdge(typedParent2);
 						fakeMigEdge2.hasSegments = parent2.hasSegments;
 						fakeMigNode2.addChildEdge(fakeMigEdge2);
 
@@ -490,9 +755,9 @@ public class MappedNetwork extends Network {
 
 					fakeMigNode1.setHeight(endTime);
 					fakeMigNode1.setTypeIndex(type1);
-					fakeMigNode1.setTypeLabel(dynamics.getStringStateValue(type1));
+					fakeMigNode1.setTypeLabel(context.typeLabels[type1]);
 
-						fakeMigNode1.addParentEdge(parent1);
+						fakeMigNode1.addParentEdge(typedParent1);
 						fakeMigEdge1.hasSegments = parent1.hasSegments;
 						fakeMigNode1.addChildEdge(fakeMigEdge1);
 
@@ -500,15 +765,19 @@ public class MappedNetwork extends Network {
 
 					}
 				if (reassType == type1)
-					reassNode.addParentEdge(parent1);
+					reassNode.addParentEdge(typedParent1);
 				if (reassType == type2)
-					reassNode.addParentEdge(parent2);
+					reassNode.addParentEdge(typedParent2);
 
-				reassNode.addChildEdge(child);
+				reassNode.addChildEdge(typedEdge(draw, child));
 
 				lineageType.remove(parent1);
 				lineageType.remove(parent2);
+				draw.plannedMigrations.remove(parent1);
+				draw.plannedMigrations.remove(parent2);
 				lineageType.put(child, reassType);
+				if (!startBridges(context, draw, nextEvent.node.getChildEdges(), lineageType))
+					return new Object[] { false, null };
 
 				break;
 			default:
@@ -518,8 +787,8 @@ public class MappedNetwork extends Network {
 			nIntervals -= 1;
 
 			if (nIntervals > 0) {
-				currentEvent = eventList.get(nIntervals);
-				nextEvent = eventList.get(nIntervals - 1);
+				currentEvent = context.eventList.get(nIntervals);
+				nextEvent = context.eventList.get(nIntervals - 1);
 				currentTime = currentEvent.node.getHeight();
 				endTime = nextEvent.node.getHeight();
 			}
@@ -528,46 +797,285 @@ public class MappedNetwork extends Network {
 		return new Object[] { true, root };
 	}
 
+	/**
+	 * Starts the joint simulation of the parents of a reassortment node once
+	 * both of them exist. Returns false if the parents cannot agree.
+	 */
+	private static boolean startBridges(MappingContext context, MappingDraw draw, List<NetworkEdge> added,
+			Map<NetworkEdge, Integer> lineageType) {
+		if (context.bridges == null)
+			return true;
+		for (NetworkEdge edge : added) {
+			if (!edge.childNode.isReassortment() || draw.plannedMigrations.containsKey(edge))
+				continue;
+			NetworkEdge parent1 = edge.childNode.getParentEdges().get(0);
+			NetworkEdge parent2 = edge.childNode.getParentEdges().get(1);
+			if (!lineageType.containsKey(parent1) || !lineageType.containsKey(parent2))
+				continue;
+			ArrayDeque<double[]> path1 = new ArrayDeque<>();
+			ArrayDeque<double[]> path2 = new ArrayDeque<>();
+			if (context.bridges.get(edge.childNode).sample(draw, lineageType.get(parent1), lineageType.get(parent2),
+					path1, path2) == -1)
+				return false;
+			draw.plannedMigrations.put(parent1, path1);
+			draw.plannedMigrations.put(parent2, path2);
+		}
+		return true;
+	}
+
+	/**
+	 * Grids of the forwards migration rates of the parents of every
+	 * reassortment node between the lower of their parent nodes and the
+	 * reassortment. Steps end at the records of the backward pass and are
+	 * split further such that a step holds about one migration at most.
+	 */
+	private Map<NetworkNode, ReassortmentBridge> getReassortmentBridges() {
+		Map<NetworkNode, Integer> eventIndex = new IdentityHashMap<>();
+		for (int i = 0; i < eventList.size(); i++)
+			eventIndex.put(eventList.get(i).node, i);
+
+		Map<NetworkNode, ReassortmentBridge> result = new IdentityHashMap<>();
+		double[][] generator1 = new double[types][types];
+		double[][] generator2 = new double[types][types];
+		for (int r = 0; r < eventList.size(); r++) {
+			StructuredNetworkEvent event = eventList.get(r);
+			if (event.type != StructuredNetworkEvent.NetworkEventType.REASSORTMENT)
+				continue;
+			NetworkEdge parent1 = event.node.getParentEdges().get(0);
+			NetworkEdge parent2 = event.node.getParentEdges().get(1);
+			NetworkNode start = parent1.parentNode.getHeight() <= parent2.parentNode.getHeight()
+					? parent1.parentNode : parent2.parentNode;
+
+			List<Double> times = new ArrayList<>();
+			List<double[][]> steps1 = new ArrayList<>();
+			List<double[][]> steps2 = new ArrayList<>();
+			times.add(start.getHeight());
+			for (int i = eventIndex.get(start) - 1; i >= r; i--) {
+				StructuredNetworkEvent interval = eventList.get(i);
+				int idx1 = interval.activeLineages.indexOf(parent1);
+				int idx2 = interval.activeLineages.indexOf(parent2);
+				double lower = eventList.get(i).node.getHeight();
+				double upper = times.get(times.size() - 1);
+				double[] records = upper > lower ? interval.denseOutput.getTimes() : new double[0];
+				int x = records.length - 1;
+				while (upper > lower) {
+					while (x >= 0 && records[x] >= upper)
+						x--;
+					double next = x >= 0 && records[x] > lower ? records[x] : lower;
+					double mid = (upper + next) / 2;
+					getForwardsGenerator(interval, idx1, mid, generator1);
+					getForwardsGenerator(interval, idx2, mid, generator2);
+					int substeps = (int) Math.min(MAX_BRIDGE_SUBSTEPS, Math.max(1,
+							Math.ceil(Math.max(getExitRate(generator1), getExitRate(generator2)) * (upper - next))));
+					for (int k = 1; k <= substeps; k++) {
+						double t = k == substeps ? next : upper - k * (upper - next) / substeps;
+						if (substeps > 1) {
+							mid = (times.get(times.size() - 1) + t) / 2;
+							getForwardsGenerator(interval, idx1, mid, generator1);
+							getForwardsGenerator(interval, idx2, mid, generator2);
+						}
+						times.add(t);
+						steps1.add(copy(generator1));
+						steps2.add(copy(generator2));
+					}
+					upper = next;
+				}
+			}
+
+			// both parents start from the node state probabilities of the
+			// reassortment node
+			int idx = event.activeLineages.indexOf(parent1);
+			double[] weights = new double[types];
+			for (int k = 0; k < types; k++)
+				weights[k] = getStoredProb(event, idx, k, event.node.getHeight());
+
+			double[] grid = new double[times.size()];
+			for (int g = 0; g < grid.length; g++)
+				grid[g] = times.get(g);
+			double[][][][] generator = { steps1.toArray(new double[0][][]), steps2.toArray(new double[0][][]) };
+			result.put(event.node, new ReassortmentBridge(grid, generator, weights));
+		}
+		return result;
+	}
+
+	/**
+	 * Forwards migration rates between all types of lineage lineageIdx at
+	 * time, types of zero backward probability are not left.
+	 */
+	private void getForwardsGenerator(StructuredNetworkEvent event, int lineageIdx, double time,
+			double[][] generator) {
+		double[] migration = migrationRateTable[Math.min(getIntervalIndex(time), migrationRateTable.length - 1)];
+		int n = (int) (Math.sqrt(migration.length) + 0.5);
+		for (int from = 0; from < types; from++) {
+			double pFrom = getStoredProb(event, lineageIdx, from, time);
+			for (int to = 0; to < types; to++) {
+				generator[from][to] = to == from || !(pFrom > 0.0) ? 0.0
+						: migration[to * n + from] * getStoredProb(event, lineageIdx, to, time) / pFrom;
+			}
+		}
+	}
+
+	private static double getExitRate(double[][] generator) {
+		double max = 0.0;
+		for (int from = 0; from < generator.length; from++) {
+			double out = 0.0;
+			for (int to = 0; to < generator.length; to++)
+				out += generator[from][to];
+			max = Math.max(max, out);
+		}
+		return max;
+	}
+
+	private static double[][] copy(double[][] matrix) {
+		double[][] copy = new double[matrix.length][];
+		for (int i = 0; i < matrix.length; i++)
+			copy[i] = matrix[i].clone();
+		return copy;
+	}
+
+	/**
+	 * Backward probability of lineage lineageIdx being in type at time,
+	 * interpolated between the records of the interval ending at event.
+	 */
+	private double getStoredProb(StructuredNetworkEvent event, int lineageIdx, int type, double time) {
+		int last = event.denseOutput.getTimes().length - 1;
+		int x2 = Math.min(Math.max(bigger(event.denseOutput.getTimes(), time), 0), last);
+		double time2 = event.denseOutput.getTimes()[x2];
+		if (x2 == 0 || Math.abs(time2 - time) <= 1e-16 || time > time2)
+			return event.denseOutput.getValue(x2, lineageIdx * types + type);
+
+		double time1 = event.denseOutput.getTimes()[x2 - 1];
+		return (event.denseOutput.getValue(x2 - 1, lineageIdx * types + type) * (time2 - time)
+				+ event.denseOutput.getValue(x2, lineageIdx * types + type) * (time - time1)) / (time2 - time1);
+	}
+
+	/**
+	 * Creates the typed edge that starts the typed copy of an untyped edge.
+	 */
+	private static NetworkEdge typedEdge(MappingDraw draw, NetworkEdge untypedEdge) {
+		NetworkEdge edge = new NetworkEdge();
+		edge.hasSegments = untypedEdge.hasSegments;
+		draw.typedEdges.put(untypedEdge, edge);
+		return edge;
+	}
 
-	private double getTotalForwardsRate(int fromType, double t, int lineageIdx,
-			double[] rates, StructuredNetworkEvent nextEvent) {
+
+	private static double getTotalForwardsRate(MappingContext context, MappingDraw draw, int fromType, double t,
+			int lineageIdx, double[] rates, StructuredNetworkEvent nextEvent) {
 		double totalRate = 0.0;
-		getForwardsRates(fromType, t, lineageIdx, rates, nextEvent);
-		for (int type = 0; type < types; type++)
+		// read from the copied rate tables, which are not modified by concurrent draws
+		getForwardsRates(context, draw, fromType, t, lineageIdx, rates, nextEvent, context.getMigrationRates(t));
+		for (int type = 0; type < context.types; type++)
 			totalRate += rates[type];
 
 		return totalRate;
 	}
 
-	private double[] getForwardsRates(int fromType, double time, int lineageIdx,
-			double[] result, StructuredNetworkEvent nextEvent) {
+	/**
+	 * Time of the next migration of a lineage of type fromType after time
+	 * (forwards in time) in interval, or negative infinity if it does not
+	 * migrate before limit. The rates at the migration are left in rates.
+	 * The migration is drawn by thinning between consecutive records with
+	 * the larger of the bounds at both ends, since the forwards rates are
+	 * ratios of linearly interpolated probabilities and thus monotone
+	 * between records. Where the probability of fromType drops to zero at a
+	 * record, the rate grows like B/u + C in the distance u to the record.
+	 * The bound is then sampled as such, which conditions the lineage on
+	 * leaving fromType before the record.
+	 */
+	private static double sampleMigrationTime(MappingContext context, MappingDraw draw, int fromType,
+			double time, double limit, int interval, int lineageIdx, double[] rates) {
+		StructuredNetworkEvent event = context.eventList.get(interval);
+		double[] records = event.denseOutput.getTimes();
+		int index = lineageIdx * context.types + fromType;
+
+		double t = time;
+		int x = draw.locate(records, t);
+		double upper = context.getRateBound(event.denseOutput, x, t, lineageIdx, fromType);
+		if (upper == Double.POSITIVE_INFINITY) {
+			// fromType cannot be kept at all, migrate at once
+			getTotalForwardsRate(context, draw, fromType, t, lineageIdx, rates, event);
+			return t;
+		}
+
+		while (t > limit) {
+			// piece from t down to record y, the rates are constant outside
+			// of the records
+			int y = x == records.length ? records.length - 1 : Math.max(x - 1, 0);
+			double lower = x == 0 ? Double.NEGATIVE_INFINITY : records[y];
+			// bound at the record, only computed for the pieces visited
+			double recordBound = context.getRateBound(event.denseOutput, y, records[y], lineageIdx, fromType);
+
+			if (recordBound == Double.POSITIVE_INFINITY) {
+				// the probability of fromType is linear in u = t - lower and
+				// zero at the record, such that the bound is b / u + c
+				double u = t - lower;
+				double b = u * context.getMigrationOut(event.denseOutput, y, lineageIdx, fromType)
+						/ MappingContext.interpolate(event.denseOutput, x, t, index);
+				double c = Math.max(upper - b / u, 0.0);
+				while (true) {
+					// earlier of the first points of the processes with rates
+					// b / u and c
+					double u1 = b > 0.0 ? u * Math.pow(draw.nextDouble(), 1.0 / b) : 0.0;
+					double u2 = c > 0.0 ? u + Math.log(draw.nextDouble()) / c : Double.NEGATIVE_INFINITY;
+					u = Math.max(u1, u2);
+					t = lower + u;
+					if (!(u > 0.0) || t <= limit)
+						return Double.NEGATIVE_INFINITY;
+					double totalRate = getTotalForwardsRate(context, draw, fromType, t, lineageIdx, rates, event);
+					if (draw.nextDouble() * (b / u + c) * (1.0 + 1E-9) <= totalRate)
+						return t;
+				}
+			}
+
+			// guard against rounding in the interpolation
+			double bound = Math.max(upper, recordBound) * (1.0 + 1E-9);
+			double next = bound > 0.0 ? t + Math.log(draw.nextDouble()) / bound : Double.NEGATIVE_INFINITY;
+			if (next <= lower) {
+				// no migration on this piece, go on from the record
+				t = lower;
+				upper = recordBound;
+				x = y;
+				continue;
+			}
+			if (next <= limit)
+				break;
+			t = next;
+			double totalRate = getTotalForwardsRate(context, draw, fromType, t, lineageIdx, rates, event);
+			if (draw.nextDouble() * bound <= totalRate)
+				return t;
+		}
+		return Double.NEGATIVE_INFINITY;
+	}
+
+	private static double[] getForwardsRates(MappingContext context, MappingDraw draw, int fromType, double time,
+			int lineageIdx, double[] result, StructuredNetworkEvent nextEvent, double[] migMatrix) {
+		int types = context.types;
 
 		// Assert if x2 is not 0
 		int x1 = -1;
 		double time1 = 0;
 		double time2 = 0;
 		boolean interpolate = true;
-		int x2 = bigger(nextEvent.intermediateTimeStored, time);
-		if (x2 > nextEvent.intermediateTimeStored.length - 1) {
-			x2 = nextEvent.intermediateTimeStored.length - 1;
+		int x2 = draw.locate(nextEvent.denseOutput.getTimes(), time);
+		if (x2 > nextEvent.denseOutput.getTimes().length - 1) {
+			x2 = nextEvent.denseOutput.getTimes().length - 1;
 			interpolate = false;
 		}
 		else if (x2 == 0) {
 			interpolate = false;
 		}
 
-		if (interpolate && Math.abs(nextEvent.intermediateTimeStored[x2] - time) > 1e-16) {
+		if (interpolate && Math.abs(nextEvent.denseOutput.getTimes()[x2] - time) > 1e-16) {
 			x1 += x2;
 
-			time1 = nextEvent.intermediateTimeStored[x1];
-			time2 = nextEvent.intermediateTimeStored[x2];
+			time1 = nextEvent.denseOutput.getTimes()[x1];
+			time2 = nextEvent.denseOutput.getTimes()[x2];
 		}
 		else
 			interpolate = false;
 
 
-		int ratesInterval = getIntervalIndex(time);
-		double[] migMatrix = dynamics.getBackwardsMigration(ratesInterval);
 		int n = (int) (Math.sqrt(migMatrix.length) + 0.5);
 
 		for (int type = 0; type < types; type++) {
@@ -576,33 +1084,18 @@ public class MappedNetwork extends Network {
 				continue;
 			}
 
-//			UnivariateInterpolator interpolator2;
 			double pTo;
-//			double[] points = new double[nextEvent.p_stored.length];
 			if (interpolate) {
-//				interpolator2 = new SplineInterpolator();
-//				for (int ss = 0; ss < nextEvent.p_stored.length; ss++) {
-//					interpolator.addSamplePoint(nextEvent.intermediateTimeStored[ss],
-//							nextEvent.p_stored[ss]);
-//					points[ss] = nextEvent.p_stored[ss][lineageIdx * types + type];
-//
-////							nextEvent.pDot_stored[ss]);
-//
-//				}
-//				UnivariateFunction function = interpolator2.interpolate(nextEvent.intermediateTimeStored, points);
-//				System.out.println(function.value(time));
-
-				pTo = (nextEvent.p_stored[x1][lineageIdx * types + type] * (time - time1)
-						+ nextEvent.p_stored[x2][lineageIdx * types + type] * (time2 - time))
+				pTo = (nextEvent.denseOutput.getValue(x1, lineageIdx * types + type) * (time2 - time)
+						+ nextEvent.denseOutput.getValue(x2, lineageIdx * types + type) * (time - time1))
 						/ (time2 - time1);
-//				System.out.println(pTo);
 			}
 			else {
 				if (x2 == -1) {
 					System.out.println("Something wrong in mapping: getForwardsRates");
 					System.exit(1);
 				}
-				pTo = nextEvent.p_stored[x2][lineageIdx * types + type];
+				pTo = nextEvent.denseOutput.getValue(x2, lineageIdx * types + type);
 			}
 
 			result[type] = migMatrix[type * n + fromType] * pTo; // p[lineageIdx * score.types + type];
@@ -610,11 +1103,11 @@ public class MappedNetwork extends Network {
 
 		double pFrom;
 		if (interpolate)
-			pFrom = (nextEvent.p_stored[x1][lineageIdx * types + fromType] * (time - time1)
-					+ nextEvent.p_stored[x2][lineageIdx * types + fromType] * (time2 - time))
+			pFrom = (nextEvent.denseOutput.getValue(x1, lineageIdx * types + fromType) * (time2 - time)
+					+ nextEvent.denseOutput.getValue(x2, lineageIdx * types + fromType) * (time - time1))
 					/ (time2 - time1);
 		else
-			pFrom = nextEvent.p_stored[x2][lineageIdx * types + fromType];
+			pFrom = nextEvent.denseOutput.getValue(x2, lineageIdx * types + fromType);
 
 		if (pFrom <= 0.0) {
 			// The source type prob approaches zero as the integration closes
@@ -655,14 +1148,7 @@ public class MappedNetwork extends Network {
 	 * @return index identifying interval.
 	 */
 	public int getIntervalIndex(double t) {
-
-		int index = Arrays.binarySearch(dynamics.getIntervals(), t);
-
-		if (index < 0)
-			index = -index - 1;
-
-		// return at most the index of the last interval (m-1)
-		return Math.max(0, Math.min(index, dynamics.getIntervals().length - 1));
+		return MappingContext.getIntervalIndex(epochStarts, t);
 	}
 
 	// XXX Backwards stuff
@@ -843,8 +1329,7 @@ public class MappedNetwork extends Network {
 
 		for (int k = 0; k < types; k++) {
 			Double typeProb = reassortmentRates[k] * linProbs[daughterIndex * types + k]
-					* Math.pow(0.5, event.segsSortedLeft) * Math.pow(0.5, (event.segsToSort - event.segsSortedLeft))
-					* 2.0;
+					* observability.getSplitProb(event.segsSortedLeft, event.segsToSort);
 
 			if (!Double.isNaN(typeProb)) {
 				lambda.put(k, typeProb);
@@ -901,30 +1386,45 @@ public class MappedNetwork extends Network {
 			return Math.log(lambda.sum());
 	}
 
+	/**
+	 * Duration of rate interval i of the rate snapshot, infinite after the
+	 * last rate shift.
+	 */
+	private double getRateInterval(int i) {
+		return i < rateShiftTable.length ? rateShiftTable[i] : Double.POSITIVE_INFINITY;
+	}
+
 	private void setUpDynamics() {
-		int n = dynamics.getEpochCount();
-		double[][] coalescentRates = new double[n][];
-		double[][] migrationRates = new double[n][];
-		double[][] reassortmentRates = new double[n][];
-		int[][] indicators = new int[n][];
-		double[] nextRateShift = dynamics.getIntervals();
-		for (int i = 0; i < n; i++) {
-			coalescentRates[i] = dynamics.getCoalescentRate(i);
-			migrationRates[i] = dynamics.getBackwardsMigration(i);
-			reassortmentRates[i] = dynamics.getReassortmentRate(i);
-			indicators[i] = dynamics.getIndicators(i);
+		setUpMaxMigrationRates();
+		euler.setUpDynamics(coalescentRateTable, migrationRateTable, reassortmentRateTable, indicatorTable,
+				rateShiftTable);
+	}
+
+	/**
+	 * Copies the rate tables of the snapshot, such that a mapping on a worker
+	 * thread does not share arrays with the chain.
+	 */
+	private void setRates(RateSnapshot snapshot) {
+		coalescentRateTable = snapshot.getCoalescentRates();
+		migrationRateTable = snapshot.getMigrationRates();
+		reassortmentRateTable = snapshot.getReassortmentRates();
+		indicatorTable = snapshot.getIndicators();
+		rateShiftTable = snapshot.getIntervals();
+		epochStarts = MappingContext.getEpochStarts(rateShiftTable);
 	}
-		euler.setUpDynamics(coalescentRates, migrationRates, reassortmentRates, indicators, nextRateShift);
+
+	private void setUpMaxMigrationRates() {
+		maxMigrationRates = migrationRateTable[0].clone();
+		for (double[] migration : migrationRateTable) {
+			for (int i = 0; i < migration.length; i++)
+				maxMigrationRates[i] = Math.max(maxMigrationRates[i], migration[i]);
+		}
 	}
 
 	private double doEuler(double start, double end, int ratesInterval, StructuredNetworkEvent startEvent) {
 		double duration = end - start;
 
-		startEvent.numRecords = nRecordsInput.get();
-		startEvent.p_stored = new double[startEvent.numRecords][linProbsLength];
-		startEvent.pDot_stored = new double[startEvent.numRecords][linProbsLength];
-		startEvent.intermediateTimeStored = new double[startEvent.numRecords];
-		Arrays.fill(startEvent.intermediateTimeStored, end);
+		startEvent.denseOutput = new DenseOutput(end, linProbsLength, nRecords, recordTolerance);
 
 		if (linProbs_tmp.length != linProbsLength + 1) {
 			linProbs_tmp = new double[linProbsLength + 1];
@@ -959,34 +1459,193 @@ public class MappedNetwork extends Network {
 	 * @param sample sample number at log
 	 */
 	public void remapForLog(long sample) {
-		if (!remapOnLogInput.get() || sample == lastRemapSample)
+		if (!remapOnLogInput.get())
 			return;
 
-		doStochasticMapping();
+		if (asyncMappingInput.get()) {
+			if (sample != lastRemapSample) {
+				// all loggers of the earlier samples are done
+				pendingMappings.values().removeIf(mapping -> mapping.reads == 0);
+				submitMapping(sample);
+			}
+			// every logger asking for the mapping reads it once
+			pendingMappings.get(sample).reads++;
+		} else if (sample != lastRemapSample)
+			doStochasticMapping();
 		lastRemapSample = sample;
 	}
 
+	/**
+	 * Typed networks of all draws of the mapping for sample, which the
+	 * logger has asked for with remapForLog. With asyncMapping, this waits
+	 * for the background mapping of that sample on the calling thread, which
+	 * is why loggers of the chain such as TypedNetworkStatsLogger do not
+	 * accept asyncMapping.
+	 */
+	public List<Network> getMappings(long sample) {
+		if (!asyncMappingInput.get() || !remapOnLogInput.get())
+			return getMappings();
+
+		PendingMapping mapping = pendingMappings.get(sample);
+		if (mapping == null || mapping.reads == 0)
+			throw new IllegalArgumentException("mapping of sample " + sample + " was not asked for with remapForLog");
+		mapping.reads--;
+		return waitFor(mapping.typed);
+	}
+
+	// background mappings and the draws of a mapping
+	private ForkJoinPool mappingPool;
+	// mappings in the order of the samples, kept until the loggers of the
+	// sample have read them
+	private final Map<Long, PendingMapping> pendingMappings = new LinkedHashMap<>();
+	private boolean treesLogged;
+
+	private static class PendingMapping {
+		final Future<List<Network>> typed;
+		// reads by the loggers that asked for the mapping still to come
+		int reads;
+		// true if the trees are to be written
+		boolean logTrees;
+
+		PendingMapping(Future<List<Network>> typed) {
+			this.typed = typed;
+		}
+	}
+
+	/**
+	 * Hands a mapping of the current network and rates to a background
+	 * worker. The network, the rates and the random seed are taken from the
+	 * chain on the calling thread.
+	 */
+	private void submitMapping(long sample) {
+		// the workers only use the type names of the dynamics, the rates are
+		// taken from the snapshot
+		if (dynamicsInput.get() == null)
+			setDynamics();
+
+		// a recorded backward pass is not changed by the chain and is
+		// shared with the worker
+		BackwardPassRecord pass = getBackwardPass();
+		NetworkArena arena = pass == null ? snapshotArena() : null;
+		Network untyped = pass == null && arena == null ? snapshotNetwork() : null;
+		RateSnapshot snapshot = dynamics.getRateSnapshot();
+		double binomialProb = getBinomialProb();
+		SplittableRandom random = new SplittableRandom(Randomizer.nextLong());
+		pendingMappings.put(sample, new PendingMapping(getMappingPool().submit(() -> {
+			// a worker of its own per mapping, since a thread waiting for the
+			// draws of its mapping may run draws or mappings of other samples
+			MappedNetwork worker = new MappedNetwork(this);
+			NetworkNode[] roots;
+			if (pass != null)
+				roots = worker.map(pass, random);
+			else
+				roots = worker.map(arena != null ? arena.toNetwork(new NetworkNode[arena.nodeCount],
+						new NetworkEdge[arena.edgeCount]) : untyped, snapshot, binomialProb, random);
+			List<Network> typed = new ArrayList<>();
+			for (NetworkNode root : roots)
+				typed.add(new Network(root.getParentEdges().get(0)));
+			return typed;
+		})));
+	}
+
+	/**
+	 * Pool of the background mappings and of the draws of every mapping. It
+	 * is a fork-join pool, such that a mapping on a worker can wait for its
+	 * draws on the same pool.
+	 */
+	private ForkJoinPool getMappingPool() {
+		if (mappingPool == null)
+			mappingPool = new ForkJoinPool(mappingThreadsInput.get());
+		return mappingPool;
+	}
+
+	private static List<Network> waitFor(Future<List<Network>> mapping) {
+		try {
+			return mapping.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException("background stochastic mapping failed", e);
+		}
+	}
+
+	/**
+	 * Writes the finished mappings of the samples logged as trees at the
+	 * head of the queue, and waits for the oldest ones while too many are
+	 * unwritten. Mappings only asked for by other loggers are not written.
+	 */
+	private void writeMappings(PrintStream out, boolean all) {
+		int unwritten = 0;
+		for (PendingMapping mapping : pendingMappings.values()) {
+			if (mapping.logTrees)
+				unwritten++;
+		}
+		Iterator<Map.Entry<Long, PendingMapping>> it = pendingMappings.entrySet().iterator();
+		boolean first = true;
+		while (it.hasNext()) {
+			Map.Entry<Long, PendingMapping> entry = it.next();
+			PendingMapping mapping = entry.getValue();
+			if (!mapping.logTrees)
+				continue;
+			if (!mapping.typed.isDone() && !all && unwritten <= maxPendingMappingsInput.get())
+				break;
+			List<Network> typed = waitFor(mapping.typed);
+			for (int k = 0; k < typed.size(); k++) {
+				if (!first)
+					out.println();
+				out.print("tree STATE_" + entry.getKey() + (k > 0 ? "_" + k : "") + " = "
+						+ typed.get(k).getExtendedNewick());
+				first = false;
+			}
+			mapping.logTrees = false;
+			mapping.reads--;
+			unwritten--;
+			if (mapping.reads == 0 && entry.getKey() != lastRemapSample)
+				it.remove();
+		}
+	}
+
 	@Override
 	public void init(PrintStream out) {
 //		untypedNetwork.init(out);
 		out.println("#nexus");
 		out.println("begin trees;");
+		treesLogged = true;
 	}
 
 	@Override
 	public void log(long sample, PrintStream out) {
 		remapForLog(sample);
 
+		if (asyncMappingInput.get() && remapOnLogInput.get()) {
+			pendingMappings.get(sample).logTrees = true;
+			writeMappings(out, false);
+			return;
+		}
+
 		out.print("tree STATE_" + sample + " = ");
 		// Don't sort, this can confuse CalculationNodes relying on the tree
 		// tree.getRoot().sort();
 		final String newick = this.getExtendedNewick();
 		out.print(newick);
+
+		// further draws of the same sample
+		for (int k = 1; k < mappings.size(); k++) {
+			out.println();
+			out.print("tree STATE_" + sample + "_" + k + " = " + mappings.get(k).getExtendedNewick());
+		}
 	}
 
 	@Override
 	public void close(PrintStream out) {
-		untypedNetwork.close(out);
+		if (mappingPool != null) {
+			if (treesLogged && asyncMappingInput.get()) {
+				writeMappings(out, true);
+				out.println();
+			}
+			mappingPool.shutdown();
+			mappingPool = null;
+		}
+		if (untypedNetwork != null)
+			untypedNetwork.close(out);
 	}
 
 	// XXX utils
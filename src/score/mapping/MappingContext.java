@@ -0,0 +1,131 @@
+package score.mapping;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import coalre.network.NetworkNode;
+import score.distribution.StructuredNetworkEvent;
+import score.math.DenseOutput;
+
+/**
+ * Results of the backward pass, rates and settings of one mapping that the
+ * forward simulation reads. It is taken from the mapped network before the
+ * draws start and is not changed afterwards, such that the draws of a
+ * mapping can run on any worker while the network maps the next sample.
+ */
+final class MappingContext {
+
+	final List<StructuredNetworkEvent> eventList;
+	// node state probabilities of the root
+	final double[] rootProbabilities;
+	final int types;
+	// type names, and the type of the sample of every sample event
+	final String[] typeLabels;
+	final int[] sampleTypes;
+	final boolean rejection;
+	final boolean inheritReaType;
+	final boolean jointReassortmentTypes;
+	final double[][] migrationRateTable;
+	// element-wise maximum of the migration rates over all epochs
+	final double[] maxMigrationRates;
+	// time from the most recent sample to the start of every epoch
+	final double[] epochStarts;
+	// conditioning of the parents of each reassortment node on agreeing,
+	// null unless jointReassortmentTypes
+	final Map<NetworkNode, ReassortmentBridge> bridges;
+
+	MappingContext(List<StructuredNetworkEvent> eventList, double[] rootProbabilities, String[] typeLabels,
+			int[] sampleTypes, boolean rejection, boolean inheritReaType, boolean jointReassortmentTypes,
+			double[][] migrationRateTable, double[] maxMigrationRates, double[] rateShiftTable,
+			Map<NetworkNode, ReassortmentBridge> bridges) {
+		this.eventList = eventList;
+		this.rootProbabilities = rootProbabilities;
+		this.types = typeLabels.length;
+		this.typeLabels = typeLabels;
+		this.sampleTypes = sampleTypes;
+		this.rejection = rejection;
+		this.inheritReaType = inheritReaType;
+		this.jointReassortmentTypes = jointReassortmentTypes;
+		this.migrationRateTable = migrationRateTable;
+		this.maxMigrationRates = maxMigrationRates;
+		epochStarts = getEpochStarts(rateShiftTable);
+		this.bridges = bridges;
+	}
+
+	/**
+	 * Total forwards migration rate of lineage away from type from at t,
+	 * with the largest migration rates of all epochs. x is the first record
+	 * not before t. Infinite where the probability of from is zero.
+	 */
+	double getRateBound(DenseOutput denseOutput, int x, double t, int lineage, int from) {
+		int n = (int) (Math.sqrt(maxMigrationRates.length) + 0.5);
+		double out = 0.0;
+		for (int to = 0; to < types; to++) {
+			if (to != from)
+				out += maxMigrationRates[to * n + from] * interpolate(denseOutput, x, t, lineage * types + to);
+		}
+		double pFrom = interpolate(denseOutput, x, t, lineage * types + from);
+		if (pFrom > 0.0)
+			return out / pFrom;
+		return out > 0.0 ? Double.POSITIVE_INFINITY : 0.0;
+	}
+
+	/**
+	 * Numerator of the rate bound at record x.
+	 */
+	double getMigrationOut(DenseOutput denseOutput, int x, int lineage, int from) {
+		int n = (int) (Math.sqrt(maxMigrationRates.length) + 0.5);
+		double out = 0.0;
+		for (int to = 0; to < types; to++) {
+			if (to != from)
+				out += maxMigrationRates[to * n + from] * denseOutput.getValue(x, lineage * types + to);
+		}
+		return out;
+	}
+
+	/**
+	 * Value index of the records interpolated linearly at t, where x is the
+	 * first record not before t. Outside of the records the nearest one is
+	 * taken.
+	 */
+	static double interpolate(DenseOutput denseOutput, int x, double t, int index) {
+		double[] times = denseOutput.getTimes();
+		if (x >= times.length)
+			return denseOutput.getValue(times.length - 1, index);
+		if (x == 0 || times[x] == t)
+			return denseOutput.getValue(x, index);
+		return (denseOutput.getValue(x - 1, index) * (times[x] - t)
+				+ denseOutput.getValue(x, index) * (t - times[x - 1])) / (times[x] - times[x - 1]);
+	}
+
+	/**
+	 * Migration rates of the rate epoch t lies in.
+	 */
+	double[] getMigrationRates(double t) {
+		return migrationRateTable[Math.min(getIntervalIndex(epochStarts, t), migrationRateTable.length - 1)];
+	}
+
+	/**
+	 * Start times of the epochs with the given durations.
+	 */
+	static double[] getEpochStarts(double[] durations) {
+		double[] starts = new double[durations.length];
+		for (int i = 1; i < durations.length; i++)
+			starts[i] = starts[i - 1] + durations[i - 1];
+		return starts;
+	}
+
+	/**
+	 * Index of the epoch t lies in, the earlier one if t lies on a
+	 * boundary.
+	 */
+	static int getIntervalIndex(double[] epochStarts, double t) {
+		int index = Arrays.binarySearch(epochStarts, t);
+
+		// the last epoch starting before t
+		index = index < 0 ? -index - 2 : index - 1;
+
+		return Math.max(0, Math.min(index, epochStarts.length - 1));
+	}
+}
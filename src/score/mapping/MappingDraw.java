@@ -0,0 +1,71 @@
+package score.mapping;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import beast.util.Randomizer;
+import coalre.network.NetworkEdge;
+
+/**
+ * Random number stream and scratch space of one forward simulation of a
+ * stochastic mapping, such that several mappings can be drawn in parallel.
+ * Without a stream of its own, the draw uses the global Randomizer.
+ */
+class MappingDraw {
+
+	final SplittableRandom random;
+	// maps every edge of the untyped network to the lowest typed edge on it
+	final Map<NetworkEdge, NetworkEdge> typedEdges = new IdentityHashMap<>();
+	// remaining migrations {time, new type} of the parents of reassortments
+	// that are simulated jointly
+	final Map<NetworkEdge, ArrayDeque<double[]>> plannedMigrations = new IdentityHashMap<>();
+	// position of the last lookup in the records of an interval
+	private int cursor;
+
+	MappingDraw(SplittableRandom random) {
+		this.random = random;
+	}
+
+	/**
+	 * Index of the first of the increasing times that is not smaller than t,
+	 * found by walking from the position of the last lookup. Consecutive
+	 * lookups are close to each other, such that this is usually cheaper
+	 * than a binary search.
+	 */
+	int locate(double[] times, double t) {
+		int i = Math.min(cursor, times.length);
+		while (i > 0 && times[i - 1] >= t)
+			i--;
+		while (i < times.length && times[i] < t)
+			i++;
+		cursor = i;
+		return i;
+	}
+
+	double nextDouble() {
+		return random == null ? Randomizer.nextDouble() : random.nextDouble();
+	}
+
+	int randomChoicePDF(double[] pdf) {
+		if (random == null)
+			return Randomizer.randomChoicePDF(pdf);
+
+		double total = 0.0;
+		for (double p : pdf)
+			total += p;
+		double u = random.nextDouble() * total;
+		for (int i = 0; i < pdf.length; i++) {
+			u -= pdf[i];
+			if (u < 0.0)
+				return i;
+		}
+		// rounding, return the last choice with positive probability
+		for (int i = pdf.length - 1; i > 0; i--) {
+			if (pdf[i] > 0.0)
+				return i;
+		}
+		return 0;
+	}
+}
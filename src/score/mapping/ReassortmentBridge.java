@@ -0,0 +1,243 @@
+package score.mapping;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Joint forward simulation of the two parent lineages of a reassortment event
+ * conditioned on both arriving at the event in the same type. From the time
+ * both parents exist, the type of each parent is a Markov chain with the
+ * forwards migration rates of the mapping, taken as constant on every step
+ * of a grid. Given the types i and j of the parents at
+ * the start, the type k of the event is drawn with probability proportional to
+ * P1(i,k) P2(j,k) / w(k), where Pl are the transition probabilities of the
+ * parents to the event and w are the backward probabilities of the event
+ * types, which the rates of both parents already include. The paths of the
+ * parents are then drawn conditioned on ending in k, the types at the grid
+ * points from the transition probabilities and the migrations between them
+ * by uniformization. The tables are computed once per mapping and only read
+ * by the draws.
+ */
+final class ReassortmentBridge {
+
+	// truncation of the Poisson series of uniformization
+	private static final double SERIES_TOLERANCE = 1e-14;
+
+	private final int types;
+	// grid from the start (0) down to the event
+	private final double[] times;
+	// for each parent and step: uniformization rate, jump matrix and
+	// transition matrix
+	private final double[][] rate;
+	private final double[][][][] jump;
+	private final double[][][][] transition;
+	// for each parent and grid point: transition probabilities to the event
+	private final double[][][][] toEvent;
+	private final double[] weights;
+
+	/**
+	 * @param times     grid in decreasing order
+	 * @param generator off-diagonal migration rates of each parent on each
+	 *                  step, [parent][step][from][to]
+	 * @param weights   backward probabilities of the types of the event
+	 */
+	ReassortmentBridge(double[] times, double[][][][] generator, double[] weights) {
+		this.times = times;
+		this.weights = weights;
+		types = weights.length;
+		int steps = times.length - 1;
+
+		rate = new double[2][steps];
+		jump = new double[2][steps][][];
+		transition = new double[2][steps][][];
+		toEvent = new double[2][steps + 1][][];
+		for (int l = 0; l < 2; l++) {
+			for (int g = 0; g < steps; g++) {
+				double[][] q = generator[l][g];
+				double mu = 0.0;
+				for (int a = 0; a < types; a++) {
+					double out = 0.0;
+					for (int b = 0; b < types; b++)
+						out += b == a ? 0.0 : q[a][b];
+					mu = Math.max(mu, out);
+				}
+				rate[l][g] = mu;
+				jump[l][g] = getJumpMatrix(q, mu);
+				transition[l][g] = getTransitionMatrix(jump[l][g], mu * (times[g] - times[g + 1]));
+			}
+
+			toEvent[l][steps] = identity(types);
+			for (int g = steps - 1; g >= 0; g--)
+				toEvent[l][g] = multiply(transition[l][g], toEvent[l][g + 1]);
+		}
+	}
+
+	/**
+	 * Draws the type of the event and the migrations of both parents up to
+	 * it. The migrations are added to path1 and path2 as {time, new type} in
+	 * order of decreasing time. Returns the type of the event, or -1 if no
+	 * type can be reached by both parents.
+	 */
+	int sample(MappingDraw draw, int type1, int type2, ArrayDeque<double[]> path1,
+			ArrayDeque<double[]> path2) {
+		double[] pdf = new double[types];
+		double sum = 0.0;
+		for (int k = 0; k < types; k++) {
+			if (weights[k] > 0.0)
+				pdf[k] = toEvent[0][0][type1][k] * toEvent[1][0][type2][k] / weights[k];
+			sum += pdf[k];
+		}
+		if (!(sum > 0.0))
+			return -1;
+
+		int k = draw.randomChoicePDF(pdf);
+		samplePath(draw, 0, type1, k, path1);
+		samplePath(draw, 1, type2, k, path2);
+		return k;
+	}
+
+	private void samplePath(MappingDraw draw, int l, int type, int end, ArrayDeque<double[]> path) {
+		double[] pdf = new double[types];
+		int a = type;
+		for (int g = 0; g < times.length - 1; g++) {
+			for (int b = 0; b < types; b++)
+				pdf[b] = transition[l][g][a][b] * toEvent[l][g + 1][b][end];
+			int b = draw.randomChoicePDF(pdf);
+			sampleStep(draw, l, g, a, b, path);
+			a = b;
+		}
+	}
+
+	/**
+	 * Draws the migrations on step g of parent l between the types a and b,
+	 * by first drawing the number of jumps of the uniformized chain and then
+	 * the states it passes, both conditioned on the end point. Virtual jumps
+	 * are dropped.
+	 */
+	private void sampleStep(MappingDraw draw, int l, int g, int a, int b, ArrayDeque<double[]> path) {
+		double[][] r = jump[l][g];
+		double duration = times[g] - times[g + 1];
+		double lambda = rate[l][g] * duration;
+		if (lambda == 0.0)
+			return;
+
+		// number of jumps: Poisson(lambda) weighted by R^n(a,b)
+		double u = draw.nextDouble() * transition[l][g][a][b];
+		double poisson = Math.exp(-lambda);
+		double[] row = new double[types];
+		row[a] = 1.0;
+		int n = 0;
+		double cumulative = poisson * row[b];
+		while ((cumulative < u || (n == 0 && a != b)) && poisson > 0.0) {
+			n++;
+			row = multiply(row, r);
+			poisson *= lambda / n;
+			cumulative += poisson * row[b];
+		}
+		if (n == 0)
+			return;
+
+		// R^m(x,b) for m = 0 ... n-1
+		double[][] toEnd = new double[n][];
+		toEnd[0] = new double[types];
+		toEnd[0][b] = 1.0;
+		for (int m = 1; m < n; m++)
+			toEnd[m] = multiply(r, toEnd[m - 1]);
+
+		double[] offsets = new double[n];
+		for (int m = 0; m < n; m++)
+			offsets[m] = draw.nextDouble() * duration;
+		Arrays.sort(offsets);
+
+		double[] pdf = new double[types];
+		int x = a;
+		for (int m = 0; m < n; m++) {
+			for (int y = 0; y < types; y++)
+				pdf[y] = r[x][y] * toEnd[n - 1 - m][y];
+			int y = draw.randomChoicePDF(pdf);
+			if (y != x)
+				path.add(new double[] { times[g] - offsets[m], y });
+			x = y;
+		}
+	}
+
+	private double[][] getJumpMatrix(double[][] q, double mu) {
+		double[][] r = new double[types][types];
+		for (int a = 0; a < types; a++) {
+			double stay = 1.0;
+			for (int b = 0; b < types; b++) {
+				if (b != a && mu > 0.0) {
+					r[a][b] = q[a][b] / mu;
+					stay -= r[a][b];
+				}
+			}
+			r[a][a] = Math.max(stay, 0.0);
+		}
+		return r;
+	}
+
+	private double[][] getTransitionMatrix(double[][] r, double lambda) {
+		double[][] p = new double[types][types];
+		double[][] power = identity(types);
+		double poisson = Math.exp(-lambda);
+		double remaining = 1.0 - poisson;
+		add(p, power, poisson);
+		for (int n = 1; remaining > SERIES_TOLERANCE && poisson > 0.0; n++) {
+			power = multiply(power, r);
+			poisson *= lambda / n;
+			remaining -= poisson;
+			add(p, power, poisson);
+		}
+		return p;
+	}
+
+	private static double[][] identity(int n) {
+		double[][] m = new double[n][n];
+		for (int i = 0; i < n; i++)
+			m[i][i] = 1.0;
+		return m;
+	}
+
+	private static void add(double[][] sum, double[][] m, double factor) {
+		for (int i = 0; i < m.length; i++) {
+			for (int j = 0; j < m.length; j++)
+				sum[i][j] += factor * m[i][j];
+		}
+	}
+
+	private static double[][] multiply(double[][] a, double[][] b) {
+		int n = a.length;
+		double[][] c = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int k = 0; k < n; k++) {
+				if (a[i][k] == 0.0)
+					continue;
+				for (int j = 0; j < n; j++)
+					c[i][j] += a[i][k] * b[k][j];
+			}
+		}
+		return c;
+	}
+
+	// row vector times matrix
+	private static double[] multiply(double[] v, double[][] m) {
+		double[] w = new double[v.length];
+		for (int i = 0; i < v.length; i++) {
+			if (v[i] == 0.0)
+				continue;
+			for (int j = 0; j < v.length; j++)
+				w[j] += v[i] * m[i][j];
+		}
+		return w;
+	}
+
+	// matrix times column vector
+	private static double[] multiply(double[][] m, double[] v) {
+		double[] w = new double[v.length];
+		for (int i = 0; i < v.length; i++) {
+			for (int j = 0; j < v.length; j++)
+				w[i] += m[i][j] * v[j];
+		}
+		return w;
+	}
+}
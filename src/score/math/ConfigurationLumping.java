@@ -0,0 +1,128 @@
+package score.math;
+
+import java.util.Arrays;
+
+/**
+ * Structural lumping of the configurations of the exact model. Lineages that
+ * were sampled at the same time in the same type and carry the same segments
+ * start from the same distribution and see the same generator, so the
+ * configuration probabilities are invariant under permuting their types until
+ * one of them takes part in an event. Such lineages form a class and the
+ * configurations are only tracked up to permutations within the classes: an
+ * orbit is represented by the configuration in which the types of each class
+ * are sorted in increasing order, and carries the summed probability of its
+ * members. A lineage is separated from its class before it takes part in an
+ * event, which is the only point where lumped configurations are expanded.
+ */
+public class ConfigurationLumping {
+
+	public final long[] representatives;
+	public final double[] p;
+
+	private ConfigurationLumping(long[] representatives, double[] p) {
+		this.representatives = representatives;
+		this.p = p;
+	}
+
+	/**
+	 * true if no class has more than one lineage
+	 */
+	public static boolean isTrivial(int[] lineageClass) {
+		for (int l = 0; l < lineageClass.length; l++) {
+			for (int m = l + 1; m < lineageClass.length; m++) {
+				if (lineageClass[l] == lineageClass[m])
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merges configurations into the orbits of the given classes, for example
+	 * after a sampled lineage was added to an existing class. The probability of
+	 * an orbit is the sum over the configurations in it.
+	 */
+	public static ConfigurationLumping merge(long[] codes, double[] p, int types, int[] lineageClass) {
+		long[] radix = getRadix(lineageClass.length, types);
+		long[] canonical = new long[codes.length];
+		for (int i = 0; i < codes.length; i++)
+			canonical[i] = ConfigurationTransitions.canonical(codes[i], radix, types, lineageClass);
+
+		long[] sorted = canonical.clone();
+		Arrays.sort(sorted);
+		int orbits = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1])
+				sorted[orbits++] = sorted[i];
+		}
+		long[] representatives = Arrays.copyOf(sorted, orbits);
+		double[] lumped = new double[orbits];
+		for (int i = 0; i < codes.length; i++)
+			lumped[Arrays.binarySearch(representatives, canonical[i])] += p[i];
+		return new ConfigurationLumping(representatives, lumped);
+	}
+
+	/**
+	 * Separates lineage from its class. Each orbit in which the class has the
+	 * types M splits into one orbit per distinct type v in M, where the lineage
+	 * has type v. That orbit holds the fraction count(v)/|M| of the members.
+	 */
+	public static ConfigurationLumping separate(long[] codes, double[] p, int types, int[] lineageClass,
+			int lineage) {
+		int lineages = lineageClass.length;
+		long[] radix = getRadix(lineages, types);
+
+		int[] members = new int[lineages];
+		int k = 0;
+		for (int l = 0; l < lineages; l++) {
+			if (lineageClass[l] == lineageClass[lineage])
+				members[k++] = l;
+		}
+		if (k == 1)
+			return new ConfigurationLumping(codes, p);
+
+		int distinct = Math.min(k, types);
+		long[] newCodes = new long[codes.length * distinct];
+		double[] newP = new double[codes.length * distinct];
+		int[] digits = new int[k];
+		int n = 0;
+		for (int i = 0; i < codes.length; i++) {
+			// the types of the class in increasing order
+			long rest = codes[i];
+			for (int m = 0; m < k; m++) {
+				digits[m] = (int) ((codes[i] / radix[members[m]]) % types);
+				rest -= digits[m] * radix[members[m]];
+			}
+			for (int m = 0; m < k; m++) {
+				if (m > 0 && digits[m] == digits[m - 1])
+					continue;
+				int v = digits[m];
+				int count = 0;
+				while (m + count < k && digits[m + count] == v)
+					count++;
+
+				// lineage gets v, the other members the remaining types in order
+				long code = rest + v * radix[lineage];
+				int next = 0;
+				for (int j = 0; j < k; j++) {
+					if (members[j] == lineage)
+						continue;
+					if (next == m)
+						next++;
+					code += digits[next++] * radix[members[j]];
+				}
+				newCodes[n] = code;
+				newP[n] = p[i] * count / k;
+				n++;
+			}
+		}
+		return new ConfigurationLumping(Arrays.copyOf(newCodes, n), Arrays.copyOf(newP, n));
+	}
+
+	private static long[] getRadix(int lineages, int types) {
+		long[] radix = new long[lineages];
+		for (int l = 0; l < lineages; l++)
+			radix[l] = l == 0 ? 1 : radix[l - 1] * types;
+		return radix;
+	}
+}
@@ -0,0 +1,144 @@
+package score.math;
+
+import java.util.Arrays;
+
+/**
+ * Sparse (CSR) representation of the migration transitions between the joint
+ * type configurations of the exact structured coalescent with reassortment.
+ * Each configuration is encoded as a number in base types, with the type of the
+ * l-th lineage as the l-th digit, such that the configurations that differ in the type of exactly one
+ * lineage can be enumerated directly instead of comparing all pairs.
+ */
+public class ConfigurationTransitions {
+
+	// the transitions from configuration i are rowStart[i] ... rowStart[i+1]-1
+	public final int[] rowStart;
+	public final int[] target;
+	public final int[] rateIndex;
+
+	// the same transitions grouped by their target, the transitions into
+	// configuration j are inStart[j] ... inStart[j+1]-1
+	public final int[] inStart;
+	public final int[] source;
+	public final int[] inRateIndex;
+
+	public ConfigurationTransitions(long[] codes, int lineages, int types, int[][] migrationMap) {
+		this(codes, lineages, types, migrationMap, null);
+	}
+
+	/**
+	 * Transitions between lumped configurations, where codes are the orbit
+	 * representatives and lineages of the same class are exchangeable. A
+	 * transition then leads to the orbit of the configuration reached and
+	 * several transitions of a row can lead to the same orbit.
+	 */
+	public ConfigurationTransitions(long[] codes, int lineages, int types, int[][] migrationMap,
+			int[] lineageClass) {
+		int C = codes.length;
+
+		long[] radix = new long[lineages];
+		long size = 1;
+		for (int l = 0; l < lineages; l++) {
+			radix[l] = size;
+			size *= types;
+		}
+
+		// the configurations (or their representatives) are codes below types^lineages
+		int[] codeToIndex = new int[(int) size];
+		Arrays.fill(codeToIndex, -1);
+		for (int i = 0; i < C; i++)
+			codeToIndex[(int) codes[i]] = i;
+
+		int maxDegree = lineages * (types - 1);
+		rowStart = new int[C + 1];
+		int[] targetTmp = new int[C * maxDegree];
+		int[] rateTmp = new int[C * maxDegree];
+
+		int nnz = 0;
+		for (int i = 0; i < C; i++) {
+			rowStart[i] = nnz;
+			for (int l = 0; l < lineages; l++) {
+				int from = (int) ((codes[i] / radix[l]) % types);
+				for (int to = 0; to < types; to++) {
+					if (to == from)
+						continue;
+					long code = codes[i] + (to - from) * radix[l];
+					if (lineageClass != null)
+						code = canonical(code, radix, types, lineageClass);
+					int j = codeToIndex[(int) code];
+					if (j == -1)
+						continue;
+
+					// keep the targets of a row sorted, such that the derivatives are
+					// summed up in the same order as with the dense matrix
+					int k = nnz++;
+					while (k > rowStart[i] && targetTmp[k - 1] > j) {
+						targetTmp[k] = targetTmp[k - 1];
+						rateTmp[k] = rateTmp[k - 1];
+						k--;
+					}
+					targetTmp[k] = j;
+					rateTmp[k] = migrationMap[from][to];
+				}
+			}
+		}
+		rowStart[C] = nnz;
+
+		target = Arrays.copyOf(targetTmp, nnz);
+		rateIndex = Arrays.copyOf(rateTmp, nnz);
+
+		// transpose, sources of a target stay in increasing order
+		inStart = new int[C + 1];
+		for (int k = 0; k < nnz; k++)
+			inStart[target[k] + 1]++;
+		for (int j = 0; j < C; j++)
+			inStart[j + 1] += inStart[j];
+		source = new int[nnz];
+		inRateIndex = new int[nnz];
+		int[] next = Arrays.copyOf(inStart, C);
+		for (int i = 0; i < C; i++) {
+			for (int k = rowStart[i]; k < rowStart[i + 1]; k++) {
+				int pos = next[target[k]]++;
+				source[pos] = i;
+				inRateIndex[pos] = rateIndex[k];
+			}
+		}
+	}
+
+	/**
+	 * Orbit representative of a configuration, in which the types of the
+	 * lineages of each class are sorted in increasing order.
+	 */
+	static long canonical(long code, long[] radix, int types, int[] lineageClass) {
+		int lineages = radix.length;
+		int[] digits = new int[lineages];
+		for (int l = 0; l < lineages; l++)
+			digits[l] = (int) ((code / radix[l]) % types);
+
+		long result = 0;
+		boolean[] done = new boolean[lineages];
+		int[] members = new int[lineages];
+		for (int l = 0; l < lineages; l++) {
+			if (done[l])
+				continue;
+			int n = 0;
+			for (int m = l; m < lineages; m++) {
+				if (lineageClass[m] == lineageClass[l]) {
+					members[n++] = digits[m];
+					done[m] = true;
+				}
+			}
+			Arrays.sort(members, 0, n);
+			int k = 0;
+			for (int m = l; m < lineages; m++) {
+				if (lineageClass[m] == lineageClass[l])
+					result += members[k++] * radix[m];
+			}
+		}
+		return result;
+	}
+
+	public int getConfigurationCount() {
+		return rowStart.length - 1;
+	}
+}
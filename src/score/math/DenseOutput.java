@@ -0,0 +1,95 @@
+package score.math;
+
+import java.util.Arrays;
+
+/**
+ * Lineage state probabilities recorded during the integration of an interval,
+ * interpolated linearly between records. Records are placed where the
+ * estimated interpolation error, h^2/8 times the largest second derivative
+ * since the last record, exceeds a tolerance, and only the probabilities of
+ * the lineages (not the integration state) are kept, in one buffer with the
+ * values of record i at i*dimension ... (i+1)*dimension-1.
+ */
+public class DenseOutput {
+
+	private final double end;
+	private final int dimension;
+	private final int capacity;
+	private final double tolerance;
+
+	private double[] times;
+	private double[] values;
+	private int size;
+	// remaining duration at the last record and largest curvature since
+	private double lastRemaining;
+	private double curvature;
+
+	/**
+	 * @param end time at the end of the interval
+	 * @param dimension number of lineage state probabilities
+	 * @param capacity maximal number of records, including both ends
+	 * @param tolerance maximal estimated error of the interpolation
+	 */
+	public DenseOutput(double end, int dimension, int capacity, double tolerance) {
+		this.end = end;
+		this.dimension = dimension;
+		this.capacity = Math.max(capacity, 2);
+		this.tolerance = tolerance;
+		times = new double[Math.min(this.capacity, 16)];
+		values = new double[times.length * dimension];
+	}
+
+	/**
+	 * Returns true if the state at remaining duration before the end of the
+	 * interval should be recorded, given its second derivative.
+	 */
+	public boolean isDue(double remaining, double[] pDotDot) {
+		if (size == 0)
+			return true;
+		// keep the last record for the end of the interval
+		if (size >= capacity - 1)
+			return false;
+		for (int i = 0; i < dimension; i++)
+			curvature = Math.max(curvature, Math.abs(pDotDot[i]));
+		double h = lastRemaining - remaining;
+		return h * h * curvature / 8 > tolerance;
+	}
+
+	public void add(double remaining, double[] p) {
+		if (size == times.length) {
+			int newLength = Math.min(2 * times.length, capacity);
+			times = Arrays.copyOf(times, newLength);
+			values = Arrays.copyOf(values, newLength * dimension);
+		}
+		times[size] = end - remaining;
+		System.arraycopy(p, 0, values, size * dimension, dimension);
+		size++;
+		lastRemaining = remaining;
+		curvature = 0.0;
+	}
+
+	/**
+	 * Records the state at the end of the interval and releases the unused
+	 * space.
+	 */
+	public void finish(double remaining, double[] p) {
+		add(remaining, p);
+		times = Arrays.copyOf(times, size);
+		values = Arrays.copyOf(values, size * dimension);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Times of the records in increasing order.
+	 */
+	public double[] getTimes() {
+		return times;
+	}
+
+	public double getValue(int record, int index) {
+		return values[record * dimension + index];
+	}
+}
@@ -1,7 +1,12 @@
 package score.math;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.util.FastMath;
 
@@ -25,14 +30,40 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
     double[] tCR;
     double[] sumDotTypes;
     List<Integer> n_segs;
-	int subIntervalID;
+    // probability that a reassortment event on each lineage is observed
+    double[] obsProb = new double[0];
+    ReassortmentObservability observability = new ReassortmentObservability(0.5, 0);
 	double durationCopy;
 
     int iterations;
+    // integration steps over all calls
+    long steps;
+
+    // Lineages only couple through the per type sums, such that blocks of
+    // lineages can be evaluated on a ForkJoin pool once the sums are known.
+    ForkJoinPool pool;
+    int parallelThreshold = Integer.MAX_VALUE;
+    int blockSize;
+    double[] blockAcc;
+    double[][] blockSums;
+    double[][] blockTCR;
+    double[][] blockReassort;
 
     public Euler2ndOrder() {
     };
 
+    @Override
+    public void setObservability(ReassortmentObservability observability) {
+	this.observability = observability;
+    }
+
+    private void setObsProb() {
+	if (obsProb.length < n_segs.size())
+	    obsProb = new double[n_segs.size()];
+	for (int i = 0; i < n_segs.size(); i++)
+	    obsProb[i] = observability.getObsProb(n_segs.get(i));
+    }
+
     @Override
     public void init(double[] migration_rates, double[] coalescent_rates, double[] reassortment_rates, int lineages,
 			List<Integer> n_segs) {
@@ -46,6 +77,7 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 	tCR = new double[types];
 	sumDotTypes = new double[types];
 	this.n_segs = n_segs;
+	setObsProb();
 
 	iterations = 0;
 
@@ -66,6 +98,12 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 	this.types = types;
     }
 
+    @Override
+    public void setParallel(ForkJoinPool pool, int parallelThreshold) {
+	this.pool = pool;
+	this.parallelThreshold = parallelThreshold;
+    }
+
     public double[][] coalescentRates;
     double[][] migrationRates;
     double[][] reassortmentRates;
@@ -85,8 +123,37 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
     @Override
     public void initAndcalculateValues(int ratesInterval, int lineages, double duration, double[] p, int length,
 			List<Integer> n_segs, StructuredNetworkEvent startEvent) {
-	double nextRateShiftTime = ratesInterval == nextRateShift.length ? Double.POSITIVE_INFINITY
-		: nextRateShift[ratesInterval];
+	initInterval(ratesInterval, lineages, duration, n_segs);
+		calculateValues(duration, p, startEvent, length);
+    }
+
+    /**
+     * Advances p over the whole duration with a single second order step and
+     * no step size control, as a cheap predictor. Lineage state probabilities
+     * that leave [0,1] are clipped before they are normalised.
+     */
+    public void singleStep(int ratesInterval, int lineages, double duration, double[] p, int length,
+	    List<Integer> n_segs) {
+	initInterval(ratesInterval, lineages, duration, n_segs);
+	double[] pDot = linProbs_tmpdt;
+	double[] pDotDot = linProbs_tmpddt;
+	double[] pDotDotDot = linProbs_tmpdddt;
+	clearArray(pDot, length);
+	clearArray(pDotDot, length);
+	clearArray(pDotDotDot, length);
+
+	steps++;
+	computeDerivatives(p, pDot, pDotDot, pDotDotDot, length);
+	computeSecondDerivate(p, pDot, pDotDot, length);
+	updateP2(duration, duration * duration * 0.5, p, length, pDot, pDotDot);
+
+	for (int i = 0; i < length - 1; i++)
+	    p[i] = FastMath.min(FastMath.max(p[i], 0.0), 1.0);
+	for (int i = 0; i < lineages; i++)
+	    normalise(i, p);
+    }
+
+    private void initInterval(int ratesInterval, int lineages, double duration, List<Integer> n_segs) {
 	if (ratesInterval >= nextRateShift.length) {
 	    ratesInterval = nextRateShift.length - 1;
 	}
@@ -102,15 +169,11 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 	this.lineages = lineages;
 	this.dimension = this.lineages * this.types;
 	this.n_segs = n_segs;
+	setObsProb();
 
 	sumTypes = new double[types];
 	tCR = new double[types];
 	sumDotTypes = new double[types];
-
-		if (startEvent != null)
-			subIntervalID = startEvent.numRecords;
-
-		calculateValues(duration, p, startEvent, length);
     }
 
 
@@ -133,19 +196,14 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 
 	while (duration > 0) {
 	    iterations++;
+	    steps++;
 	    clearArray(pDot, length);
 	    computeDerivatives(p, pDot, pDotDot, pDotDotDot, length);
 	    computeSecondDerivate(p, pDot, pDotDot, length);
 	    approximateThirdDerivate(p, pDot, pDotDot, pDotDotDot, length);
 
-			if (startEvent != null
-					&& (duration < (durationCopy * subIntervalID) / startEvent.numRecords || iterations == 1)) {
-				int pos = startEvent.numRecords - subIntervalID;
-				startEvent.intermediateTimeStored[pos] -= duration;
-				startEvent.p_stored[pos] = Arrays.copyOfRange(p, 0, p.length);
-				startEvent.pDot_stored[pos] = Arrays.copyOfRange(pDot, 0, p.length);
-				subIntervalID -= 1;
-			}
+			if (startEvent != null && startEvent.denseOutput.isDue(duration, pDotDot))
+				startEvent.denseOutput.add(duration, p);
 
 	    duration = updateP(duration, p, pDot, pDotDot, pDotDotDot, length - 1);
 
@@ -156,20 +214,13 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 	    }
 	}
 
-		if (startEvent != null) {
-			if (duration < (durationCopy * subIntervalID) / startEvent.numRecords) {
-				int pos = startEvent.numRecords - subIntervalID;
-				startEvent.intermediateTimeStored[pos] -= duration;
-				startEvent.p_stored[pos] = Arrays.copyOfRange(p, 0, p.length);
-				startEvent.pDot_stored[pos] = Arrays.copyOfRange(pDot, 0, p.length);
-				subIntervalID -= 1;
-			}
-
-			startEvent.numRecords -= subIntervalID;
-			startEvent.intermediateTimeStored = Arrays.copyOfRange(startEvent.intermediateTimeStored, 0,
-					startEvent.numRecords);
-			startEvent.p_stored = Arrays.copyOfRange(startEvent.p_stored, 0, startEvent.numRecords);
-		}
+		if (startEvent != null)
+			startEvent.denseOutput.finish(duration, p);
+    }
+
+    @Override
+    public long getSteps() {
+	return steps;
     }
 
     void clearArray(double[] v, int n) {
@@ -261,16 +312,36 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
     }
 
     public void computeDerivatives(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {
+	final int nBlocks = nrBlocks();
 
-	double migrates;
 	// Compute the sum of line state probabilities for each state
 	clearArray(sumTypes, types);
-	calcSumStates(sumTypes, p);
+	calcSumStates(sumTypes, p, nBlocks);
 
 	// Calculate the change in the lineage state probabilities for every lineage in
-	// every state
-	int currlin = 0, j, k;
-	for (int i = 0; i < lineages; i++) {
+	// every state due to coalescence and migration
+	blockAcc[0] = pDot[length - 1];
+	forEachBlock(nBlocks, (from, to, block) -> {
+	    blockAcc[block] = coalescenceAndMigration(p, pDot, pDotDot, pDotDotDot, from, to,
+		    block == 0 ? blockAcc[0] : 0.0, blockTCR[block]);
+	});
+	pDot[length - 1] = sumBlocks(nBlocks);
+
+	pDot[length - 1] /= 2;
+
+	// Calculate the change in the probability of a lineage due to reassortment
+	blockAcc[0] = pDot[length - 1];
+	forEachBlock(nBlocks, (from, to, block) -> {
+	    blockAcc[block] = reassortment(p, pDot, pDotDot, pDotDotDot, from, to,
+		    block == 0 ? blockAcc[0] : 0.0, blockReassort[block]);
+	});
+	pDot[length - 1] = sumBlocks(nBlocks);
+    }
+
+    private double coalescenceAndMigration(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot,
+	    int from, int to, double acc, double[] tCR) {
+	int currlin = from * types, j, k;
+	for (int i = from; i < to; i++) {
 
 	    double sumCoal = 0;
 	    k = currlin;
@@ -279,7 +350,7 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		sumCoal += p[k] * tCR[j];
 		k++;
 	    }
-	    pDot[length - 1] -= sumCoal;
+	    acc -= sumCoal;
 
 	    k = currlin;
 	    for (j = 0; j < types; j++) {
@@ -290,15 +361,10 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		pDot[k] += p[k] * coal;
 		k++;
 	    } // j
-	    currlin += types;
-	}
-
-	// Calculate the probability of a lineage changing states
 
-	int u = 0, v;
-	double pj;
-	for (int i = 0; i < lineages; i++) {
 	    // Calculate the probability of a lineage changing states
+	    int u = currlin, v;
+	    double pj, migrates;
 	    for (j = 0; j < types; j++) {
 		v = u;
 		pj = p[u];
@@ -311,25 +377,26 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		} // j XXX
 		u++;
 	    } // j
+	    currlin += types;
 	} // lineages
+	return acc;
+    }
 
-	pDot[length - 1] /= 2;
-
-	currlin = 0;
-	double[] reassort = new double[types];
-
-	for (int i = 0; i < lineages; i++) {
+    private double reassortment(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int from,
+	    int to, double acc, double[] reassort) {
+	int currlin = from * types, j, k;
+	for (int i = from; i < to; i++) {
 
 	    double sumReassort = 0;
 	    k = currlin;
 
 	    for (j = 0; j < types; j++) {
-		reassort[j] = reassortment_rates[j] * (1 - Math.pow(0.5, n_segs.get(i) - 1));
+		reassort[j] = reassortment_rates[j] * obsProb[i];
 		sumReassort += p[k] * reassort[j];
 		k++;
 	    }
 
-	    pDot[length - 1] -= sumReassort;
+	    acc -= sumReassort;
 
 	    k = currlin;
 	    for (j = 0; j < types; j++) {
@@ -341,12 +408,28 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 	    }
 	    currlin += types;
 	}
+	return acc;
+    }
 
+    private void calcSumStates(final double[] sumStates, final double[] p, int nBlocks) {
+	if (nBlocks == 1) {
+	    calcSumStates(sumStates, p, 0, lineages);
+	    return;
+	}
+	forEachBlock(nBlocks, (from, to, block) -> {
+	    clearArray(blockSums[block], types);
+	    calcSumStates(blockSums[block], p, from, to);
+	});
+	for (int b = 0; b < nBlocks; b++) {
+	    for (int j = 0; j < types; j++) {
+		sumStates[j] += blockSums[b][j];
+	    }
+	}
     }
 
-    private void calcSumStates(final double[] sumStates, final double[] p) {
-	int u = 0, j;
-	for (int i = 0; i < lineages; i++) {
+    private void calcSumStates(final double[] sumStates, final double[] p, int from, int to) {
+	int u = from * types, j;
+	for (int i = from; i < to; i++) {
 	    for (j = 0; j < types; j++) {
 		sumStates[j] += p[u++];
 	    }
@@ -354,13 +437,34 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
     }
 
     public void computeSecondDerivate(double[] p, double[] pDot, double[] pDotDot, int length) {
+	final int nBlocks = nrBlocks();
+
 	clearArray(sumDotTypes, types);
-	calcSumStates(sumDotTypes, pDot);
+	calcSumStates(sumDotTypes, pDot, nBlocks);
 
 	// Calculate the change in the lineage state probabilities for every lineage in
 	// every state
-	int currlin = 0, j;
-	for (int i = 0; i < lineages; i++) {
+	blockAcc[0] = pDotDot[length - 1];
+	forEachBlock(nBlocks, (from, to, block) -> {
+	    blockAcc[block] = secondCoalescenceAndMigration(p, pDot, pDotDot, from, to,
+		    block == 0 ? blockAcc[0] : 0.0);
+	});
+	pDotDot[length - 1] = sumBlocks(nBlocks);
+
+	pDotDot[length - 1] /= 2;
+
+	blockAcc[0] = pDotDot[length - 1];
+	forEachBlock(nBlocks, (from, to, block) -> {
+	    blockAcc[block] = secondReassortment(p, pDot, pDotDot, from, to, block == 0 ? blockAcc[0] : 0.0,
+		    blockReassort[block]);
+	});
+	pDotDot[length - 1] = sumBlocks(nBlocks);
+    }
+
+    private double secondCoalescenceAndMigration(double[] p, double[] pDot, double[] pDotDot, int from, int to,
+	    double acc) {
+	int currlin = from * types, j;
+	for (int i = from; i < to; i++) {
 	    double pCoalRate = 0.0;
 	    int k = currlin;
 	    for (j = 0; j < types; j++) {
@@ -375,22 +479,15 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		k++;
 	    } // j
 
-	    pDotDot[length - 1] -= pCoalRate;
+	    acc -= pCoalRate;
 
-	    currlin += types;
-	} // lineages
-
-	double migrates;
-
-	// Calculate the probability of a lineage changing states
-
-	int u = 0;
-	for (int i = 0; i < lineages; i++) {
 	    // Calculate the probability of a lineage changing states
+	    int u = currlin;
+	    double migrates;
 	    for (j = 0; j < types; j++) {
 		double pj = pDot[u];
 		int v = u + 1;
-		for (int k = j + 1; k < types; k++) {
+		for (k = j + 1; k < types; k++) {
 
 		    // the probability of lineage i being in state j is p[i*nr_states +j]
 		    migrates = pDot[v] * migration_rates[k * n + j] - pj * migration_rates[j * n + k];
@@ -400,23 +497,25 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 		} // j XXX
 		u++;
 	    } // j
-	} // lineages
-
-	pDotDot[length - 1] /= 2;
 
-	currlin = 0;
+	    currlin += types;
+	} // lineages
+	return acc;
+    }
 
-	double[] reassort = new double[types];
-	for (int i = 0; i < lineages; i++) {
+    private double secondReassortment(double[] p, double[] pDot, double[] pDotDot, int from, int to, double acc,
+	    double[] reassort) {
+	int currlin = from * types, j;
+	for (int i = from; i < to; i++) {
 	    double sumReassort = 0;
 	    int k = currlin;
 	    for (j = 0; j < types; j++) {
-		reassort[j] = reassortment_rates[j] * (1 - Math.pow(0.5, n_segs.get(i) - 1));
+		reassort[j] = reassortment_rates[j] * obsProb[i];
 		sumReassort += pDot[k] * reassort[j];
 		k++;
 	    }
 
-	    pDotDot[length - 1] -= sumReassort;
+	    acc -= sumReassort;
 
 	    k = currlin;
 	    for (j = 0; j < types; j++) {
@@ -425,45 +524,47 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 	    }
 	    currlin += types;
 	}
-
+	return acc;
     }
 
     public void approximateThirdDerivate(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot, int length) {
+	forEachBlock(nrBlocks(), (from, to, block) -> {
+	    approximateThirdDerivate(p, pDot, pDotDot, pDotDotDot, from, to, blockReassort[block]);
+	});
+    }
+
+    private void approximateThirdDerivate(double[] p, double[] pDot, double[] pDotDot, double[] pDotDotDot,
+	    int from, int to, double[] reassort) {
 	double migrates;
 
 	// Calculate the change in the lineage state probabilities for every lineage in
 	// every state
-	for (int u = 0; u < length - 1; u++) {
+	for (int u = from * types; u < to * types; u++) {
 	    pDotDotDot[u] *= pDotDot[u];
 	}
 
 	// Calculate the probability of a lineage changing states
 
-	int k;
-	for (int j = 0; j < types; j++) {
-	    for (k = 0; k < types; k++) {
-		double mrate = migration_rates[j * n + k];
-		int u = j;
-		int v = k;
-		for (int i = 0; i < lineages; i++) {
-		    migrates = pDotDot[u] * mrate;
-		    pDotDotDot[v] += migrates;
-		    pDotDotDot[u] -= migrates;
-		    u += types;
-		    v += types;
+	int k, j;
+	int currlin = from * types;
+	for (int i = from; i < to; i++) {
+	    for (j = 0; j < types; j++) {
+		for (k = 0; k < types; k++) {
+		    migrates = pDotDot[currlin + j] * migration_rates[j * n + k];
+		    pDotDotDot[currlin + k] += migrates;
+		    pDotDotDot[currlin + j] -= migrates;
 		} // XXX
-
 	    }
+	    currlin += types;
 	}
 
-	int currlin = 0, j;
-	double[] reassort = new double[types];
-	for (int i = 0; i < lineages; i++) {
+	currlin = from * types;
+	for (int i = from; i < to; i++) {
 	    double sumReassort_1 = 0;
 	    double sumReassort_2 = 0;
 	    k = currlin;
 	    for (j = 0; j < types; j++) {
-		reassort[j] = reassortment_rates[j] * (1 - Math.pow(0.5, n_segs.get(i) - 1));
+		reassort[j] = reassortment_rates[j] * obsProb[i];
 		sumReassort_1 += pDot[k] * reassort[j];
 		sumReassort_2 += pDotDot[k] * reassort[j];
 		k++;
@@ -477,4 +578,66 @@ public class Euler2ndOrder implements Euler2ndOrderBase {
 	    currlin += types;
 	}
     }
+
+    /**
+     * Range of lineages [from, to) that can be evaluated independently of all
+     * other lineages once the per type sums are known.
+     */
+    interface LineageBlock {
+	void apply(int from, int to, int block);
+    }
+
+    /**
+     * @return the number of lineage blocks for the current number of lineages, 1
+     *         if the derivatives are evaluated sequentially
+     */
+    private int nrBlocks() {
+	int nBlocks = 1;
+	if (pool != null && lineages >= parallelThreshold) {
+	    blockSize = (lineages + 2 * pool.getParallelism() - 1) / (2 * pool.getParallelism());
+	    nBlocks = (lineages + blockSize - 1) / blockSize;
+	}
+
+	if (blockAcc == null || blockAcc.length < nBlocks || blockSums[0].length != types) {
+	    blockAcc = new double[nBlocks];
+	    blockSums = new double[nBlocks][types];
+	    blockTCR = new double[nBlocks][types];
+	    blockReassort = new double[nBlocks][types];
+	}
+	return nBlocks;
+    }
+
+    private void forEachBlock(int nBlocks, LineageBlock f) {
+	if (nBlocks == 1) {
+	    f.apply(0, lineages, 0);
+	    return;
+	}
+
+	List<Callable<Void>> tasks = new ArrayList<>(nBlocks);
+	for (int b = 0; b < nBlocks; b++) {
+	    final int block = b;
+	    final int from = b * blockSize;
+	    final int to = Math.min(lineages, from + blockSize);
+	    tasks.add(() -> {
+		f.apply(from, to, block);
+		return null;
+	    });
+	}
+	try {
+	    for (Future<Void> task : pool.invokeAll(tasks))
+		task.get();
+	} catch (InterruptedException | ExecutionException e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    /**
+     * combines the per block contributions to the likelihood entry in block order
+     */
+    private double sumBlocks(int nBlocks) {
+	double sum = blockAcc[0];
+	for (int b = 1; b < nBlocks; b++)
+	    sum += blockAcc[b];
+	return sum;
+    }
 }
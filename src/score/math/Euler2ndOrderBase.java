@@ -1,6 +1,7 @@
 package score.math;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import score.distribution.StructuredNetworkEvent;
 
@@ -8,6 +9,18 @@ public interface Euler2ndOrderBase {
 
     public void setup(int maxSize, int types, double epsilon, double max_step);
 
+    /**
+     * Evaluate the derivatives in parallel blocks of lineages on the given pool
+     * whenever there are at least parallelThreshold lineages.
+     */
+    public void setParallel(ForkJoinPool pool, int parallelThreshold);
+
+    /**
+     * Table of the reassortment observation probabilities per segment count,
+     * by default for a binomialProb of 0.5.
+     */
+    public void setObservability(ReassortmentObservability observability);
+
     public void init(double[] migration_rates, double[] coalescent_rates, double[] reassortment_rates, int lineages,
 			List<Integer> n_segs);
 
@@ -21,6 +34,11 @@ public interface Euler2ndOrderBase {
 	public void initAndcalculateValues(int ratesInterval, int lineages, double duration, double[] p, int length,
 			List<Integer> n_segs, StructuredNetworkEvent startEvent);
 
+    /**
+     * Total number of integration steps taken so far.
+     */
+    public long getSteps();
+
     public void setUpDynamics(double[][] coalescentRates, double[][] migrationRates, double[][] reassortment_rates,
 	    int[][] indicators, double[] nextRateShift);
 
@@ -0,0 +1,248 @@
+package score.math;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Configuration probabilities of the exact model for systems that do not fit
+ * into the heap. Without lumping, the configurations of n lineages are all
+ * codes below types^n, so the probability of the configuration with code i is
+ * kept at index i of a MappedDoubleArray and nothing else is stored per
+ * configuration: the lineage counts, the exit rate and the configurations
+ * reached by migration all follow from the digits of i. The generator is
+ * applied block wise on the pool, and the events of the exact model map one
+ * off-heap vector to the next.
+ */
+public class MappedConfigurationSystem {
+
+	final long configurations;
+	final int lineages;
+	final int types;
+	final long[] radix;
+	final double[] migration_rates;
+	final double[] coalescent_rates;
+	final double[] reassortment_rates;
+	final int[][] migrationMap;
+	// rate at which a lineage of each type migrates away
+	final double[] migrationOut;
+	// probability that a reassortment of each lineage is observable
+	final double[] observable;
+	final ForkJoinPool pool;
+	double maxExitRate;
+
+	// minimal number of configurations for which the blocks are processed in parallel
+	static final long PARALLEL_THRESHOLD = 1024;
+
+	interface Block {
+		void run(int block, long from, long to);
+	}
+
+	public MappedConfigurationSystem(List<Integer> n_segs, int types, double[] migration_rates,
+			double[] coalescent_rates, double[] reassortment_rates, int[][] migrationMap, ForkJoinPool pool) {
+		this.lineages = n_segs.size();
+		this.types = types;
+		this.migration_rates = migration_rates;
+		this.coalescent_rates = coalescent_rates;
+		this.reassortment_rates = reassortment_rates;
+		this.migrationMap = migrationMap;
+		this.pool = pool;
+
+		radix = getRadix(lineages, types);
+		configurations = radix[lineages];
+		migrationOut = new double[types];
+		for (int s = 0; s < types; s++) {
+			for (int t = 0; t < types; t++) {
+				if (t != s)
+					migrationOut[s] += migration_rates[migrationMap[s][t]];
+			}
+		}
+		observable = new double[lineages];
+		for (int l = 0; l < lineages; l++)
+			observable[l] = 1 - Math.pow(0.5, n_segs.get(l) - 1);
+
+		double[] blockMax = new double[getBlockCount(configurations)];
+		forEachBlock(configurations, (block, from, to) -> {
+			int[] digits = new int[lineages];
+			int[] sums = new int[types];
+			for (long i = from; i < to; i++)
+				blockMax[block] = Math.max(blockMax[block], exitRate(i, digits, sums));
+		});
+		for (double max : blockMax)
+			maxExitRate = Math.max(maxExitRate, max);
+	}
+
+	public double getMaxExitRate() {
+		return maxExitRate;
+	}
+
+	/**
+	 * rate at which configuration i is left, fills in its digits
+	 */
+	private double exitRate(long i, int[] digits, int[] sums) {
+		Arrays.fill(sums, 0);
+		double rate = 0.0;
+		for (int l = 0; l < lineages; l++) {
+			digits[l] = (int) ((i / radix[l]) % types);
+			sums[digits[l]]++;
+			rate += observable[l] * reassortment_rates[digits[l]] + migrationOut[digits[l]];
+		}
+		for (int s = 0; s < types; s++)
+			rate += 0.5 * (sums[s] - 1) * sums[s] * coalescent_rates[s];
+		return rate;
+	}
+
+	/**
+	 * out = (I + Q/lambda) * p, every block writes its own configurations
+	 */
+	void uniformizedProduct(MappedDoubleArray p, MappedDoubleArray out, double lambda) {
+		forEachBlock(configurations, (block, from, to) -> {
+			int[] digits = new int[lineages];
+			int[] sums = new int[types];
+			for (long i = from; i < to; i++) {
+				double value = p.get(i) * (lambda - exitRate(i, digits, sums));
+				// lineage l migrated from t to its current type
+				for (int l = 0; l < lineages; l++) {
+					for (int t = 0; t < types; t++) {
+						if (t != digits[l])
+							value += p.get(i + (t - digits[l]) * radix[l])
+									* migration_rates[migrationMap[t][digits[l]]];
+					}
+				}
+				out.set(i, value / lambda);
+			}
+		});
+	}
+
+	void forEachBlock(long length, Block task) {
+		int nBlocks = getBlockCount(length);
+		if (nBlocks == 1) {
+			task.run(0, 0, length);
+			return;
+		}
+		long blockSize = (length + nBlocks - 1) / nBlocks;
+		List<Callable<Void>> tasks = new ArrayList<>(nBlocks);
+		for (int b = 0; b < nBlocks; b++) {
+			final int block = b;
+			final long start = b * blockSize;
+			final long end = Math.min(length, start + blockSize);
+			tasks.add(() -> {
+				task.run(block, start, end);
+				return null;
+			});
+		}
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks))
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private int getBlockCount(long length) {
+		if (pool == null || length < PARALLEL_THRESHOLD)
+			return 1;
+		return 4 * pool.getParallelism();
+	}
+
+	/**
+	 * Probabilities after a lineage sampled in sampleType was added as the
+	 * last digit, p holds the configurations of the lineages before.
+	 */
+	public static MappedDoubleArray addLineage(ScratchFile scratch, MappedDoubleArray p, int types,
+			int sampleType) {
+		long n = p.length();
+		MappedDoubleArray out = scratch.allocate(n * types);
+		for (int s = 0; s < types; s++) {
+			for (long i = 0; i < n; i++)
+				out.set(i + s * n, s == sampleType ? p.get(i) : 0.0);
+		}
+		return out;
+	}
+
+	/**
+	 * Probabilities after lineages l1 and l2 coalesced and their parent was
+	 * added as the last digit, typeProb collects the rate of the coalescence
+	 * in each type.
+	 */
+	public static MappedDoubleArray coalesce(ScratchFile scratch, MappedDoubleArray p, int lineages, int types,
+			int l1, int l2, double[] coalescent_rates, double[] typeProb) {
+		long[] radix = getRadix(lineages, types);
+		MappedDoubleArray out = scratch.allocate(radix[lineages - 1]);
+		for (long i = 0; i < radix[lineages]; i++) {
+			int s = (int) ((i / radix[l1]) % types);
+			if (s != (int) ((i / radix[l2]) % types))
+				continue;
+			double value = coalescent_rates[s] * p.get(i);
+			out.set(removeDigits(i, radix, types, lineages, l1, l2) + s * radix[lineages - 2], value);
+			typeProb[s] += value;
+		}
+		return out;
+	}
+
+	/**
+	 * Probabilities after lineage l reassorted, its parents are added as the
+	 * last two digits and the first parent keeps the type of l. typeProb
+	 * collects the rate of the reassortment in each type, where factor is the
+	 * probability of the observed split of the segments.
+	 */
+	public static MappedDoubleArray reassort(ScratchFile scratch, MappedDoubleArray p, int lineages, int types,
+			int l, double[] reassortment_rates, double factor, double[] typeProb) {
+		long[] radix = getRadix(lineages + 1, types);
+		MappedDoubleArray out = scratch.allocate(radix[lineages + 1]);
+		for (long i = 0; i < radix[lineages]; i++) {
+			int daughterType = (int) ((i / radix[l]) % types);
+			long base = removeDigits(i, radix, types, lineages, l, -1) + daughterType * radix[lineages - 1];
+			for (int s = 0; s < types; s++) {
+				double value = 0.0;
+				if (s == daughterType) {
+					value = reassortment_rates[s] * factor * p.get(i);
+					typeProb[s] += value;
+				}
+				out.set(base + s * radix[lineages], value);
+			}
+		}
+		return out;
+	}
+
+	public static double sum(MappedDoubleArray p) {
+		double sum = 0.0;
+		for (long i = 0; i < p.length(); i++)
+			sum += p.get(i);
+		return sum;
+	}
+
+	public static void scale(MappedDoubleArray p, double factor) {
+		for (long i = 0; i < p.length(); i++)
+			p.set(i, p.get(i) * factor);
+	}
+
+	/**
+	 * removes the digits l1 and l2 (-1 if only one is removed) and shifts the
+	 * remaining ones down
+	 */
+	private static long removeDigits(long code, long[] radix, int types, int lineages, int l1, int l2) {
+		long result = 0;
+		int position = 0;
+		for (int l = 0; l < lineages; l++) {
+			if (l != l1 && l != l2) {
+				result += ((code / radix[l]) % types) * radix[position];
+				position++;
+			}
+		}
+		return result;
+	}
+
+	// radix[l] = types^l for l = 0 ... lineages
+	private static long[] getRadix(int lineages, int types) {
+		long[] radix = new long[lineages + 1];
+		radix[0] = 1;
+		for (int l = 1; l <= lineages; l++)
+			radix[l] = radix[l - 1] * types;
+		return radix;
+	}
+}
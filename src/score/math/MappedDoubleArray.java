@@ -0,0 +1,46 @@
+package score.math;
+
+import java.nio.MappedByteBuffer;
+
+/**
+ * Array of doubles of arbitrary length that is kept in a region of a
+ * memory-mapped ScratchFile instead of the heap. The region is split into
+ * chunks that are mapped separately, since a single mapping is limited to
+ * 2GB. Arrays are obtained from and returned to the ScratchFile.
+ */
+public class MappedDoubleArray {
+
+	// elements per chunk
+	static final int CHUNK_SHIFT = 24;
+	static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+	private final long length;
+	// region in the scratch file in bytes
+	final long offset;
+	final long size;
+	final MappedByteBuffer[] chunks;
+
+	MappedDoubleArray(ScratchFile scratch, long offset, long size, long length) {
+		this.offset = offset;
+		this.size = size;
+		this.length = length;
+		int nChunks = (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+		chunks = new MappedByteBuffer[nChunks];
+		for (int c = 0; c < nChunks; c++) {
+			long start = (long) c << CHUNK_SHIFT;
+			chunks[c] = scratch.map(offset + start * 8, Math.min(length - start, 1L << CHUNK_SHIFT) * 8);
+		}
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public double get(long i) {
+		return chunks[(int) (i >>> CHUNK_SHIFT)].getDouble((int) (i & CHUNK_MASK) * 8);
+	}
+
+	public void set(long i, double value) {
+		chunks[(int) (i >>> CHUNK_SHIFT)].putDouble((int) (i & CHUNK_MASK) * 8, value);
+	}
+}
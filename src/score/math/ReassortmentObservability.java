@@ -0,0 +1,56 @@
+package score.math;
+
+/**
+ * Segment count dependent factors of the reassortment likelihood for a given
+ * probability binomialProb of a segment choosing a particular parent. A
+ * reassortment event on a lineage carrying n segments is observable if
+ * neither parent receives all of them, which happens with probability
+ * 1 - binomialProb^n - (1-binomialProb)^n, and the segments are split such
+ * that left of n go to the first parent with probability
+ * 2 * binomialProb^left * (1-binomialProb)^(n-left). The factors are tabulated
+ * once per binomialProb and the tables are never modified afterwards, such
+ * that an instance can be shared between threads. A new instance is built
+ * when binomialProb changes.
+ */
+public final class ReassortmentObservability {
+
+	private final double binomialProb;
+	// powers of binomialProb and 1-binomialProb
+	private final double[] leftPowers;
+	private final double[] rightPowers;
+	private final double[] obsProb;
+
+	public ReassortmentObservability(double binomialProb, int maxSegments) {
+		this.binomialProb = binomialProb;
+		int size = maxSegments + 1;
+		leftPowers = new double[size];
+		rightPowers = new double[size];
+		obsProb = new double[size];
+		for (int n = 0; n < size; n++) {
+			leftPowers[n] = Math.pow(binomialProb, n);
+			rightPowers[n] = Math.pow(1 - binomialProb, n);
+			obsProb[n] = 1.0 - leftPowers[n] - rightPowers[n];
+		}
+	}
+
+	public double getBinomialProb() {
+		return binomialProb;
+	}
+
+	public int getMaxSegments() {
+		return obsProb.length - 1;
+	}
+
+	public double getObsProb(int segments) {
+		if (segments < obsProb.length)
+			return obsProb[segments];
+		return 1.0 - Math.pow(binomialProb, segments) - Math.pow(1 - binomialProb, segments);
+	}
+
+	public double getSplitProb(int segsSortedLeft, int segsToSort) {
+		if (segsToSort < obsProb.length)
+			return 2.0 * leftPowers[segsSortedLeft] * rightPowers[segsToSort - segsSortedLeft];
+		return 2.0 * Math.pow(binomialProb, segsSortedLeft)
+				* Math.pow(1 - binomialProb, segsToSort - segsSortedLeft);
+	}
+}
@@ -0,0 +1,152 @@
+package score.math;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One scratch file in which the off-heap vectors of the exact model are
+ * mapped. The file is created once per run and regions of released arrays
+ * are reused by later ones. Released arrays are unmapped right away instead
+ * of waiting for the garbage collector, and once no array is left, reset()
+ * truncates the file such that it does not occupy disk space between
+ * calculations.
+ */
+public class ScratchFile {
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+
+	// end of the allocated regions in bytes
+	private long end;
+	// released regions as {offset, size} in bytes
+	private final List<long[]> free = new ArrayList<>();
+	private int allocated;
+
+	public ScratchFile(File directory) {
+		try {
+			file = File.createTempFile("score", ".scratch", directory);
+			file.deleteOnExit();
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not create scratch file in " + directory, e);
+		}
+	}
+
+	/**
+	 * Array of the given length in the smallest released region that is large
+	 * enough, or at the end of the file. The content is undefined.
+	 */
+	public synchronized MappedDoubleArray allocate(long length) {
+		long size = length * 8;
+		long[] best = null;
+		for (long[] region : free) {
+			if (region[1] >= size && (best == null || region[1] < best[1]))
+				best = region;
+		}
+		long offset;
+		if (best != null) {
+			free.remove(best);
+			offset = best[0];
+			size = best[1];
+		} else {
+			offset = end;
+			end += size;
+		}
+		allocated++;
+		return new MappedDoubleArray(this, offset, size, length);
+	}
+
+	/**
+	 * unmaps the array and makes its region available again, the array must
+	 * not be used afterwards
+	 */
+	public synchronized void release(MappedDoubleArray array) {
+		for (MappedByteBuffer chunk : array.chunks)
+			unmap(chunk);
+		free.add(new long[] { array.offset, array.size });
+		allocated--;
+	}
+
+	/**
+	 * truncates the file, all arrays must have been released
+	 */
+	public synchronized void reset() {
+		if (allocated > 0)
+			throw new IllegalStateException(allocated + " scratch arrays are still in use");
+		free.clear();
+		end = 0;
+		// a file cannot be truncated below regions that are still mapped
+		if (!canUnmap)
+			return;
+		try {
+			channel.truncate(0);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not truncate scratch file " + file, e);
+		}
+	}
+
+	MappedByteBuffer map(long position, long size) {
+		try {
+			if (raf.length() < position + size)
+				raf.setLength(position + size);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+			buffer.order(ByteOrder.nativeOrder());
+			return buffer;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not map scratch file " + file, e);
+		}
+	}
+
+	// Buffers can only be unmapped through internal API, Unsafe.invokeCleaner
+	// from Java 9 on and the cleaner of the buffer before. If neither works,
+	// the mapping is released by the garbage collector.
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+	private static boolean canUnmap = true;
+
+	static {
+		Object u = null;
+		Method m = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			u = theUnsafe.get(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			m = null;
+		}
+		unsafe = u;
+		invokeCleaner = m;
+	}
+
+	private static synchronized void unmap(MappedByteBuffer buffer) {
+		if (!canUnmap)
+			return;
+		try {
+			if (invokeCleaner != null) {
+				invokeCleaner.invoke(unsafe, buffer);
+			} else {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			System.err.println("Scratch buffers cannot be unmapped explicitly, leaving this to the garbage collector");
+			canUnmap = false;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package score.math;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+
+/**
+ * Computes exp(Q*t)*p for the linear configuration probability system of the
+ * exact model by uniformization. With Lambda at least as large as the largest
+ * exit rate of any configuration, P = I + Q/Lambda is non-negative and
+ * exp(Q*t)*p = sum_k Poisson(k; Lambda*t) * P^k * p, which is truncated once
+ * the remaining Poisson mass is below the tolerance. Q*p is evaluated through
+ * the derivatives of the ode, such that the sparse generator is never formed.
+ */
+public class Uniformization {
+
+	// maximal Lambda*t per substep, keeps exp(-Lambda*t) far from underflowing
+	static final double MAX_RATE_TIME = 20.0;
+
+	// number of generator vector products of the last call
+	public long products;
+
+	private double[] term = new double[0];
+	private double[] qTerm = new double[0];
+
+	public double[] expmv(FirstOrderDifferentialEquations ode, double maxExitRate, double duration, double[] p,
+			double tolerance) {
+		int n = p.length;
+		double[] result = Arrays.copyOf(p, n);
+		products = 0;
+		if (maxExitRate <= 0.0 || duration <= 0.0)
+			return result;
+
+		if (term.length != n) {
+			term = new double[n];
+			qTerm = new double[n];
+		}
+
+		int substeps = (int) Math.ceil(maxExitRate * duration / MAX_RATE_TIME);
+		double x = maxExitRate * duration / substeps;
+		for (int step = 0; step < substeps; step++) {
+			System.arraycopy(result, 0, term, 0, n);
+			double weight = Math.exp(-x);
+			double mass = weight;
+			for (int i = 0; i < n; i++)
+				result[i] = weight * term[i];
+
+			for (int k = 1; 1.0 - mass > tolerance && weight > 0.0; k++) {
+				// term = P * term
+				ode.computeDerivatives(0.0, term, qTerm);
+				products++;
+				for (int i = 0; i < n; i++)
+					term[i] += qTerm[i] / maxExitRate;
+
+				weight *= x / k;
+				mass += weight;
+				for (int i = 0; i < n; i++)
+					result[i] += weight * term[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Same as above for systems that do not fit into the heap, the vectors of
+	 * the series are kept in the scratch file and processed block wise on the
+	 * pool of the system. Returns p itself if there is nothing to integrate,
+	 * otherwise a new array that the caller releases.
+	 */
+	public MappedDoubleArray expmv(MappedConfigurationSystem system, double duration, MappedDoubleArray p,
+			double tolerance, ScratchFile scratch) {
+		long n = p.length();
+		double maxExitRate = system.getMaxExitRate();
+		products = 0;
+		if (maxExitRate <= 0.0 || duration <= 0.0)
+			return p;
+
+		MappedDoubleArray result = scratch.allocate(n);
+		MappedDoubleArray term = scratch.allocate(n);
+		MappedDoubleArray next = scratch.allocate(n);
+		system.forEachBlock(n, (block, from, to) -> {
+			for (long i = from; i < to; i++)
+				result.set(i, p.get(i));
+		});
+
+		int substeps = (int) Math.ceil(maxExitRate * duration / MAX_RATE_TIME);
+		double x = maxExitRate * duration / substeps;
+		for (int step = 0; step < substeps; step++) {
+			final double first = Math.exp(-x);
+			double weight = first;
+			double mass = weight;
+			final MappedDoubleArray start = term;
+			system.forEachBlock(n, (block, from, to) -> {
+				for (long i = from; i < to; i++) {
+					start.set(i, result.get(i));
+					result.set(i, first * result.get(i));
+				}
+			});
+
+			for (int k = 1; 1.0 - mass > tolerance && weight > 0.0; k++) {
+				system.uniformizedProduct(term, next, maxExitRate);
+				products++;
+				MappedDoubleArray tmp = term;
+				term = next;
+				next = tmp;
+
+				weight *= x / k;
+				mass += weight;
+				final double w = weight;
+				final MappedDoubleArray current = term;
+				system.forEachBlock(n, (block, from, to) -> {
+					for (long i = from; i < to; i++)
+						result.set(i, result.get(i) + w * current.get(i));
+				});
+			}
+		}
+
+		scratch.release(term);
+		scratch.release(next);
+		return result;
+	}
+}
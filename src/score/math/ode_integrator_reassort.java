@@ -3,6 +3,10 @@ package score.math;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
 import org.apache.commons.math3.ode.FirstOrderIntegrator;
@@ -21,27 +25,40 @@ public class ode_integrator_reassort implements FirstOrderDifferentialEquations
     int lineages;
     int types;
     int dimension;
-    Integer[][] connectivity;
-    Integer[][] sums;
-    List<List<Integer>> lineage_type;
+    ConfigurationTransitions transitions;
+    long[] configurations;
+    long[] radix;
     List<Integer> n_segs;
     
     boolean belowzero = false;
 
+    // diagonal of the generator
+    double[] exitRate;
+
+    // minimal number of configurations for which the derivatives are computed in parallel
+    static final int PARALLEL_THRESHOLD = 1024;
+    ForkJoinPool pool;
+
+    // number of derivative evaluations
+    public long evaluations;
+
     // constructor
     public ode_integrator_reassort(double[] migration_rates, double[] coalescent_rates, double[] reassortment_rates, int lineages,
-    		int types, Integer[][] connectivity, Integer[][] sums, List<List<Integer>> lineage_type, List<Integer> n_segs){
+    		int types, ConfigurationTransitions transitions, long[] configurations, List<Integer> n_segs){
     	this.migration_rates = migration_rates;
         this.coalescent_rates = coalescent_rates;
         this.reassortment_rates = reassortment_rates;
         this.lineages = lineages;
         this.types = types;
         belowzero = false;
-        this.dimension = sums.length;
-        this.connectivity = connectivity;
-        this.sums = sums;
+        this.dimension = configurations.length;
+        this.transitions = transitions;
         this.n_segs = n_segs;
-        this.lineage_type = lineage_type;
+        this.configurations = configurations;
+        radix = new long[lineages];
+        for (int j = 0; j < lineages; j++)
+        	radix[j] = j == 0 ? 1 : radix[j-1]*types;
+        exitRate = getExitRates();
 
     }
 
@@ -53,45 +70,103 @@ public class ode_integrator_reassort implements FirstOrderDifferentialEquations
     
     @Override
 	public void computeDerivatives(double t, double[] p, double[] pDot) {
-    	// Calculates the change in probability of being in a state due to coalescence
-    	for (int i = 0; i < p.length; i++){
-    		pDot[i] = 0.0;
-    		for (int s = 0; s < types; s++)
-    			pDot[i] -= 0.5*(sums[i][s]-1)*sums[i][s]*coalescent_rates[s];
-    		
-    		pDot[i] *= p[i];
+    	evaluations++;
+    	if (pool == null || p.length < PARALLEL_THRESHOLD) {
+    		computeDerivatives(p, pDot, 0, p.length);
+    		return;
+    	}
+
+    	// every thread only writes the derivatives of its own configurations
+    	int nBlocks = 4 * pool.getParallelism();
+    	int blockSize = (p.length + nBlocks - 1) / nBlocks;
+    	List<Callable<Void>> tasks = new ArrayList<>(nBlocks);
+    	for (int from = 0; from < p.length; from += blockSize) {
+    		final int start = from;
+    		final int end = Math.min(p.length, from + blockSize);
+    		tasks.add(() -> {
+    			computeDerivatives(p, pDot, start, end);
+    			return null;
+    		});
+    	}
+    	try {
+    		for (Future<Void> task : pool.invokeAll(tasks))
+    			task.get();
+    	} catch (InterruptedException | ExecutionException e) {
+    		throw new RuntimeException(e);
+    	}
+    }
+
+    /**
+     * Derivatives of configurations from ... to-1. The migration term gathers
+     * over the transitions into a configuration, such that no other
+     * configuration's derivative is written.
+     */
+    private void computeDerivatives(double[] p, double[] pDot, int from, int to) {
+    	int[] inStart = transitions.inStart;
+    	int[] source = transitions.source;
+    	int[] inRateIndex = transitions.inRateIndex;
+    	for (int i = from; i < to; i++){
     		// Stop the run if any configuration has a probability of lower than 0 of still existing
     		// normally the case when the integration time steps are too large
     		if (p[i]<0){
     			System.err.println("joint prob below 0");
     			System.exit(0);
     		}
+    		// leaving the configuration by coalescence, migration or reassortment
+    		double dot = -exitRate[i]*p[i];
+    		// migration into the configuration
+    		for (int k = inStart[i]; k < inStart[i+1]; k++)
+    			dot += p[source[k]]*migration_rates[inRateIndex[k]];
+    		pDot[i] = dot;
     	}
-    	// Calculate the change in the probability of being in a configuration due to migration
-    	for (int i = 0; i < p.length; i++){
-    		for (int j = 0; j < p.length; j++){
-    			if (connectivity[i][j]!=null){
-    				double m = p[i]*migration_rates[connectivity[i][j]];
-    				pDot[i] -= m;
-    				pDot[j] += m;
-    			}
-    		}
-    	}
-		// Calculate the change in the probability of being in a configuration due to
-		// reassortment
-    	for (int i=0; i < p.length; i++) {
-    		
-    		for (int s = 0; s < types; s++) {
-    			for (int j=0; j <lineages; j++) {
-    				if (lineage_type.get(i).get(j) == s) {
-    					pDot[i] += -(1-Math.pow(0.5, n_segs.get(j)-1))*reassortment_rates[s]*p[i]; // add factor of 2 and remove -1 from seg count
-    				}
-    			}
-    		}
+    }
+
+    /**
+     * rate at which each configuration is left, through coalescence,
+     * migration or reassortment, the number of lineages per type is read
+     * from the digits of the configuration
+     */
+    private double[] getExitRates() {
+    	double[] rates = new double[dimension];
+    	int[] sums = new int[types];
+    	for (int i = 0; i < dimension; i++){
+    		double rate = 0.0;
+    		Arrays.fill(sums, 0);
+    		for (int j = 0; j < lineages; j++)
+    			sums[getType(i, j)]++;
+    		for (int s = 0; s < types; s++)
+    			rate += 0.5*(sums[s]-1)*sums[s]*coalescent_rates[s];
+    		for (int k = transitions.rowStart[i]; k < transitions.rowStart[i+1]; k++)
+    			rate += migration_rates[transitions.rateIndex[k]];
+    		for (int j = 0; j < lineages; j++)
+    			rate += (1-Math.pow(0.5, n_segs.get(j)-1))*reassortment_rates[getType(i, j)];
+    		rates[i] = rate;
     	}
-//    	System.out.println(pDot);
+    	return rates;
     }
-        
+
+    // type of lineage j in configuration i
+    private int getType(int i, int j) {
+    	return (int) ((configurations[i] / radix[j]) % types);
+    }
+
+    /**
+     * largest rate at which any configuration is left
+     */
+    public double getMaxExitRate() {
+    	double max = 0.0;
+    	for (int i = 0; i < dimension; i++)
+    		max = Math.max(max, exitRate[i]);
+    	return max;
+    }
+
+    /**
+     * Splits the derivatives of large systems over the threads of the pool.
+     */
+    public void setParallel(ForkJoinPool pool) {
+    	this.pool = pool;
+    }
+
     public static void main(String[] args) throws Exception{
         // 2d test
     	double[] migration_rates = {0.01, 0.001};
@@ -99,25 +174,16 @@ public class ode_integrator_reassort implements FirstOrderDifferentialEquations
     	double[] reassortment_rates = {1.0, 1.0};
         int lineages = 2;
         int types = 2;
-        /*
-         * 0	1	1	0
-         *	1	0	0	1
-         *	1	0	0	1
-         *	0	1	1	0
-         *
-         */
-        Integer[][] con = {{null,0,0,null},{1,null,null,0},{1,null,null,0},{null,1,1,null}};
-        Integer[][] sums = {{2,0},{1,1},{1,1},{0,2}};
-        List<List<Integer>> lineage_type = new ArrayList<>();
-        lineage_type.add(new ArrayList<>(Arrays.asList(0, 0)));
-        lineage_type.add(new ArrayList<>(Arrays.asList(1, 0)));
-        lineage_type.add(new ArrayList<>(Arrays.asList(0, 1)));
-        lineage_type.add(new ArrayList<>(Arrays.asList(1, 1)));
+        // migration from type 0 to 1 has rate index 0, from 1 to 0 rate index 1
+        int[][] migration_map = {{0,0},{1,0}};
+        // lineage types (0,0), (1,0), (0,1) and (1,1)
+        long[] configurations = {0, 1, 2, 3};
         
         List<Integer> n_segs = new ArrayList<>(Arrays.asList(1, 2));
+        ConfigurationTransitions con = new ConfigurationTransitions(configurations, lineages, types, migration_map);
 
         FirstOrderIntegrator integrator = new ClassicalRungeKuttaIntegrator(0.01);
-        FirstOrderDifferentialEquations ode = new ode_integrator_reassort(migration_rates, coalescent_rates, reassortment_rates, lineages , types, con, sums, lineage_type, n_segs);
+        FirstOrderDifferentialEquations ode = new ode_integrator_reassort(migration_rates, coalescent_rates, reassortment_rates, lineages , types, con, configurations, n_segs);
         double[] y0 = new double[]{0,1,0,0};
         double[] y = new double[4];
     	integrator.integrate(ode, 0, y0, 50, y);
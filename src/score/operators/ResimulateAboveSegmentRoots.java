@@ -16,7 +16,7 @@ import coalre.distribution.NetworkIntervals;
 import coalre.network.NetworkEdge;
 import coalre.network.NetworkNode;
 import coalre.operators.NetworkOperator;
-import score.distribution.StructuredNetworkEvent;
+import score.distribution.NetworkEventArrays;
 import score.distribution.StructuredNetworkIntervals;
 
 public class ResimulateAboveSegmentRoots extends NetworkOperator {
@@ -87,59 +87,55 @@ public class ResimulateAboveSegmentRoots extends NetworkOperator {
 //	System.out.println("Ne: "+meanNe);
 //	System.out.println("Rea: "+meanReassotmentRate);
 	
-	List<StructuredNetworkEvent> subNetEventList = structuredIntervals.getNetworkEventList();
+	NetworkEventArrays events = structuredIntervals.getEventArrays();
 //	subNetEventList = subNetEventList.stream()
 //			.filter(e -> e.time > startTime)
 //			.collect(Collectors.toList());
-	
-	StructuredNetworkEvent prevEvent = null;
 
-	for (StructuredNetworkEvent event : subNetEventList) {
-	    if (prevEvent != null)
-		prob += intervalContribution(prevEvent, event);
+	for (int i = 0; i < events.size; i++) {
+	    if (i > 0)
+		prob += intervalContribution(events, i - 1, i);
 
-	    switch (event.type) {
-	    case COALESCENCE:
-		prob += coalesce(event);
+	    switch (events.type[i]) {
+	    case NetworkEventArrays.COALESCENCE:
+		prob += coalesce();
 		break;
 
-	    case SAMPLE:
+	    case NetworkEventArrays.SAMPLE:
 		break;
 
-	    case REASSORTMENT:
-		prob += reassortment(event);
+	    case NetworkEventArrays.REASSORTMENT:
+		prob += reassortment(events, i);
 		break;
 	    }
 
 	    if (prob == Double.NEGATIVE_INFINITY)
 		break;
-
-	    prevEvent = event;
 	}
 
 	return prob;
     }
 
-    private double reassortment(StructuredNetworkEvent event) {
+    private double reassortment(NetworkEventArrays events, int i) {
 
-	return Math.log(meanReassotmentRate) + event.segsSortedLeft * Math.log(structuredIntervals.getBinomialProb())
-		+ (event.segsToSort - event.segsSortedLeft) * Math.log(1 - structuredIntervals.getBinomialProb()) + Math.log(2.0);
+	return Math.log(meanReassotmentRate) + events.segsSortedLeft[i] * Math.log(structuredIntervals.getBinomialProb())
+		+ (events.segsToSort[i] - events.segsSortedLeft[i]) * Math.log(1 - structuredIntervals.getBinomialProb()) + Math.log(2.0);
     }
 
-    private double coalesce(StructuredNetworkEvent event) {
+    private double coalesce() {
 
 	return Math.log(1.0 / meanNe);
     }
 
-    private double intervalContribution(StructuredNetworkEvent prevEvent, StructuredNetworkEvent nextEvent) {
+    private double intervalContribution(NetworkEventArrays events, int prev, int next) {
 
 	double result = 0.0;
 
-	result += -meanReassotmentRate * prevEvent.totalReassortmentObsProb
-		* (nextEvent.time - prevEvent.time);
+	result += -meanReassotmentRate * events.totalReassortmentObsProb[prev]
+		* (events.time[next] - events.time[prev]);
 
-	result += -0.5 * prevEvent.lineages * (prevEvent.lineages - 1) * (1.0 / meanNe)
-		* (nextEvent.time - prevEvent.time);
+	result += -0.5 * events.lineages[prev] * (events.lineages[prev] - 1) * (1.0 / meanNe)
+		* (events.time[next] - events.time[prev]);
 
 	return result;
     }
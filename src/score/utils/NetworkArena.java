@@ -0,0 +1,149 @@
+package score.utils;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import coalre.network.Network;
+import coalre.network.NetworkEdge;
+import coalre.network.NetworkNode;
+
+/**
+ * Compact representation of a network in parallel primitive arrays. Nodes are
+ * numbered in order of increasing height and edges in the order of their
+ * child nodes, the segments carried by an edge are kept as a bit mask, such
+ * that at most 64 segments are supported. An arena holds a snapshot of a
+ * network that is not affected by later changes to the network. It is the
+ * form in which networks are handed from the chain to the stochastic mapping,
+ * in the state recorded with a backward pass and in the background mappings.
+ * The likelihood and the intervals work on the network objects, which the
+ * operators change in place.
+ */
+public class NetworkArena {
+
+	public static final int MAX_SEGMENTS = 64;
+
+	public int nodeCount, edgeCount, segmentCount;
+	public int rootEdge;
+
+	// nodes, -1 marks a missing edge
+	public double[] height;
+	public int[] parentEdge1, parentEdge2;
+	public int[] childEdge1, childEdge2;
+	public int[] typeIndex;
+	public String[] typeLabel, taxonLabel, metaData;
+	public int[] taxonIndex;
+
+	// edges, the parent of the root edge is -1
+	public int[] edgeParent, edgeChild;
+	public long[] segments;
+
+	public NetworkArena(int nodeCount, int edgeCount, int segmentCount) {
+		if (segmentCount > MAX_SEGMENTS)
+			throw new IllegalArgumentException("networks with more than " + MAX_SEGMENTS
+					+ " segments cannot be stored in an arena");
+		this.nodeCount = nodeCount;
+		this.edgeCount = edgeCount;
+		this.segmentCount = segmentCount;
+		height = new double[nodeCount];
+		parentEdge1 = new int[nodeCount];
+		parentEdge2 = new int[nodeCount];
+		childEdge1 = new int[nodeCount];
+		childEdge2 = new int[nodeCount];
+		typeIndex = new int[nodeCount];
+		typeLabel = new String[nodeCount];
+		taxonLabel = new String[nodeCount];
+		metaData = new String[nodeCount];
+		taxonIndex = new int[nodeCount];
+		edgeParent = new int[edgeCount];
+		edgeChild = new int[edgeCount];
+		segments = new long[edgeCount];
+	}
+
+	public static boolean supports(Network network) {
+		return network.getSegmentCount() <= MAX_SEGMENTS;
+	}
+
+	/**
+	 * Converts network and fills nodeIndex and edgeIndex with the arena
+	 * indices of its nodes and edges.
+	 */
+	public static NetworkArena fromNetwork(Network network, Map<NetworkNode, Integer> nodeIndex,
+			Map<NetworkEdge, Integer> edgeIndex) {
+		List<NetworkNode> nodes = new ArrayList<>(network.getNodes());
+		nodes.sort(Comparator.comparingDouble(NetworkNode::getHeight));
+
+		int edges = 0;
+		for (NetworkNode node : nodes) {
+			nodeIndex.put(node, nodeIndex.size());
+			// every edge is the parent edge of exactly one node
+			for (NetworkEdge edge : node.getParentEdges())
+				edgeIndex.put(edge, edges++);
+		}
+
+		NetworkArena arena = new NetworkArena(nodes.size(), edges, network.getSegmentCount());
+		for (int i = 0; i < nodes.size(); i++) {
+			NetworkNode node = nodes.get(i);
+			arena.height[i] = node.getHeight();
+			arena.typeIndex[i] = node.getTypeIndex();
+			arena.typeLabel[i] = node.getTypeLabel();
+			arena.taxonLabel[i] = node.getTaxonLabel();
+			arena.taxonIndex[i] = node.getTaxonIndex();
+			arena.metaData[i] = node.getMetaData();
+			List<NetworkEdge> parents = node.getParentEdges();
+			List<NetworkEdge> children = node.getChildEdges();
+			arena.parentEdge1[i] = parents.size() > 0 ? edgeIndex.get(parents.get(0)) : -1;
+			arena.parentEdge2[i] = parents.size() > 1 ? edgeIndex.get(parents.get(1)) : -1;
+			arena.childEdge1[i] = children.size() > 0 ? edgeIndex.get(children.get(0)) : -1;
+			arena.childEdge2[i] = children.size() > 1 ? edgeIndex.get(children.get(1)) : -1;
+
+			for (NetworkEdge edge : parents) {
+				int e = edgeIndex.get(edge);
+				arena.edgeChild[e] = i;
+				arena.edgeParent[e] = edge.parentNode == null ? -1 : nodeIndex.get(edge.parentNode);
+				long[] words = edge.hasSegments.toLongArray();
+				arena.segments[e] = words.length == 0 ? 0L : words[0];
+				if (edge.parentNode == null)
+					arena.rootEdge = e;
+			}
+		}
+		return arena;
+	}
+
+	/**
+	 * Builds the network and puts its nodes and edges at their arena indices
+	 * into nodes and edges.
+	 */
+	public Network toNetwork(NetworkNode[] nodes, NetworkEdge[] edges) {
+		for (int i = 0; i < nodeCount; i++) {
+			NetworkNode node = new NetworkNode();
+			node.setHeight(height[i]);
+			node.setTypeIndex(typeIndex[i]);
+			node.setTypeLabel(typeLabel[i]);
+			node.setTaxonLabel(taxonLabel[i]);
+			node.setTaxonIndex(taxonIndex[i]);
+			node.setMetaData(metaData[i]);
+			nodes[i] = node;
+		}
+
+		for (int e = 0; e < edgeCount; e++) {
+			edges[e] = new NetworkEdge();
+			edges[e].hasSegments = BitSet.valueOf(new long[] { segments[e] });
+		}
+
+		// link in the original order of the parent and child edges
+		for (int i = 0; i < nodeCount; i++) {
+			if (parentEdge1[i] != -1)
+				nodes[i].addParentEdge(edges[parentEdge1[i]]);
+			if (parentEdge2[i] != -1)
+				nodes[i].addParentEdge(edges[parentEdge2[i]]);
+			if (childEdge1[i] != -1)
+				nodes[i].addChildEdge(edges[childEdge1[i]]);
+			if (childEdge2[i] != -1)
+				nodes[i].addChildEdge(edges[childEdge2[i]]);
+		}
+		return new Network(edges[rootEdge]);
+	}
+}
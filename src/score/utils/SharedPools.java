@@ -0,0 +1,20 @@
+package score.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Thread pools shared by all objects asking for the same number of threads,
+ * such that every likelihood in an analysis (or in repeated analyses in one
+ * JVM) does not start pools of its own that are never shut down. The workers
+ * of a ForkJoinPool are daemon threads and end with the JVM.
+ */
+public class SharedPools {
+
+	private static final Map<Integer, ForkJoinPool> pools = new HashMap<>();
+
+	public static synchronized ForkJoinPool get(int threads) {
+		return pools.computeIfAbsent(threads, ForkJoinPool::new);
+	}
+}
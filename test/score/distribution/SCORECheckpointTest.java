@@ -0,0 +1,175 @@
+package score.distribution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import beast.core.State;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.tree.TraitSet;
+import beast.mascot.dynamics.Constant;
+import coalre.network.Network;
+import coalre.network.NetworkNode;
+import score.dynamics.ConstantReassortment;
+import score.dynamics.SkylineReassortment;
+
+/**
+ * The integration is resumed from a checkpoint if only the rates of later
+ * epochs change. A rejected move of the network restores a copy of it, to
+ * which the events and with them the checkpoints are carried over.
+ */
+public class SCORECheckpointTest {
+
+	// samples at the same time, such that the lineage ids depend on the order
+	// in which the event arrays are built
+	private static final String NETWORK = "((t1_0[&segments={0,1}]:1.0,t2_1[&segments={0,1}]:1.0)[&segments={0,1}]:1.5,"
+			+ "(t3_0[&segments={0,1}]:1.5,t4_1[&segments={0,1}]:1.5)[&segments={0,1}]:1.0)[&segments={0,1}]:0.0;";
+
+	@Test
+	public void testRateMoveAfterRejectedNetworkMove() {
+		Network network = new Network(NETWORK);
+		RealParameter reassortmentRates = new RealParameter("0.2 0.3 0.4 0.5");
+
+		StructuredNetworkIntervals intervals = new StructuredNetworkIntervals();
+		intervals.initByName("network", network);
+		SkylineReassortment dynamics = dynamics(network, reassortmentRates);
+		SCORE score = new SCORE();
+		score.initByName("networkIntervals", intervals, "dynamics", dynamics);
+
+		State state = new State();
+		state.initByName("stateNode", network, "stateNode", reassortmentRates);
+		state.initialise();
+		state.setPosterior(score);
+		state.robustlyCalcPosterior(score);
+
+		// move a node such that the order of the events changes, and reject
+		state.store(1);
+		network.startEditing(null);
+		for (NetworkNode node : network.getInternalNodes()) {
+			if (node.getHeight() == 1.0)
+				node.setHeight(1.8);
+		}
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		score.calculateLogP();
+		state.restore();
+		state.restoreCalculationNodes();
+		// the events are bound to the restored copy, the checkpoints are kept
+		assertNotNull(score.checkpoints);
+
+		// change the reassortment rates of the second epoch only
+		state.store(2);
+		reassortmentRates.setValue(2, 0.8);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		double logP = score.calculateLogP();
+		state.acceptCalculationNodes();
+
+		StructuredNetworkIntervals freshIntervals = new StructuredNetworkIntervals();
+		freshIntervals.initByName("network", network);
+		SCORE fresh = new SCORE();
+		fresh.initByName("networkIntervals", freshIntervals, "dynamics", dynamics);
+		assertEquals(fresh.calculateLogP(), logP, 1e-10);
+	}
+
+	@Test
+	public void testPassKeptAfterRejectedNetworkMove() {
+		Network network = new Network(NETWORK);
+		RealParameter reassortmentRates = new RealParameter("0.2 0.3 0.4 0.5");
+
+		StructuredNetworkIntervals intervals = new StructuredNetworkIntervals();
+		intervals.initByName("network", network);
+		SCORE score = new SCORE();
+		score.initByName("networkIntervals", intervals, "dynamics", dynamics(network, reassortmentRates));
+		score.setRecordBackwardPass(10, 1e-3);
+
+		State state = new State();
+		state.initByName("stateNode", network, "stateNode", reassortmentRates);
+		state.initialise();
+		state.setPosterior(score);
+		state.robustlyCalcPosterior(score);
+		BackwardPassRecord accepted = score.getBackwardPass();
+		assertNotNull(accepted);
+
+		state.store(1);
+		network.startEditing(null);
+		for (NetworkNode node : network.getInternalNodes()) {
+			if (node.getHeight() == 1.0)
+				node.setHeight(1.8);
+		}
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		score.calculateLogP();
+		state.restore();
+		state.restoreCalculationNodes();
+
+		assertSame(accepted, score.getBackwardPass());
+	}
+
+	@Test
+	public void testResumedEqualsSingleEpoch() {
+		Network network = new Network(NETWORK);
+		RealParameter reassortmentRates = new RealParameter("0.2 0.3 0.4 0.5");
+
+		StructuredNetworkIntervals intervals = new StructuredNetworkIntervals();
+		intervals.initByName("network", network);
+		SkylineReassortment dynamics = dynamics(network, reassortmentRates);
+		SCORE score = new SCORE();
+		score.initByName("networkIntervals", intervals, "dynamics", dynamics);
+
+		State state = new State();
+		state.initByName("stateNode", network, "stateNode", reassortmentRates);
+		state.initialise();
+		state.setPosterior(score);
+		state.robustlyCalcPosterior(score);
+
+		// the rates of the second epoch become those of the first one, such
+		// that the resumed calculation has to give the single epoch likelihood
+		state.store(1);
+		reassortmentRates.setValue(2, 0.2);
+		reassortmentRates.setValue(3, 0.3);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		double logP = score.calculateLogP();
+		state.acceptCalculationNodes();
+
+		Constant constant = (Constant) dynamics.structuredCoalescentDynamics.get();
+		ConstantReassortment single = new ConstantReassortment();
+		single.initByName("structuredCoalescentDynamics", constant, "reassortmentRates",
+				new RealParameter("0.2 0.3"));
+		StructuredNetworkIntervals singleIntervals = new StructuredNetworkIntervals();
+		singleIntervals.initByName("network", network);
+		SCORE expected = new SCORE();
+		expected.initByName("networkIntervals", singleIntervals, "dynamics", single);
+		assertEquals(expected.calculateLogP(), logP, 1e-8);
+	}
+
+	private static SkylineReassortment dynamics(Network network, RealParameter reassortmentRates) {
+		List<Taxon> taxa = new ArrayList<>();
+		StringBuilder types = new StringBuilder();
+		for (NetworkNode leaf : network.getLeafNodes()) {
+			String name = leaf.getTaxonLabel();
+			taxa.add(new Taxon(name));
+			types.append(types.length() > 0 ? "," : "").append(name).append("=")
+					.append(name.substring(name.length() - 1));
+		}
+		TraitSet typeTrait = new TraitSet();
+		typeTrait.initByName("traitname", "type", "taxa", new TaxonSet(taxa), "value", types.toString());
+
+		Constant constant = new Constant();
+		constant.initByName("dimension", 2, "Ne", new RealParameter("1.0 2.0"), "backwardsMigration",
+				new RealParameter("0.5 0.25"), "typeTrait", typeTrait, "fromBeauti", false);
+		SkylineReassortment dynamics = new SkylineReassortment();
+		// two epochs that both start below the first coalescence
+		dynamics.initByName("structuredCoalescentDynamics", constant, "reassortmentRates", reassortmentRates,
+				"reassortmentRateShifts", new RealParameter("0.5"));
+		return dynamics;
+	}
+}
@@ -0,0 +1,78 @@
+package score.distribution;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.tree.TraitSet;
+import beast.mascot.dynamics.Constant;
+import coalre.network.Network;
+import coalre.network.NetworkNode;
+import score.dynamics.ConstantReassortment;
+import score.dynamics.SkylineReassortment;
+
+/**
+ * Epochs with the same rates in all of them must give the likelihood of a
+ * single epoch, also if the epochs end between and after the events.
+ */
+public class SCOREEpochTest {
+
+	private static final String NETWORK = "((t1_0[&segments={0,1}]:1.0,t2_1[&segments={0,1}]:1.0)[&segments={0,1}]:1.5,"
+			+ "(t3_0[&segments={0,1}]:1.5,t4_1[&segments={0,1}]:1.5)[&segments={0,1}]:1.0)[&segments={0,1}]:0.0;";
+
+	@Test
+	public void testEqualEpochs() {
+		Network network = new Network(NETWORK);
+		TraitSet typeTrait = typeTrait(network);
+
+		ConstantReassortment single = new ConstantReassortment();
+		single.initByName("structuredCoalescentDynamics", coalescent(typeTrait), "reassortmentRates",
+				new RealParameter("0.2 0.3"));
+
+		// the first epoch ends before the first coalescence, the second one
+		// between the coalescences and the third one before the root
+		SkylineReassortment epochs = new SkylineReassortment();
+		epochs.initByName("structuredCoalescentDynamics", coalescent(typeTrait), "reassortmentRates",
+				new RealParameter("0.2 0.3 0.2 0.3 0.2 0.3 0.2 0.3"), "reassortmentRateShifts",
+				new RealParameter("0.5 1.2 2.0"));
+
+		double expected = logP(network, single, false);
+		assertEquals(expected, logP(network, epochs, false), 1e-8);
+		assertEquals(expected, logP(network, epochs, true), 1e-6);
+	}
+
+	private static double logP(Network network, ConstantReassortment dynamics, boolean parareal) {
+		StructuredNetworkIntervals intervals = new StructuredNetworkIntervals();
+		intervals.initByName("network", network);
+		SCORE score = new SCORE();
+		score.initByName("networkIntervals", intervals, "dynamics", dynamics, "parareal", parareal);
+		return score.calculateLogP();
+	}
+
+	private static Constant coalescent(TraitSet typeTrait) {
+		Constant constant = new Constant();
+		constant.initByName("dimension", 2, "Ne", new RealParameter("1.0 2.0"), "backwardsMigration",
+				new RealParameter("0.5 0.25"), "typeTrait", typeTrait, "fromBeauti", false);
+		return constant;
+	}
+
+	private static TraitSet typeTrait(Network network) {
+		List<Taxon> taxa = new ArrayList<>();
+		StringBuilder types = new StringBuilder();
+		for (NetworkNode leaf : network.getLeafNodes()) {
+			String name = leaf.getTaxonLabel();
+			taxa.add(new Taxon(name));
+			types.append(types.length() > 0 ? "," : "").append(name).append("=")
+					.append(name.substring(name.length() - 1));
+		}
+		TraitSet typeTrait = new TraitSet();
+		typeTrait.initByName("traitname", "type", "taxa", new TaxonSet(taxa), "value", types.toString());
+		return typeTrait;
+	}
+}
@@ -0,0 +1,46 @@
+package score.math;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * The tabulated factors agree with the direct formulas for an asymmetric
+ * binomialProb, also beyond the tabulated segment counts.
+ */
+public class ReassortmentObservabilityTest {
+
+	private static final double TOLERANCE = 1e-14;
+
+	@Test
+	public void testObsProbAsymmetric() {
+		double p = 0.3;
+		ReassortmentObservability observability = new ReassortmentObservability(p, 4);
+
+		assertEquals(0.0, observability.getObsProb(1), TOLERANCE);
+		assertEquals(1.0 - 0.09 - 0.49, observability.getObsProb(2), TOLERANCE);
+		assertEquals(1.0 - 0.027 - 0.343, observability.getObsProb(3), TOLERANCE);
+		for (int n = 0; n <= 8; n++)
+			assertEquals(1.0 - Math.pow(p, n) - Math.pow(1 - p, n), observability.getObsProb(n), TOLERANCE);
+	}
+
+	@Test
+	public void testSplitProbAsymmetric() {
+		double p = 0.3;
+		ReassortmentObservability observability = new ReassortmentObservability(p, 4);
+
+		assertEquals(2.0 * 0.3 * 0.49, observability.getSplitProb(1, 3), TOLERANCE);
+		for (int n = 0; n <= 8; n++) {
+			for (int left = 0; left <= n; left++)
+				assertEquals(2.0 * Math.pow(p, left) * Math.pow(1 - p, n - left),
+						observability.getSplitProb(left, n), TOLERANCE);
+		}
+	}
+
+	@Test
+	public void testSymmetricMatchesHalf() {
+		ReassortmentObservability observability = new ReassortmentObservability(0.5, 4);
+		for (int n = 1; n <= 6; n++)
+			assertEquals(1.0 - Math.pow(0.5, n - 1), observability.getObsProb(n), TOLERANCE);
+	}
+}
@@ -0,0 +1,79 @@
+package score.math;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.nonstiff.ClassicalRungeKuttaIntegrator;
+
+/**
+ * Benchmark of the uniformization solver, not run as a unit test.
+ */
+public class UniformizationBenchmark {
+
+	/**
+	 * Compares uniformization against the fixed step RK4 integration for
+	 * the rates used in validation/exact_test.
+	 */
+	public static void main(String[] args) throws Exception {
+		double[] migration_rates = { 0.2, 0.3 };
+		double[] coalescent_rates = { 2.0, 1.0 };
+		double[] reassortment_rates = { 0.1, 0.2 };
+		int types = 2;
+		int[][] migration_map = { { 0, 0 }, { 1, 0 } };
+		double[] timeSteps = { 0.001, 0.0001 };
+		double[] durations = { 0.01, 0.1, 1.0, 10.0 };
+
+		System.out.println("lineages\tduration\ttimeStep\tmaxAbsDiff\trk4_ms\tuniformization_ms\tproducts");
+		for (int lineages = 2; lineages <= 8; lineages += 2) {
+			// all configurations in the order the exact model builds them
+			long[] configurations = { 0 };
+			long power = 1;
+			for (int l = 0; l < lineages; l++) {
+				long[] next = new long[configurations.length * types];
+				for (int i = 0; i < configurations.length; i++) {
+					for (int s = 0; s < types; s++)
+						next[i * types + s] = configurations[i] + s * power;
+				}
+				configurations = next;
+				power *= types;
+			}
+			int C = configurations.length;
+			List<Integer> n_segs = new ArrayList<>();
+			for (int l = 0; l < lineages; l++)
+				n_segs.add(1 + l % 3);
+
+			ConfigurationTransitions transitions = new ConfigurationTransitions(configurations, lineages, types,
+					migration_map);
+			ode_integrator_reassort ode = new ode_integrator_reassort(migration_rates, coalescent_rates,
+					reassortment_rates, lineages, types, transitions, configurations, n_segs);
+
+			double[] p0 = new double[C];
+			for (int i = 0; i < C; i++)
+				p0[i] = 1.0 / C;
+
+			for (double duration : durations) {
+				for (double timeStep : timeSteps) {
+					double[] rk4 = new double[C];
+					long start = System.nanoTime();
+					FirstOrderIntegrator integrator = new ClassicalRungeKuttaIntegrator(
+							duration < timeStep ? duration / 2 : timeStep);
+					integrator.integrate(ode, 0, p0, duration, rk4);
+					double rk4Time = (System.nanoTime() - start) / 1e6;
+
+					Uniformization uniformization = new Uniformization();
+					start = System.nanoTime();
+					double[] u = uniformization.expmv(ode, ode.getMaxExitRate(), duration, p0, 1e-12);
+					double uTime = (System.nanoTime() - start) / 1e6;
+
+					double diff = 0.0;
+					for (int i = 0; i < C; i++)
+						diff = Math.max(diff, Math.abs(rk4[i] - u[i]));
+
+					System.out.println(lineages + "\t" + duration + "\t" + timeStep + "\t" + diff + "\t" + rk4Time
+							+ "\t" + uTime + "\t" + uniformization.products);
+				}
+			}
+		}
+	}
+}
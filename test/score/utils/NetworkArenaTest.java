@@ -0,0 +1,52 @@
+package score.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import coalre.network.Network;
+import coalre.network.NetworkEdge;
+import coalre.network.NetworkNode;
+
+/**
+ * A network converted to an arena and back keeps its topology, heights,
+ * segments and labels, and is independent of the original network.
+ */
+public class NetworkArenaTest {
+
+	private static final String NETWORK = "((t1_0[&segments={0,1}]:1.0,t2_1[&segments={0,1}]:1.0)[&segments={0,1}]:1.5,"
+			+ "(t3_0[&segments={0,1}]:1.5,t4_1[&segments={0,1}]:1.5)[&segments={0,1}]:1.0)[&segments={0,1}]:0.0;";
+
+	@Test
+	public void testRoundTrip() {
+		Network network = new Network(NETWORK);
+		Map<NetworkNode, Integer> nodeIndex = new IdentityHashMap<>();
+		Map<NetworkEdge, Integer> edgeIndex = new IdentityHashMap<>();
+		NetworkArena arena = NetworkArena.fromNetwork(network, nodeIndex, edgeIndex);
+
+		assertEquals(network.getNodes().size(), arena.nodeCount);
+		assertEquals(network.getEdges().size(), arena.edgeCount);
+
+		NetworkNode[] nodes = new NetworkNode[arena.nodeCount];
+		NetworkEdge[] edges = new NetworkEdge[arena.edgeCount];
+		Network copy = arena.toNetwork(nodes, edges);
+		assertEquals(network.getExtendedNewick(), copy.getExtendedNewick());
+
+		for (NetworkNode node : network.getNodes()) {
+			NetworkNode converted = nodes[nodeIndex.get(node)];
+			assertEquals(node.getHeight(), converted.getHeight(), 0.0);
+			assertEquals(node.getTaxonLabel(), converted.getTaxonLabel());
+			assertEquals(node.getChildCount(), converted.getChildCount());
+		}
+		for (NetworkEdge edge : network.getEdges())
+			assertEquals(edge.hasSegments, edges[edgeIndex.get(edge)].hasSegments);
+
+		// later changes to the network do not reach the arena
+		String newick = copy.getExtendedNewick();
+		network.getRootEdge().childNode.setHeight(3.0);
+		assertEquals(newick, arena.toNetwork(nodes, edges).getExtendedNewick());
+	}
+}